@@ -43,13 +43,19 @@ public class CacheContentProvider extends ContentProvider {
 
 	private static final String DATABASE_NAME = "cache.db";
 
-	private static final int DATABASE_VERSION = 6;
+	private static final int DATABASE_VERSION = 8;
 
 	/**
 	 * The content uri used by this provider
 	 */
 	public static Uri CONTENT_URI;
 
+	/**
+	 * Query parameter limiting the number of rows returned by
+	 * {@link CacheContentProvider#query(Uri, String[], String, String[], String)}
+	 */
+	public static final String QUERY_PARAMETER_LIMIT = "limit";
+
 	private CacheContentProviderDatabaseHelper databaseHelper;
 
 	private static final class CacheContentProviderDatabaseHelper extends SQLiteOpenHelper {
@@ -86,6 +92,34 @@ public class CacheContentProvider extends ContentProvider {
 				} catch (Exception e) {
 					Log.e(TAG, "upgrade failed", e);
 				}
+			} else if (oldVersion < 8) {
+				// tables created by the upgrade above already contain the validator and eviction columns
+				try {
+					if (oldVersion < 7) {
+						Log.i(TAG, "adding validator columns");
+						db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.ETAG + " TEXT");
+						db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.LASTMODIFIED + " TEXT");
+					}
+					// sizes of existing files are filled in by DatabaseDiskCacheEngine
+					Log.i(TAG, "adding eviction columns");
+					db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.SIZE + " INTEGER DEFAULT 0");
+					db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.LASTACCESSTIMESTAMP + " INTEGER DEFAULT 0");
+					db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.PRIORITY + " INTEGER DEFAULT 0");
+					Log.i(TAG, "upgrade complete");
+				} catch (Exception e) {
+					Log.e(TAG, "upgrade failed", e);
+				}
+			}
+			if (oldVersion < 8) {
+				// files that used to be permanent must not be evicted by the budget
+				try {
+					db.execSQL("UPDATE " + DataBaseAdapterCacheInformation.TABLE + " SET " + 
+							DataBaseAdapterCacheInformation.PRIORITY + " = " + CacheInformation.PRIORITY_PINNED + " WHERE " + 
+							DataBaseAdapterCacheInformation.CACHETIME + " = " + CacheInformation.CACHE_FOREVER + " OR " + 
+							DataBaseAdapterCacheInformation.USEOFFLINECACHE + " = 1");
+				} catch (Exception e) {
+					Log.e(TAG, "pinning permanent files failed", e);
+				}
 			}
 			// @formatter:on
 		}
@@ -99,7 +133,12 @@ public class CacheContentProvider extends ContentProvider {
 				DataBaseAdapterCacheInformation.CACHETIME + " INTEGER, " +
 				DataBaseAdapterCacheInformation.FILENAME + " TEXT UNIQUE, " +
 				DataBaseAdapterCacheInformation.FILEPATH + " TEXT, " +
-				DataBaseAdapterCacheInformation.USEOFFLINECACHE + " INTEGER);";
+				DataBaseAdapterCacheInformation.USEOFFLINECACHE + " INTEGER, " +
+				DataBaseAdapterCacheInformation.ETAG + " TEXT, " +
+				DataBaseAdapterCacheInformation.LASTMODIFIED + " TEXT, " +
+				DataBaseAdapterCacheInformation.SIZE + " INTEGER DEFAULT 0, " +
+				DataBaseAdapterCacheInformation.LASTACCESSTIMESTAMP + " INTEGER DEFAULT 0, " +
+				DataBaseAdapterCacheInformation.PRIORITY + " INTEGER DEFAULT 0);";
 			Log.i(TAG, "Creating cache: " + s);
 			db.execSQL(s);
 			Log.i(TAG, "cache created");
@@ -156,7 +195,8 @@ public class CacheContentProvider extends ContentProvider {
 		SQLiteDatabase db = databaseHelper.getReadableDatabase();
 		Cursor c;
 		if (hash == null) {
-			c = db.query(DataBaseAdapterCacheInformation.TABLE, projection, selection, selectionArgs, null, null, sortOrder);
+			c = db.query(DataBaseAdapterCacheInformation.TABLE, projection, selection, selectionArgs, null, null, sortOrder,
+					uri.getQueryParameter(QUERY_PARAMETER_LIMIT));
 		} else {
 			String[] args = { hash };
 			c = db.query(DataBaseAdapterCacheInformation.TABLE, projection, DataBaseAdapterCacheInformation.FILENAME + " = ?", args, null,
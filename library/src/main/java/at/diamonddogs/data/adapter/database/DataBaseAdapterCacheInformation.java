@@ -52,6 +52,21 @@ public class DataBaseAdapterCacheInformation extends DatabaseAdapter<CacheInform
 	/** useofflinecache column */
 	public static final String USEOFFLINECACHE = "useofflinecache";
 
+	/** etag column */
+	public static final String ETAG = "etag";
+
+	/** lastmodified column */
+	public static final String LASTMODIFIED = "lastmodified";
+
+	/** size column */
+	public static final String SIZE = "size";
+
+	/** lastaccesstimestamp column */
+	public static final String LASTACCESSTIMESTAMP = "lastaccesstimestamp";
+
+	/** priority column */
+	public static final String PRIORITY = "priority";
+
 	/**
 	 * Sets dataObject to the {@link CacheInformation} item currently selected
 	 * in c
@@ -96,6 +111,11 @@ public class DataBaseAdapterCacheInformation extends DatabaseAdapter<CacheInform
 		cv.put(FILENAME, dataObject.getFileName());
 		cv.put(FILEPATH, dataObject.getFilePath());
 		cv.put(USEOFFLINECACHE, dataObject.isUseOfflineCache() ? 1 : 0);
+		cv.put(ETAG, dataObject.getETag());
+		cv.put(LASTMODIFIED, dataObject.getLastModified());
+		cv.put(SIZE, dataObject.getSize());
+		cv.put(LASTACCESSTIMESTAMP, dataObject.getLastAccessTimeStamp());
+		cv.put(PRIORITY, dataObject.getPriority());
 		return cv;
 	}
 
@@ -111,6 +131,11 @@ public class DataBaseAdapterCacheInformation extends DatabaseAdapter<CacheInform
 		dataObject.setFileName(c.getString(c.getColumnIndexOrThrow(FILENAME)));
 		dataObject.setFilePath(c.getString(c.getColumnIndexOrThrow(FILEPATH)));
 		dataObject.setUseOfflineCache(c.getInt(c.getColumnIndexOrThrow(USEOFFLINECACHE)) == 1);
+		dataObject.setETag(c.getString(c.getColumnIndexOrThrow(ETAG)));
+		dataObject.setLastModified(c.getString(c.getColumnIndexOrThrow(LASTMODIFIED)));
+		dataObject.setSize(c.getLong(c.getColumnIndexOrThrow(SIZE)));
+		dataObject.setLastAccessTimeStamp(c.getLong(c.getColumnIndexOrThrow(LASTACCESSTIMESTAMP)));
+		dataObject.setPriority(c.getInt(c.getColumnIndexOrThrow(PRIORITY)));
 		return dataObject;
 	}
 
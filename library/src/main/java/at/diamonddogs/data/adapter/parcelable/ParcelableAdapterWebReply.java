@@ -63,8 +63,10 @@ public class ParcelableAdapterWebReply extends ParcelableAdapter<WebReply> {
 	public void writeToParcel(Parcel dest, int flags) {
 
 		dest.writeInt(dataObject.getHttpStatusCode());
-		dest.writeInt(dataObject.getData().length);
-		dest.writeByteArray(dataObject.getData());
+		// the data of a released reply is gone
+		byte[] data = dataObject.getData() == null ? new byte[0] : dataObject.getData();
+		dest.writeInt(data.length);
+		dest.writeByteArray(data);
 		writeHeaderMap(dest, dataObject.getReplyHeader());
 	}
 
@@ -41,6 +41,11 @@ public class CacheInformation {
 	/** Cache forever */
 	public static final long CACHE_FOREVER = -2;
 
+	/** The default eviction priority */
+	public static final int PRIORITY_DEFAULT = 0;
+	/** Files of this priority are never evicted to stay within the disk budget */
+	public static final int PRIORITY_PINNED = Integer.MAX_VALUE;
+
 	/**
 	 * Primary key, will be -1 if not assigned
 	 */
@@ -77,6 +82,37 @@ public class CacheInformation {
 	 */
 	private boolean useOfflineCache = false;
 
+	/**
+	 * The ETag of the cached reply, used to revalidate expired items, may be
+	 * <code>null</code>
+	 */
+	private String eTag;
+
+	/**
+	 * The Last-Modified header of the cached reply, used to revalidate expired
+	 * items, may be <code>null</code>
+	 */
+	private String lastModified;
+
+	/**
+	 * The size of the cache file in bytes, set when the file is added to the
+	 * cache
+	 */
+	private long size;
+
+	/**
+	 * The time stamp of the last access to the cache file, used to evict the
+	 * least recently used files once the disk budget is exceeded
+	 */
+	private long lastAccessTimeStamp;
+
+	/**
+	 * Files of a lower priority are evicted first once the disk budget is
+	 * exceeded, files of {@link CacheInformation#PRIORITY_PINNED} are never
+	 * evicted
+	 */
+	private int priority = PRIORITY_DEFAULT;
+
 	/**
 	 * Constructor to privide all information on {@link CacheInformation}
 	 * 
@@ -116,6 +152,26 @@ public class CacheInformation {
 
 	}
 
+	/**
+	 * Copy constructor
+	 * 
+	 * @param other
+	 *            the {@link CacheInformation} to copy
+	 */
+	public CacheInformation(CacheInformation other) {
+		this._id = other._id;
+		this.creationTimeStamp = other.creationTimeStamp;
+		this.cacheTime = other.cacheTime;
+		this.fileName = other.fileName;
+		this.filePath = other.filePath;
+		this.useOfflineCache = other.useOfflineCache;
+		this.eTag = other.eTag;
+		this.lastModified = other.lastModified;
+		this.size = other.size;
+		this.lastAccessTimeStamp = other.lastAccessTimeStamp;
+		this.priority = other.priority;
+	}
+
 	@SuppressWarnings("javadoc")
 	public int get_id() {
 		return _id;
@@ -176,9 +232,84 @@ public class CacheInformation {
 		this.useOfflineCache = useOfflineCache;
 	}
 
+	@SuppressWarnings("javadoc")
+	public String getETag() {
+		return eTag;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setETag(String eTag) {
+		this.eTag = eTag;
+	}
+
+	@SuppressWarnings("javadoc")
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setLastModified(String lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getSize() {
+		return size;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getLastAccessTimeStamp() {
+		return lastAccessTimeStamp;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setLastAccessTimeStamp(long lastAccessTimeStamp) {
+		this.lastAccessTimeStamp = lastAccessTimeStamp;
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getPriority() {
+		return priority;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Copies the validators (ETag and Last-Modified) of a reply
+	 * 
+	 * @param webReply
+	 *            the {@link WebReply} whose validators should be stored, may
+	 *            be <code>null</code>
+	 */
+	public void setValidators(WebReply webReply) {
+		if (webReply != null) {
+			eTag = webReply.getReplyHeaderValue("ETag");
+			lastModified = webReply.getReplyHeaderValue("Last-Modified");
+		}
+	}
+
+	/**
+	 * Checks if the cached item can be revalidated using a conditional
+	 * request
+	 * 
+	 * @return <code>true</code> if an ETag or Last-Modified date is known
+	 */
+	public boolean hasValidators() {
+		return eTag != null || lastModified != null;
+	}
+
 	@Override
 	public String toString() {
 		return "CacheInformation [_id=" + _id + ", creationTimeStamp=" + creationTimeStamp + ", cacheTime=" + cacheTime + ", fileName="
-				+ fileName + ", filePath=" + filePath + ", useOfflineCache=" + useOfflineCache + "]";
+				+ fileName + ", filePath=" + filePath + ", useOfflineCache=" + useOfflineCache + ", eTag=" + eTag + ", lastModified="
+				+ lastModified + ", size=" + size + ", lastAccessTimeStamp=" + lastAccessTimeStamp + ", priority=" + priority + "]";
 	}
 }
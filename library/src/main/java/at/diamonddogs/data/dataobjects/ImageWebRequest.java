@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.data.dataobjects;
+
+import at.diamonddogs.service.processor.ImageProcessor;
+
+/**
+ * A {@link WebRequest} for images that should be decoded to a certain size,
+ * e.g. the size of the view that displays them. {@link ImageProcessor} decodes
+ * the image to the target size instead of its full size. Images decoded to
+ * different target sizes are kept separately in the memory cache.
+ */
+public class ImageWebRequest extends WebRequest {
+
+	/**
+	 * Determines how an image is fitted into the target size
+	 */
+	public enum ScaleType {
+		/**
+		 * Scales the image uniformly so that it fits into the target size, the
+		 * image is never enlarged. A target width or height of 0 leaves that
+		 * dimension unconstrained.
+		 */
+		CENTER_INSIDE,
+		/**
+		 * Scales the image uniformly so that it covers the target size, the
+		 * parts exceeding the target size are cropped evenly
+		 */
+		CENTER_CROP,
+		/**
+		 * Scales the image to the exact target size, the aspect ratio is not
+		 * preserved
+		 */
+		FIT_XY
+	}
+
+	/**
+	 * Indicates that a target dimension is unconstrained
+	 */
+	public static final int SIZE_ORIGINAL = 0;
+
+	private int targetWidth = SIZE_ORIGINAL;
+
+	private int targetHeight = SIZE_ORIGINAL;
+
+	private ScaleType scaleType = ScaleType.CENTER_INSIDE;
+
+	/**
+	 * Creates an {@link ImageWebRequest} using {@link ImageProcessor}, the
+	 * image is decoded to its full size unless a target size is set
+	 */
+	public ImageWebRequest() {
+		super();
+		this.processorId = ImageProcessor.ID;
+	}
+
+	/**
+	 * Creates an {@link ImageWebRequest} using {@link ImageProcessor}
+	 *
+	 * @param url
+	 *            the url of the image
+	 * @param targetWidth
+	 *            the target width in pixels
+	 * @param targetHeight
+	 *            the target height in pixels
+	 * @param scaleType
+	 *            the {@link ScaleType}
+	 */
+	public ImageWebRequest(String url, int targetWidth, int targetHeight, ScaleType scaleType) {
+		this();
+		setUrl(url);
+		setTargetSize(targetWidth, targetHeight, scaleType);
+	}
+
+	/**
+	 * Sets the size the image should be decoded to
+	 *
+	 * @param targetWidth
+	 *            the target width in pixels, {@link ImageWebRequest#SIZE_ORIGINAL}
+	 *            leaves the width unconstrained
+	 * @param targetHeight
+	 *            the target height in pixels,
+	 *            {@link ImageWebRequest#SIZE_ORIGINAL} leaves the height
+	 *            unconstrained
+	 * @param scaleType
+	 *            the {@link ScaleType}, {@link ScaleType#CENTER_CROP} and
+	 *            {@link ScaleType#FIT_XY} require both dimensions
+	 */
+	public void setTargetSize(int targetWidth, int targetHeight, ScaleType scaleType) {
+		if (targetWidth < 0 || targetHeight < 0) {
+			throw new IllegalArgumentException("target size must not be negative");
+		}
+		if (scaleType == null) {
+			throw new IllegalArgumentException("scaleType must not be null");
+		}
+		if (scaleType != ScaleType.CENTER_INSIDE && (targetWidth == SIZE_ORIGINAL) != (targetHeight == SIZE_ORIGINAL)) {
+			throw new IllegalArgumentException(scaleType + " requires both target dimensions");
+		}
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		this.scaleType = scaleType;
+	}
+
+	/**
+	 * Checks if a target size has been set
+	 *
+	 * @return <code>true</code> if at least one target dimension is
+	 *         constrained
+	 */
+	public boolean hasTargetSize() {
+		return targetWidth != SIZE_ORIGINAL || targetHeight != SIZE_ORIGINAL;
+	}
+
+	/**
+	 * Includes the target size, so that thumbnails and full size images of
+	 * the same url are cached separately
+	 */
+	@Override
+	public String getMemoryCacheKey() {
+		String key = super.getMemoryCacheKey();
+		if (key == null || !hasTargetSize()) {
+			return key;
+		}
+		return key + "#" + targetWidth + "x" + targetHeight + ":" + scaleType;
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getTargetWidth() {
+		return targetWidth;
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getTargetHeight() {
+		return targetHeight;
+	}
+
+	@SuppressWarnings("javadoc")
+	public ScaleType getScaleType() {
+		return scaleType;
+	}
+}
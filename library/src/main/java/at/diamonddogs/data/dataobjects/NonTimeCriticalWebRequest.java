@@ -29,7 +29,6 @@ import at.diamonddogs.service.processor.ServiceProcessor;
  */
 public class NonTimeCriticalWebRequest extends WebRequest implements NonTimeCriticalTask {
 
-	private PRIORITY priority;
 	private ServiceProcessor<?> serviceProcessor;
 	private Handler.Callback callback;
 
@@ -73,22 +72,6 @@ public class NonTimeCriticalWebRequest extends WebRequest implements NonTimeCrit
 		this.callback = callback;
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public PRIORITY getPriority() {
-		return priority;
-	}
-
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public void setPriority(PRIORITY priority) {
-		this.priority = priority;
-	}
-
 	/**
 	 * {@inheritDoc}
 	 */
@@ -15,11 +15,14 @@
  */
 package at.diamonddogs.data.dataobjects;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import at.diamonddogs.util.SegmentedBuffer;
+
 /**
  * Web reply representation
  */
@@ -28,6 +31,19 @@ public class WebReply implements Reply {
 	protected int httpStatusCode;
 	/** the data returned by the request */
 	protected byte[] data;
+	/**
+	 * the data returned by the request, if it has been buffered in segments.
+	 * Converted to {@link WebReply#data} on the first call to
+	 * {@link WebReply#getData()}, the segments are released afterwards.
+	 * Reading the segments without copying them is only possible using
+	 * {@link WebReply#openDataStream()}. Released by
+	 * {@link WebReply#release()}.
+	 */
+	protected SegmentedBuffer body;
+	/** the number of bytes received before decoding, -1 if unknown */
+	protected long compressedLength = -1;
+	/** the number of bytes after decoding, -1 if unknown */
+	protected long uncompressedLength = -1;
 	/** the header of the reply */
 	protected Map<String, List<String>> replyHeader;
 
@@ -51,14 +67,103 @@ public class WebReply implements Reply {
 		this.httpStatusCode = httpStatusCode;
 	}
 
-	@SuppressWarnings("javadoc")
-	public byte[] getData() {
+	/**
+	 * Returns the data returned by the request. If the data has been buffered
+	 * in segments (i.e. the reply had no Content-Length), it is copied into a
+	 * contiguous array on the first call and the segments are returned to the
+	 * {@link at.diamonddogs.util.BufferPool}. Until then both the segments and the array are
+	 * held, array based processors therefore save the growth copies of an
+	 * unsized buffer, but not the final copy or its peak heap. Only stream
+	 * based processors, which use {@link WebReply#openDataStream()}, read the
+	 * data without any copy.
+	 *
+	 * @return the data or <code>null</code>
+	 */
+	public synchronized byte[] getData() {
+		if (data == null && body != null) {
+			data = body.toByteArray();
+			body.release();
+			body = null;
+		}
 		return data;
 	}
 
 	@SuppressWarnings("javadoc")
-	public void setData(byte[] data) {
+	public synchronized void setData(byte[] data) {
 		this.data = data;
+		this.body = null;
+	}
+
+	/**
+	 * Sets the data returned by the request as a {@link SegmentedBuffer}
+	 *
+	 * @param body
+	 *            the buffered data
+	 */
+	public synchronized void setBody(SegmentedBuffer body) {
+		this.body = body;
+		this.data = null;
+	}
+
+	/**
+	 * Returns the length of the data returned by the request
+	 *
+	 * @return the length in bytes, 0 if there is no data
+	 */
+	public synchronized int getDataLength() {
+		if (data != null) {
+			return data.length;
+		}
+		return body == null ? 0 : body.size();
+	}
+
+	/**
+	 * Opens an {@link InputStream} on the data returned by the request,
+	 * without copying it. Close the stream or read it to its end, otherwise
+	 * its segments are not returned to the
+	 * {@link at.diamonddogs.util.BufferPool}.
+	 *
+	 * @return an {@link InputStream} or <code>null</code> if there is no data
+	 */
+	public synchronized InputStream openDataStream() {
+		if (data != null) {
+			return new ByteArrayInputStream(data);
+		}
+		return body == null ? null : body.openStream();
+	}
+
+	/**
+	 * Returns the segments of the data to the
+	 * {@link at.diamonddogs.util.BufferPool} once all streams opened by
+	 * {@link WebReply#openDataStream()} are done with them. Data that has
+	 * already been copied by {@link WebReply#getData()} is kept, segmented
+	 * data is no longer available afterwards.
+	 */
+	public synchronized void release() {
+		if (body != null) {
+			body.release();
+			body = null;
+		}
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getCompressedLength() {
+		return compressedLength;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setCompressedLength(long compressedLength) {
+		this.compressedLength = compressedLength;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getUncompressedLength() {
+		return uncompressedLength;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setUncompressedLength(long uncompressedLength) {
+		this.uncompressedLength = uncompressedLength;
 	}
 
 	@SuppressWarnings("javadoc")
@@ -71,6 +176,27 @@ public class WebReply implements Reply {
 		this.replyHeader = replyHeader;
 	}
 
+	/**
+	 * Returns the first value of a reply header field, field names are
+	 * compared case insensitively
+	 * 
+	 * @param field
+	 *            the name of the header field
+	 * @return the first value of the field or <code>null</code> if the field
+	 *         is not present
+	 */
+	public String getReplyHeaderValue(String field) {
+		if (replyHeader == null) {
+			return null;
+		}
+		for (Map.Entry<String, List<String>> header : replyHeader.entrySet()) {
+			if (field.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+				return header.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public String toString() {
 		return "WebReply [httpStatusCode=" + httpStatusCode + ", data=" + (data == null ? null : Arrays.toString(data)) + ", replyHeader="
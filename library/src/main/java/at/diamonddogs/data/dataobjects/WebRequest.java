@@ -17,8 +17,12 @@ package at.diamonddogs.data.dataobjects;
 
 import java.net.URI;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 
 import android.net.ConnectivityManager;
@@ -27,6 +31,7 @@ import android.util.Pair;
 
 
 import at.diamonddogs.service.net.HttpService;
+import at.diamonddogs.util.CacheManager;
 import at.diamonddogs.util.Log;
 import okhttp3.RequestBody;
 
@@ -152,10 +157,16 @@ public class WebRequest implements Request {
     protected int numberOfRetries = 3;
 
     /**
-     * The interval in which retries will take place
+     * The base interval in which retries will take place, grows exponentially
+     * with each retry
      */
     protected int retryInterval = 500;
 
+    /**
+     * Allows retries of non idempotent {@link WebRequest}s (POST)
+     */
+    protected boolean retryNonIdempotent = false;
+
     /**
      * The tempfile
      */
@@ -182,6 +193,202 @@ public class WebRequest implements Request {
 
     private boolean getStream = false;
 
+    /**
+     * Memory maps cached files instead of reading them onto the heap, set by
+     * {@link HttpService} if the processor of this {@link WebRequest} supports
+     * it
+     */
+    private boolean mapCachedFile = false;
+
+    /**
+     * The eviction priority of the cache file of this {@link WebRequest}.
+     * Once the file cache exceeds its budget, files of a lower priority are
+     * evicted first, files of {@link CacheInformation#PRIORITY_PINNED} are
+     * never evicted.
+     */
+    protected int cachePriority = CacheInformation.PRIORITY_DEFAULT;
+
+    /**
+     * <code>true</code> if {@link #cachePriority} has been set explicitly
+     */
+    private boolean cachePrioritySet = false;
+
+    /**
+     * If set to <code>true</code>, {@link HttpService} will share a single
+     * network call between all concurrent, identical {@link WebRequest}s. Two
+     * {@link WebRequest}s are identical if method, url, processor id and the
+     * values of all vary headers match.
+     */
+    protected boolean coalesce = false;
+
+    /**
+     * Names of the header fields that distinguish otherwise identical
+     * {@link WebRequest}s when coalescing
+     */
+    protected Set<String> varyHeaders;
+
+    /**
+     * The host group of this {@link WebRequest}. {@link WebRequest}s of the
+     * same host group share the per host concurrency limit of
+     * {@link HttpService}. If not set, the host of {@link WebRequest#url} is
+     * used.
+     */
+    protected String hostGroup;
+
+    /**
+     * The scheduling priority of this {@link WebRequest}. Time critical
+     * {@link WebRequest}s are always scheduled ahead of non time critical
+     * {@link WebRequest}s of the same priority.
+     */
+    protected NonTimeCriticalTask.PRIORITY priority = NonTimeCriticalTask.PRIORITY.NORMAL;
+
+    /**
+     * The expired cache entry this {@link WebRequest} revalidates. Set by
+     * {@link CacheManager} if the entry has validators, causes a conditional
+     * request (If-None-Match / If-Modified-Since) to be sent.
+     */
+    private CacheInformation revalidatedCacheInformation;
+
+    /**
+     * If set to <code>true</code>, an expired cache entry is handed to the
+     * processor right away while {@link HttpService} refreshes it in the
+     * background (stale-while-revalidate). Only applies to async
+     * {@link WebRequest}s.
+     */
+    protected boolean staleWhileRevalidate = false;
+
+    /**
+     * If set to <code>true</code>, an expired cache entry is handed to the
+     * processor if the network call fails (stale-if-error)
+     */
+    protected boolean staleIfError = false;
+
+    /**
+     * If set to <code>true</code>, the reply of a background refresh (see
+     * {@link WebRequest#staleWhileRevalidate}) is delivered to the
+     * {@link android.os.Handler} as a second message. Otherwise the refresh
+     * only updates the cache.
+     */
+    protected boolean deliverRefreshedReply = false;
+
+    @SuppressWarnings("javadoc")
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    @SuppressWarnings("javadoc")
+    public boolean isStaleIfError() {
+        return staleIfError;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setStaleIfError(boolean staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    @SuppressWarnings("javadoc")
+    public boolean isDeliverRefreshedReply() {
+        return deliverRefreshedReply;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setDeliverRefreshedReply(boolean deliverRefreshedReply) {
+        this.deliverRefreshedReply = deliverRefreshedReply;
+    }
+
+    @SuppressWarnings("javadoc")
+    public CacheInformation getRevalidatedCacheInformation() {
+        return revalidatedCacheInformation;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setRevalidatedCacheInformation(CacheInformation revalidatedCacheInformation) {
+        this.revalidatedCacheInformation = revalidatedCacheInformation;
+    }
+
+    @SuppressWarnings("javadoc")
+    public NonTimeCriticalTask.PRIORITY getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the scheduling priority of this {@link WebRequest}. Use
+     * {@link HttpService#reprioritizeRequest(String, NonTimeCriticalTask.PRIORITY)}
+     * to change the priority of a {@link WebRequest} that has already been
+     * queued.
+     *
+     * @param priority the priority
+     */
+    public void setPriority(NonTimeCriticalTask.PRIORITY priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * The content codings accepted for the reply, in order of preference. If
+     * <code>null</code>, OkHttp negotiates and decodes gzip transparently.
+     */
+    protected List<String> acceptEncodings;
+
+    @SuppressWarnings("javadoc")
+    public List<String> getAcceptEncodings() {
+        return acceptEncodings;
+    }
+
+    /**
+     * Sets the content codings accepted for the reply, in order of
+     * preference. Codings without a registered
+     * {@link at.diamonddogs.net.ContentDecoder} are not advertised. Pass no
+     * codings to restore the default, transparent gzip handled by OkHttp.
+     *
+     * @param acceptEncodings the accepted content codings, e.g. "br", "gzip"
+     */
+    public void setAcceptEncodings(String... acceptEncodings) {
+        this.acceptEncodings = acceptEncodings == null || acceptEncodings.length == 0 ? null
+                : Arrays.asList(acceptEncodings);
+    }
+
+    @SuppressWarnings("javadoc")
+    public String getHostGroup() {
+        return hostGroup;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setHostGroup(String hostGroup) {
+        this.hostGroup = hostGroup;
+    }
+
+    @SuppressWarnings("javadoc")
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Adds a header field that will be part of the coalescing key
+     *
+     * @param field the name of the header field
+     */
+    public void addVaryHeader(String field) {
+        if (varyHeaders == null) {
+            varyHeaders = new TreeSet<>();
+        }
+        varyHeaders.add(field);
+    }
+
+    @SuppressWarnings("javadoc")
+    public Set<String> getVaryHeaders() {
+        return varyHeaders;
+    }
+
     public void setGetStream(boolean getStream) {
         this.getStream = getStream;
     }
@@ -190,6 +397,38 @@ public class WebRequest implements Request {
         return getStream;
     }
 
+    @SuppressWarnings("javadoc")
+    public void setMapCachedFile(boolean mapCachedFile) {
+        this.mapCachedFile = mapCachedFile;
+    }
+
+    @SuppressWarnings("javadoc")
+    public boolean isMapCachedFile() {
+        return mapCachedFile;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setCachePriority(int cachePriority) {
+        this.cachePriority = cachePriority;
+        this.cachePrioritySet = true;
+    }
+
+    /**
+     * Returns the eviction priority of the cache file of this
+     * {@link WebRequest}. Unless a priority has been set, files cached
+     * {@link CacheInformation#CACHE_FOREVER} or used as offline cache are
+     * {@link CacheInformation#PRIORITY_PINNED}, so that the file cache budget
+     * never evicts them.
+     *
+     * @return the eviction priority
+     */
+    public int getCachePriority() {
+        if (!cachePrioritySet && (cacheTime == CacheInformation.CACHE_FOREVER || useOfflineCache)) {
+            return CacheInformation.PRIORITY_PINNED;
+        }
+        return cachePriority;
+    }
+
     @SuppressWarnings("javadoc")
     public boolean isCancelled() {
         return isCancelled;
@@ -274,6 +513,17 @@ public class WebRequest implements Request {
         this.url = url;
     }
 
+    /**
+     * Returns the key under which the result of this {@link WebRequest} is
+     * kept in the memory cache of {@link CacheManager}. Subclasses whose
+     * result depends on more than the url should override this method.
+     *
+     * @return the memory cache key, the url by default
+     */
+    public String getMemoryCacheKey() {
+        return url == null ? null : url.toString();
+    }
+
     @SuppressWarnings("javadoc")
     public int getReadTimeout() {
         return readTimeout;
@@ -367,6 +617,22 @@ public class WebRequest implements Request {
         this.numberOfRetries = numberOfRetries;
     }
 
+    @SuppressWarnings("javadoc")
+    public boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Allows retries of this {@link WebRequest} even if its type is not
+     * idempotent. Only enable this if the server handles duplicate requests
+     * safely.
+     *
+     * @param retryNonIdempotent <code>true</code> to allow retries of POST requests
+     */
+    public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
     @SuppressWarnings("javadoc")
     public int getRetryInterval() {
         return retryInterval;
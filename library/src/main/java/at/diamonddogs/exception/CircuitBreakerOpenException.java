@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.exception;
+
+import at.diamonddogs.net.CircuitBreaker;
+
+/**
+ * Thrown by {@link at.diamonddogs.net.WebClient}s if a request fails fast
+ * because the {@link CircuitBreaker} of its host is open
+ */
+public class CircuitBreakerOpenException extends WebClientException {
+
+	private static final long serialVersionUID = -3748813577105946224L;
+
+	/**
+	 * Default Constructor
+	 */
+	public CircuitBreakerOpenException() {
+		super();
+	}
+
+	/**
+	 * @param detailMessage
+	 * @param throwable
+	 */
+	public CircuitBreakerOpenException(String detailMessage, Throwable throwable) {
+		super(detailMessage, throwable);
+	}
+
+	/**
+	 * 
+	 * @param detailMessage
+	 */
+	public CircuitBreakerOpenException(String detailMessage) {
+		super(detailMessage);
+	}
+
+	/**
+	 * 
+	 * @param throwable
+	 */
+	public CircuitBreakerOpenException(Throwable throwable) {
+		super(throwable);
+	}
+
+}
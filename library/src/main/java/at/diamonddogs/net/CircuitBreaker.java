@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import android.os.SystemClock;
+
+/**
+ * A circuit breaker guarding a single host. The breaker opens after a number
+ * of consecutive failures, requests are rejected while it is open. Once the
+ * open duration has elapsed, a limited number of trial requests is let
+ * through (half open). The breaker closes if the trial requests succeed and
+ * opens again if one of them fails.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of a {@link CircuitBreaker}
+     */
+    public enum State {
+        /**
+         * Requests pass, failures are counted
+         */
+        CLOSED,
+        /**
+         * Requests are rejected
+         */
+        OPEN,
+        /**
+         * A limited number of trial requests pass
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Notified whenever the {@link State} of a {@link CircuitBreaker} changes
+     */
+    public interface StateListener {
+        /**
+         * Called after the {@link State} of a {@link CircuitBreaker} has
+         * changed. Called on the thread that caused the change, don't block.
+         *
+         * @param host     the host guarded by the {@link CircuitBreaker}
+         * @param oldState the previous {@link State}
+         * @param newState the current {@link State}
+         */
+        void onStateChanged(String host, State oldState, State newState);
+    }
+
+    /**
+     * The time source of a {@link CircuitBreaker}
+     */
+    public interface Clock {
+        /**
+         * Returns a monotonic time
+         *
+         * @return the time in ms
+         */
+        long now();
+    }
+
+    /**
+     * The default {@link Clock}, uses {@link SystemClock#elapsedRealtime()}
+     */
+    public static final Clock ELAPSED_REALTIME = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openDuration;
+    private final int halfOpenMaxCalls;
+    private final StateListener stateListener;
+    private final Clock clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private int halfOpenCalls = 0;
+    private int halfOpenSuccesses = 0;
+    private long openedAt = 0;
+    private long rejectedCount = 0;
+    private long openCount = 0;
+
+    /**
+     * Creates a {@link CircuitBreaker}
+     *
+     * @param host             the host guarded by this {@link CircuitBreaker}
+     * @param failureThreshold the number of consecutive failures that open the breaker
+     * @param openDuration     the time in ms the breaker stays open before trial requests are let through
+     * @param halfOpenMaxCalls the number of trial requests, all of them need to succeed to close the breaker
+     * @param stateListener    notified on state changes, may be <code>null</code>
+     */
+    public CircuitBreaker(String host, int failureThreshold, long openDuration, int halfOpenMaxCalls,
+                          StateListener stateListener) {
+        this(host, failureThreshold, openDuration, halfOpenMaxCalls, stateListener, ELAPSED_REALTIME);
+    }
+
+    /**
+     * Creates a {@link CircuitBreaker}
+     *
+     * @param host             the host guarded by this {@link CircuitBreaker}
+     * @param failureThreshold the number of consecutive failures that open the breaker
+     * @param openDuration     the time in ms the breaker stays open before trial requests are let through
+     * @param halfOpenMaxCalls the number of trial requests, all of them need to succeed to close the breaker
+     * @param stateListener    notified on state changes, may be <code>null</code>
+     * @param clock            the {@link Clock} the open duration is measured with
+     */
+    public CircuitBreaker(String host, int failureThreshold, long openDuration, int halfOpenMaxCalls,
+                          StateListener stateListener, Clock clock) {
+        if (failureThreshold < 1 || halfOpenMaxCalls < 1) {
+            throw new IllegalArgumentException("failureThreshold and halfOpenMaxCalls must be > 0");
+        }
+        this.host = host;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenMaxCalls = halfOpenMaxCalls;
+        this.stateListener = stateListener;
+        this.clock = clock;
+    }
+
+    /**
+     * Checks if a request may pass. Must be followed by a call to
+     * {@link CircuitBreaker#onSuccess()}, {@link CircuitBreaker#onFailure()}
+     * or {@link CircuitBreaker#onIgnored()} if it returns <code>true</code>.
+     *
+     * @return <code>true</code> if the request may pass, <code>false</code> if it should fail fast
+     */
+    public boolean tryAcquire() {
+        State oldState;
+        synchronized (this) {
+            oldState = state;
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.OPEN) {
+                if (clock.now() - openedAt < openDuration) {
+                    rejectedCount++;
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                halfOpenCalls = 0;
+                halfOpenSuccesses = 0;
+            }
+            if (halfOpenCalls >= halfOpenMaxCalls) {
+                rejectedCount++;
+                return false;
+            }
+            halfOpenCalls++;
+        }
+        notifyStateChanged(oldState, State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Records a successful request
+     */
+    public void onSuccess() {
+        State oldState;
+        synchronized (this) {
+            oldState = state;
+            consecutiveFailures = 0;
+            if (state != State.HALF_OPEN || ++halfOpenSuccesses < halfOpenMaxCalls) {
+                return;
+            }
+            state = State.CLOSED;
+        }
+        notifyStateChanged(oldState, State.CLOSED);
+    }
+
+    /**
+     * Records a failed request
+     */
+    public void onFailure() {
+        State oldState;
+        synchronized (this) {
+            oldState = state;
+            if (state == State.OPEN) {
+                return;
+            }
+            if (state == State.CLOSED && ++consecutiveFailures < failureThreshold) {
+                return;
+            }
+            state = State.OPEN;
+            openedAt = clock.now();
+            consecutiveFailures = 0;
+            openCount++;
+        }
+        notifyStateChanged(oldState, State.OPEN);
+    }
+
+    /**
+     * Records a request whose outcome says nothing about the host (e.g. a
+     * cancelled request), returns the trial permit of a half open breaker
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN && halfOpenCalls > 0) {
+            halfOpenCalls--;
+        }
+    }
+
+    /**
+     * Checks if requests are currently rejected, does not change the
+     * {@link State} of the breaker
+     *
+     * @return <code>true</code> if the breaker is open and the open duration has not yet elapsed
+     */
+    public synchronized boolean isRejecting() {
+        return state == State.OPEN && clock.now() - openedAt < openDuration;
+    }
+
+    /**
+     * Closes the breaker and resets all failure counters
+     */
+    public void reset() {
+        State oldState;
+        synchronized (this) {
+            oldState = state;
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+        }
+        notifyStateChanged(oldState, State.CLOSED);
+    }
+
+    private void notifyStateChanged(State oldState, State newState) {
+        if (oldState != newState && stateListener != null) {
+            stateListener.onStateChanged(host, oldState, newState);
+        }
+    }
+
+    @SuppressWarnings("javadoc")
+    public String getHost() {
+        return host;
+    }
+
+    @SuppressWarnings("javadoc")
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of requests that have been rejected by this breaker
+     *
+     * @return the rejected request count
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Returns how often this breaker has opened
+     *
+     * @return the open count
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker [host=" + host + ", state=" + state + ", consecutiveFailures=" + consecutiveFailures
+                + ", opened=" + openCount + ", rejected=" + rejectedCount + "]";
+    }
+}
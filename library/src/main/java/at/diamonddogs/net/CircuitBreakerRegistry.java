@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.net.CircuitBreaker.State;
+import at.diamonddogs.util.Log;
+
+/**
+ * Holds one {@link CircuitBreaker} per host. The thresholds set on this
+ * registry apply to {@link CircuitBreaker}s created afterwards, call
+ * {@link CircuitBreakerRegistry#clear()} to apply them to all hosts.
+ */
+public class CircuitBreakerRegistry implements CircuitBreaker.StateListener {
+
+    private static final String TAG = CircuitBreakerRegistry.class.getSimpleName();
+
+    /**
+     * The default number of consecutive failures that open a {@link CircuitBreaker}
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The default time in ms a {@link CircuitBreaker} stays open
+     */
+    public static final long DEFAULT_OPEN_DURATION = 30000;
+
+    /**
+     * The default number of trial requests of a half open {@link CircuitBreaker}
+     */
+    public static final int DEFAULT_HALF_OPEN_MAX_CALLS = 1;
+
+    private static CircuitBreakerRegistry INSTANCE = null;
+
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final List<CircuitBreaker.StateListener> stateListeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean enabled = true;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openDuration = DEFAULT_OPEN_DURATION;
+    private volatile int halfOpenMaxCalls = DEFAULT_HALF_OPEN_MAX_CALLS;
+
+    private CircuitBreakerRegistry() {
+    }
+
+    /**
+     * Singleton getInstance() method
+     *
+     * @return the process wide {@link CircuitBreakerRegistry}
+     */
+    public synchronized static CircuitBreakerRegistry getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new CircuitBreakerRegistry();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the {@link CircuitBreaker} guarding the host of a {@link WebRequest}
+     *
+     * @param webRequest the {@link WebRequest}
+     * @return the {@link CircuitBreaker} or <code>null</code> if circuit
+     * breaking is disabled or the {@link WebRequest} has no host
+     */
+    public CircuitBreaker getCircuitBreaker(WebRequest webRequest) {
+        if (!enabled || webRequest.getUrl() == null || webRequest.getUrl().getHost() == null) {
+            return null;
+        }
+        String host = webRequest.getUrl().getHost();
+        CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+        if (circuitBreaker == null) {
+            synchronized (circuitBreakers) {
+                circuitBreaker = circuitBreakers.get(host);
+                if (circuitBreaker == null) {
+                    circuitBreaker = new CircuitBreaker(host, failureThreshold, openDuration, halfOpenMaxCalls, this);
+                    circuitBreakers.put(host, circuitBreaker);
+                }
+            }
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * Checks if the {@link CircuitBreaker} of a {@link WebRequest}'s host
+     * currently rejects requests
+     *
+     * @param webRequest the {@link WebRequest}
+     * @return <code>true</code> if the {@link WebRequest} would fail fast
+     */
+    public boolean isRejecting(WebRequest webRequest) {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(webRequest);
+        return circuitBreaker != null && circuitBreaker.isRejecting();
+    }
+
+    /**
+     * Returns a snapshot of the {@link State} of all known hosts
+     *
+     * @return a map of host to {@link State}
+     */
+    public Map<String, State> getStates() {
+        Map<String, State> ret = new HashMap<>();
+        for (CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            ret.put(circuitBreaker.getHost(), circuitBreaker.getState());
+        }
+        return ret;
+    }
+
+    /**
+     * Returns all {@link CircuitBreaker}s created so far
+     *
+     * @return a map of host to {@link CircuitBreaker}
+     */
+    public Map<String, CircuitBreaker> getCircuitBreakers() {
+        return new HashMap<>(circuitBreakers);
+    }
+
+    /**
+     * Drops all {@link CircuitBreaker}s, so that all hosts start closed
+     */
+    public void clear() {
+        circuitBreakers.clear();
+    }
+
+    /**
+     * Adds a {@link CircuitBreaker.StateListener} that is notified about state
+     * changes of all hosts
+     *
+     * @param stateListener the {@link CircuitBreaker.StateListener} to add
+     */
+    public void addStateListener(CircuitBreaker.StateListener stateListener) {
+        stateListeners.add(stateListener);
+    }
+
+    /**
+     * Removes a {@link CircuitBreaker.StateListener}
+     *
+     * @param stateListener the {@link CircuitBreaker.StateListener} to remove
+     */
+    public void removeStateListener(CircuitBreaker.StateListener stateListener) {
+        stateListeners.remove(stateListener);
+    }
+
+    @Override
+    public void onStateChanged(String host, State oldState, State newState) {
+        Log.i(TAG, "circuit of " + host + " changed from " + oldState + " to " + newState);
+        for (CircuitBreaker.StateListener stateListener : stateListeners) {
+            try {
+                stateListener.onStateChanged(host, oldState, newState);
+            } catch (Throwable tr) {
+                Log.w(TAG, "StateListener failed", tr);
+            }
+        }
+    }
+
+    @SuppressWarnings("javadoc")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @SuppressWarnings("javadoc")
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    @SuppressWarnings("javadoc")
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    @SuppressWarnings("javadoc")
+    public int getHalfOpenMaxCalls() {
+        return halfOpenMaxCalls;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setHalfOpenMaxCalls(int halfOpenMaxCalls) {
+        this.halfOpenMaxCalls = halfOpenMaxCalls;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * A network {@link Interceptor} that records how connections of the shared
+ * connection pool are used, per host: how many connections have been opened,
+ * how many requests reused an existing connection and how many streams have
+ * been carried by a single connection (HTTP/2 multiplexes several streams
+ * over one connection).
+ */
+public class ConnectionStatistics implements Interceptor {
+
+    /**
+     * Connections are only weakly referenced, the pool decides when they die
+     */
+    private final Map<Connection, ConnectionInfo> connections = new WeakHashMap<>();
+
+    private final Map<String, HostCounter> hosts = new HashMap<>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Connection connection = chain.connection();
+        if (connection == null) {
+            return chain.proceed(chain.request());
+        }
+        String host = chain.request().url().host();
+        ConnectionInfo info;
+        synchronized (this) {
+            HostCounter counter = hosts.get(host);
+            if (counter == null) {
+                counter = new HostCounter();
+                hosts.put(host, counter);
+            }
+            info = connections.get(connection);
+            if (info == null) {
+                info = new ConnectionInfo();
+                connections.put(connection, info);
+                counter.newConnections++;
+                if (connection.protocol() == Protocol.HTTP_2) {
+                    counter.http2Connections++;
+                }
+            } else {
+                counter.reusedConnections++;
+            }
+            counter.requests++;
+            info.streams++;
+            info.activeStreams++;
+            counter.maxStreamsPerConnection = Math.max(counter.maxStreamsPerConnection, info.streams);
+            counter.maxConcurrentStreams = Math.max(counter.maxConcurrentStreams, info.activeStreams);
+        }
+        try {
+            return chain.proceed(chain.request());
+        } finally {
+            synchronized (this) {
+                info.activeStreams--;
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics of all hosts that have been
+     * contacted
+     *
+     * @return a map of host to {@link HostConnectionStatistics}
+     */
+    public synchronized Map<String, HostConnectionStatistics> getHostStatistics() {
+        Map<String, HostConnectionStatistics> ret = new HashMap<>();
+        for (Map.Entry<String, HostCounter> entry : hosts.entrySet()) {
+            ret.put(entry.getKey(), new HostConnectionStatistics(entry.getKey(), entry.getValue()));
+        }
+        return ret;
+    }
+
+    /**
+     * Forgets all recorded statistics
+     */
+    public synchronized void reset() {
+        hosts.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionStatistics " + getHostStatistics().values();
+    }
+
+    /**
+     * Connection statistics of a single host
+     */
+    public static class HostConnectionStatistics {
+        private final String host;
+        private final long newConnections;
+        private final long reusedConnections;
+        private final long http2Connections;
+        private final long requests;
+        private final long maxStreamsPerConnection;
+        private final long maxConcurrentStreams;
+
+        private HostConnectionStatistics(String host, HostCounter counter) {
+            this.host = host;
+            this.newConnections = counter.newConnections;
+            this.reusedConnections = counter.reusedConnections;
+            this.http2Connections = counter.http2Connections;
+            this.requests = counter.requests;
+            this.maxStreamsPerConnection = counter.maxStreamsPerConnection;
+            this.maxConcurrentStreams = counter.maxConcurrentStreams;
+        }
+
+        @SuppressWarnings("javadoc")
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Returns the number of connections that have been opened
+         *
+         * @return the number of new connections
+         */
+        public long getNewConnections() {
+            return newConnections;
+        }
+
+        /**
+         * Returns the number of requests that have been sent over an already
+         * established connection
+         *
+         * @return the number of reused connections
+         */
+        public long getReusedConnections() {
+            return reusedConnections;
+        }
+
+        /**
+         * Returns the number of opened connections that use HTTP/2
+         *
+         * @return the number of HTTP/2 connections
+         */
+        public long getHttp2Connections() {
+            return http2Connections;
+        }
+
+        @SuppressWarnings("javadoc")
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Returns the average number of streams (requests) carried by a
+         * connection
+         *
+         * @return the average number of streams per connection
+         */
+        public double getAverageStreamsPerConnection() {
+            return newConnections == 0 ? 0 : (double) requests / newConnections;
+        }
+
+        /**
+         * Returns the largest number of streams (requests) carried by a single
+         * connection
+         *
+         * @return the maximum number of streams per connection
+         */
+        public long getMaxStreamsPerConnection() {
+            return maxStreamsPerConnection;
+        }
+
+        /**
+         * Returns the largest number of streams that have been open on a
+         * single connection at the same time
+         *
+         * @return the maximum number of concurrent streams
+         */
+        public long getMaxConcurrentStreams() {
+            return maxConcurrentStreams;
+        }
+
+        @Override
+        public String toString() {
+            return "HostConnectionStatistics [host=" + host + ", new=" + newConnections + ", reused=" + reusedConnections
+                    + ", http2=" + http2Connections + ", requests=" + requests + ", maxStreamsPerConnection="
+                    + maxStreamsPerConnection + ", maxConcurrentStreams=" + maxConcurrentStreams + "]";
+        }
+    }
+
+    private static final class HostCounter {
+        private long newConnections;
+        private long reusedConnections;
+        private long http2Connections;
+        private long requests;
+        private long maxStreamsPerConnection;
+        private long maxConcurrentStreams;
+    }
+
+    private static final class ConnectionInfo {
+        private long streams;
+        private long activeStreams;
+    }
+}
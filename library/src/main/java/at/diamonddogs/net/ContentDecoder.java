@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a single content coding (e.g. gzip), see
+ * {@link ContentDecoderRegistry} on how to add support for further codings
+ * like br or zstd.
+ */
+public interface ContentDecoder {
+
+    /**
+     * Returns the content coding handled by this decoder, as used in the
+     * Content-Encoding and Accept-Encoding headers
+     *
+     * @return the lower case name of the content coding, e.g. "gzip"
+     */
+    String getEncoding();
+
+    /**
+     * Wraps an encoded {@link InputStream}
+     *
+     * @param inputStream the encoded {@link InputStream}
+     * @return an {@link InputStream} providing the decoded data
+     * @throws IOException if the stream cannot be decoded
+     */
+    InputStream decode(InputStream inputStream) throws IOException;
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Process wide registry of {@link ContentDecoder}s used by {@link WebClient}s
+ * to decode replies whose Content-Encoding has been negotiated by the app
+ * (see {@link at.diamonddogs.data.dataobjects.WebRequest#setAcceptEncodings(String...)}).
+ * gzip and deflate are supported out of the box, further codings (e.g. br or
+ * zstd, which require native or third party decoders) can be added using
+ * {@link ContentDecoderRegistry#register(ContentDecoder)}.
+ */
+public class ContentDecoderRegistry {
+
+    private static ContentDecoderRegistry INSTANCE = null;
+
+    private final Map<String, ContentDecoder> decoders = new ConcurrentHashMap<>();
+
+    private ContentDecoderRegistry() {
+        register(new GzipDecoder("gzip"));
+        register(new GzipDecoder("x-gzip"));
+        register(new DeflateDecoder());
+    }
+
+    /**
+     * Singleton getInstance() method
+     *
+     * @return a singleton instance of {@link ContentDecoderRegistry}
+     */
+    public synchronized static ContentDecoderRegistry getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new ContentDecoderRegistry();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a {@link ContentDecoder}, replaces any decoder registered for
+     * the same coding
+     *
+     * @param decoder the {@link ContentDecoder} to register
+     */
+    public void register(ContentDecoder decoder) {
+        decoders.put(normalize(decoder.getEncoding()), decoder);
+    }
+
+    /**
+     * Removes the {@link ContentDecoder} of a content coding
+     *
+     * @param encoding the content coding
+     */
+    public void unregister(String encoding) {
+        decoders.remove(normalize(encoding));
+    }
+
+    /**
+     * Returns the {@link ContentDecoder} of a content coding
+     *
+     * @param encoding the content coding
+     * @return the {@link ContentDecoder} or <code>null</code> if the coding is
+     * not supported
+     */
+    public ContentDecoder getDecoder(String encoding) {
+        return encoding == null ? null : decoders.get(normalize(encoding));
+    }
+
+    /**
+     * Checks if a content coding can be decoded, identity is always supported
+     *
+     * @param encoding the content coding
+     * @return <code>true</code> if it can, <code>false</code> otherwise
+     */
+    public boolean isSupported(String encoding) {
+        return "identity".equals(normalize(encoding)) || getDecoder(encoding) != null;
+    }
+
+    /**
+     * Builds the value of an Accept-Encoding header, preserving the order of
+     * the requested codings and dropping codings that cannot be decoded
+     *
+     * @param encodings the requested content codings, in order of preference
+     * @return the header value, "identity" if none of the codings is supported
+     */
+    public String getAcceptEncoding(List<String> encodings) {
+        StringBuilder sb = new StringBuilder();
+        for (String encoding : encodings) {
+            if (isSupported(encoding)) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(normalize(encoding));
+            }
+        }
+        return sb.length() == 0 ? "identity" : sb.toString();
+    }
+
+    /**
+     * Decodes a stream according to the value of its Content-Encoding header.
+     * Codings are undone in reverse order of their application.
+     *
+     * @param inputStream     the encoded {@link InputStream}
+     * @param contentEncoding the value(s) of the Content-Encoding header
+     * @return the decoded {@link InputStream}
+     * @throws IOException if a coding is not supported or decoding fails
+     */
+    public InputStream decode(InputStream inputStream, List<String> contentEncoding) throws IOException {
+        List<String> codings = new ArrayList<>();
+        for (String value : contentEncoding) {
+            for (String coding : value.split(",")) {
+                coding = normalize(coding);
+                if (coding.length() > 0 && !"identity".equals(coding)) {
+                    codings.add(coding);
+                }
+            }
+        }
+        InputStream ret = inputStream;
+        for (int i = codings.size() - 1; i >= 0; i--) {
+            ContentDecoder decoder = getDecoder(codings.get(i));
+            if (decoder == null) {
+                throw new IOException("Unsupported Content-Encoding: " + codings.get(i));
+            }
+            ret = decoder.decode(ret);
+        }
+        return ret;
+    }
+
+    private static String normalize(String encoding) {
+        return encoding == null ? "" : encoding.trim().toLowerCase(Locale.US);
+    }
+
+    private static final class GzipDecoder implements ContentDecoder {
+        private final String encoding;
+
+        private GzipDecoder(String encoding) {
+            this.encoding = encoding;
+        }
+
+        @Override
+        public String getEncoding() {
+            return encoding;
+        }
+
+        @Override
+        public InputStream decode(InputStream inputStream) throws IOException {
+            return new GZIPInputStream(inputStream);
+        }
+    }
+
+    /**
+     * deflate is supposed to be zlib wrapped, but some servers send raw
+     * deflate data, both variants are accepted
+     */
+    private static final class DeflateDecoder implements ContentDecoder {
+        @Override
+        public String getEncoding() {
+            return "deflate";
+        }
+
+        @Override
+        public InputStream decode(InputStream inputStream) throws IOException {
+            BufferedInputStream in = new BufferedInputStream(inputStream);
+            in.mark(2);
+            int cmf = in.read();
+            int flg = in.read();
+            in.reset();
+            boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            return new InflaterInputStream(in, new Inflater(!zlib));
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.net.ssl.SSLHelper;
+import at.diamonddogs.util.Log;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Process wide registry of {@link OkHttpClient}s. All clients handed out by
+ * this registry are derived from a single root client and therefore share one
+ * {@link ConnectionPool} and one {@link Dispatcher}, which allows keep-alive
+ * and HTTP/2 connection reuse across {@link WebClientOkHttpClient} instances.
+ * Derived clients are cached by their effective configuration (timeouts,
+ * redirect policy and SSL factory).
+ */
+public class OkHttpClientRegistry {
+
+    private static final String TAG = OkHttpClientRegistry.class.getSimpleName();
+
+    private static OkHttpClientRegistry INSTANCE = null;
+
+    /**
+     * Timeout used by connections opened by {@link OkHttpClientRegistry#prewarm(String)}
+     */
+    private static final int PREWARM_TIMEOUT = 30000;
+
+    /**
+     * The root client all other clients are derived from
+     */
+    private final OkHttpClient rootClient;
+
+    /**
+     * Derived clients, keyed by their configuration
+     */
+    private final Map<ClientKey, OkHttpClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Records connection reuse of all clients
+     */
+    private final ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private OkHttpClientRegistry() {
+        rootClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool())
+                .dispatcher(new Dispatcher())
+                .addNetworkInterceptor(connectionStatistics)
+                .build();
+    }
+
+    /**
+     * Singleton getInstance() method
+     *
+     * @return a singleton instance of {@link OkHttpClientRegistry}
+     */
+    public synchronized static OkHttpClientRegistry getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new OkHttpClientRegistry();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a client that matches the effective configuration of the given
+     * {@link WebRequest}, the SSL factory is taken from {@link SSLHelper}
+     *
+     * @param webRequest the {@link WebRequest} to obtain a client for
+     * @return a shared {@link OkHttpClient}
+     */
+    public OkHttpClient getClient(WebRequest webRequest) {
+        return getClient(webRequest.getConnectionTimeout(), webRequest.getConnectionTimeout(),
+                webRequest.isFollowRedirects(), SSLHelper.getInstance().SSL_FACTORY_JAVA);
+    }
+
+    /**
+     * Returns a client for the given configuration, creates one if no matching
+     * client exists yet.
+     *
+     * @param connectTimeout   the connect timeout in ms
+     * @param readTimeout      the read timeout in ms
+     * @param followRedirects  redirect policy
+     * @param sslSocketFactory an optional {@link SSLSocketFactory}, may be <code>null</code>
+     * @return a shared {@link OkHttpClient}
+     */
+    public OkHttpClient getClient(int connectTimeout, int readTimeout, boolean followRedirects,
+                                  SSLSocketFactory sslSocketFactory) {
+        ClientKey key = new ClientKey(connectTimeout, readTimeout, followRedirects, sslSocketFactory);
+        OkHttpClient client = clients.get(key);
+        if (client != null) {
+            hitCount.incrementAndGet();
+            return client;
+        }
+        synchronized (clients) {
+            client = clients.get(key);
+            if (client != null) {
+                hitCount.incrementAndGet();
+                return client;
+            }
+            missCount.incrementAndGet();
+            OkHttpClient.Builder builder = rootClient.newBuilder()
+                    .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                    .followRedirects(followRedirects);
+            if (sslSocketFactory != null) {
+                builder.sslSocketFactory(sslSocketFactory);
+            }
+            client = builder.build();
+            clients.put(key, client);
+            Log.d(TAG, "created client for " + key + ", clients: " + clients.size());
+            return client;
+        }
+    }
+
+    /**
+     * Opens a connection to the host of url ahead of time, so that later
+     * requests to that host skip DNS lookup, TCP and TLS handshakes and
+     * HTTP/2 negotiation. A HEAD request is sent asynchronously, the
+     * connection is kept in the shared pool afterwards. Connections are only
+     * reused by requests with the same SSL configuration, therefore
+     * {@link SSLHelper} should be initialised before calling this method.
+     *
+     * @param url the url to send the HEAD request to, usually the root of a host
+     */
+    public void prewarm(final String url) {
+        Request request;
+        try {
+            request = new Request.Builder().url(url).head().build();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "invalid prewarm url: " + url, e);
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        OkHttpClient client = getClient(PREWARM_TIMEOUT, PREWARM_TIMEOUT, false, SSLHelper.getInstance().SSL_FACTORY_JAVA);
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.w(TAG, "could not prewarm connection to " + url, e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                response.close();
+                Log.d(TAG, "prewarmed connection to " + url + " (" + response.protocol() + ") in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+        });
+    }
+
+    /**
+     * Returns the {@link ConnectionStatistics} of all clients handed out by
+     * this registry
+     *
+     * @return the {@link ConnectionStatistics}
+     */
+    public ConnectionStatistics getConnectionStatistics() {
+        return connectionStatistics;
+    }
+
+    /**
+     * Returns the root client, this client uses OkHttp's default configuration
+     *
+     * @return the root {@link OkHttpClient}
+     */
+    public OkHttpClient getRootClient() {
+        return rootClient;
+    }
+
+    /**
+     * Returns the number of times a cached client could be handed out
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of times a new client had to be derived
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the total number of connections in the shared pool
+     *
+     * @return the connection count
+     */
+    public int getConnectionCount() {
+        return rootClient.connectionPool().connectionCount();
+    }
+
+    /**
+     * Returns the number of idle connections in the shared pool
+     *
+     * @return the idle connection count
+     */
+    public int getIdleConnectionCount() {
+        return rootClient.connectionPool().idleConnectionCount();
+    }
+
+    /**
+     * Closes all idle connections and forgets all derived clients. Clients
+     * that have already been handed out remain usable.
+     */
+    public void evictAll() {
+        clients.clear();
+        rootClient.connectionPool().evictAll();
+    }
+
+    @Override
+    public String toString() {
+        return "OkHttpClientRegistry [clients=" + clients.size() + ", hits=" + hitCount.get() + ", misses="
+                + missCount.get() + ", connections=" + getConnectionCount() + ", idle=" + getIdleConnectionCount() + "]";
+    }
+
+    private static final class ClientKey {
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final boolean followRedirects;
+        private final SSLSocketFactory sslSocketFactory;
+
+        private ClientKey(int connectTimeout, int readTimeout, boolean followRedirects, SSLSocketFactory sslSocketFactory) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.followRedirects = followRedirects;
+            this.sslSocketFactory = sslSocketFactory;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return connectTimeout == other.connectTimeout && readTimeout == other.readTimeout
+                    && followRedirects == other.followRedirects && sslSocketFactory == other.sslSocketFactory;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = connectTimeout;
+            result = 31 * result + readTimeout;
+            result = 31 * result + (followRedirects ? 1 : 0);
+            result = 31 * result + System.identityHashCode(sslSocketFactory);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "ClientKey [connectTimeout=" + connectTimeout + ", readTimeout=" + readTimeout + ", followRedirects="
+                    + followRedirects + ", sslSocketFactory=" + sslSocketFactory + "]";
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+/**
+ * A token bucket that limits retries to a share of the overall traffic. Every
+ * first attempt deposits retryRatio tokens, every retry withdraws one token.
+ * While most requests succeed the bucket stays full, when a large share of
+ * requests fails (e.g. during a backend brownout) the bucket runs dry and
+ * retries stop until enough new requests have been sent.
+ */
+public class RetryBudget {
+
+    private final double retryRatio;
+    private final double maxTokens;
+    private double tokens;
+
+    private long deniedCount = 0;
+    private long grantedCount = 0;
+
+    /**
+     * Creates a {@link RetryBudget}
+     *
+     * @param retryRatio the number of tokens deposited per first attempt, e.g.
+     *                   0.1 allows retries for 10% of the traffic
+     * @param maxTokens  the capacity of the bucket, allows short bursts of
+     *                   retries
+     */
+    public RetryBudget(double retryRatio, double maxTokens) {
+        if (retryRatio < 0 || maxTokens < 1) {
+            throw new IllegalArgumentException("retryRatio must be >= 0 and maxTokens must be >= 1");
+        }
+        this.retryRatio = retryRatio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * Records a first attempt
+     */
+    public synchronized void onRequest() {
+        tokens = Math.min(maxTokens, tokens + retryRatio);
+    }
+
+    /**
+     * Withdraws a token for a retry
+     *
+     * @return <code>true</code> if the retry may be executed,
+     * <code>false</code> if the budget is exhausted
+     */
+    public synchronized boolean tryAcquireRetry() {
+        if (tokens >= 1) {
+            tokens--;
+            grantedCount++;
+            return true;
+        }
+        deniedCount++;
+        return false;
+    }
+
+    @SuppressWarnings("javadoc")
+    public synchronized double getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Returns the number of retries that have been allowed
+     *
+     * @return the granted count
+     */
+    public synchronized long getGrantedCount() {
+        return grantedCount;
+    }
+
+    /**
+     * Returns the number of retries that have been denied because the budget
+     * was exhausted
+     *
+     * @return the denied count
+     */
+    public synchronized long getDeniedCount() {
+        return deniedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryBudget [tokens=" + tokens + ", granted=" + grantedCount + ", denied=" + deniedCount + "]";
+    }
+}
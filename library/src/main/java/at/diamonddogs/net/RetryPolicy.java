@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.util.Log;
+
+/**
+ * Decides if and when a failed {@link WebRequest} is retried:
+ * <ul>
+ * <li>only idempotent requests are retried (GET and HEAD, POST only if
+ * {@link WebRequest#isRetryNonIdempotent()} is set)</li>
+ * <li>requests are retried on I/O errors and on the http status codes 408,
+ * 429, 502, 503 and 504</li>
+ * <li>the delay grows exponentially from {@link WebRequest#getRetryInterval()}
+ * and is fully jittered, so that clients do not retry in lockstep</li>
+ * <li>a Retry-After header overrides the computed delay</li>
+ * <li>all retries are subject to a process wide {@link RetryBudget}</li>
+ * </ul>
+ */
+public class RetryPolicy {
+
+    private static final String TAG = RetryPolicy.class.getSimpleName();
+
+    /**
+     * The default upper bound of a single retry delay in ms
+     */
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    private static RetryPolicy INSTANCE = null;
+
+    private final Random random = new Random();
+    private volatile long maxDelay = DEFAULT_MAX_DELAY;
+    private volatile RetryBudget retryBudget = new RetryBudget(0.1, 10);
+
+    /**
+     * Singleton getInstance() method
+     *
+     * @return a singleton instance of {@link RetryPolicy}
+     */
+    public synchronized static RetryPolicy getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new RetryPolicy();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Records the first attempt of a {@link WebRequest}, refills the
+     * {@link RetryBudget}
+     *
+     * @param webRequest the {@link WebRequest}
+     */
+    public void onFirstAttempt(WebRequest webRequest) {
+        retryBudget.onRequest();
+    }
+
+    /**
+     * Checks if a {@link WebRequest} should be retried. Withdraws a token from
+     * the {@link RetryBudget} if it should.
+     *
+     * @param webRequest the {@link WebRequest}
+     * @param attempt    the number of attempts made so far, starting at 1
+     * @param reply      the {@link WebReply} of the last attempt, may be <code>null</code>
+     * @param throwable  the error of the last attempt, may be <code>null</code>
+     * @return <code>true</code> if the {@link WebRequest} should be retried
+     */
+    public boolean shouldRetry(WebRequest webRequest, int attempt, WebReply reply, Throwable throwable) {
+        if (webRequest.isCancelled() || attempt > webRequest.getNumberOfRetries()) {
+            return false;
+        }
+        if (!isIdempotent(webRequest)) {
+            return false;
+        }
+        if (throwable == null && (reply == null || !isRetryableStatus(reply.getHttpStatusCode()))) {
+            return false;
+        }
+        if (throwable instanceof Error) {
+            return false;
+        }
+        if (!retryBudget.tryAcquireRetry()) {
+            Log.w(TAG, "retry budget exhausted, not retrying " + webRequest.getUrl());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the delay before the next attempt
+     *
+     * @param webRequest the {@link WebRequest}
+     * @param attempt    the number of attempts made so far, starting at 1
+     * @param reply      the {@link WebReply} of the last attempt, may be <code>null</code>
+     * @return the delay in ms
+     */
+    public long getDelay(WebRequest webRequest, int attempt, WebReply reply) {
+        long retryAfter = getRetryAfter(reply);
+        if (retryAfter >= 0) {
+            return Math.min(retryAfter, maxDelay);
+        }
+        long base = Math.max(1, webRequest.getRetryInterval());
+        // base * 2^(attempt - 1), without overflowing
+        long ceiling = attempt > 30 ? maxDelay : Math.min(maxDelay, base << (attempt - 1));
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * Checks if the type of a {@link WebRequest} may be retried safely
+     *
+     * @param webRequest the {@link WebRequest}
+     * @return <code>true</code> if it may, <code>false</code> otherwise
+     */
+    protected boolean isIdempotent(WebRequest webRequest) {
+        switch (webRequest.getRequestType()) {
+            case GET:
+            case HEAD:
+                return true;
+            default:
+                return webRequest.isRetryNonIdempotent();
+        }
+    }
+
+    /**
+     * Checks if an http status code indicates a transient error
+     *
+     * @param httpStatusCode the http status code
+     * @return <code>true</code> if it does, <code>false</code> otherwise
+     */
+    protected boolean isRetryableStatus(int httpStatusCode) {
+        switch (httpStatusCode) {
+            case WebClient.HTTPStatus.HTTP_CLIENT_TIMEOUT:
+            case 429:
+            case WebClient.HTTPStatus.HTTP_BAD_GATEWAY:
+            case WebClient.HTTPStatus.HTTP_UNAVAILABLE:
+            case WebClient.HTTPStatus.HTTP_GATEWAY_TIMEOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private long getRetryAfter(WebReply reply) {
+        if (reply == null || reply.getReplyHeader() == null) {
+            return -1;
+        }
+        String value = null;
+        for (String name : reply.getReplyHeader().keySet()) {
+            if ("Retry-After".equalsIgnoreCase(name)) {
+                List<String> values = reply.getReplyHeader().get(name);
+                value = values == null || values.isEmpty() ? null : values.get(0).trim();
+            }
+        }
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                Date date = format.parse(value);
+                return Math.max(0, date.getTime() - System.currentTimeMillis());
+            } catch (ParseException pe) {
+                Log.w(TAG, "invalid Retry-After: " + value);
+                return -1;
+            }
+        }
+    }
+
+    @SuppressWarnings("javadoc")
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    @SuppressWarnings("javadoc")
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    @SuppressWarnings("javadoc")
+    public void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+}
@@ -22,24 +22,27 @@ import android.content.pm.PackageManager;
 
 import org.apache.commons.codec.binary.Hex;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 import at.diamonddogs.data.adapter.ReplyAdapter;
 import at.diamonddogs.data.adapter.ReplyAdapter.Status;
 import at.diamonddogs.data.dataobjects.TempFile;
 import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.util.BufferPool;
+import at.diamonddogs.util.CountingInputStream;
 import at.diamonddogs.util.Log;
+import at.diamonddogs.util.SegmentedBuffer;
 import okhttp3.Request;
 
 /**
@@ -51,9 +54,14 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
     private static final String TAG = WebClient.class.getSimpleName();
 
     /**
-     * The read buffer size
+     * Replies whose Content-Length does not exceed this value are read into
+     * an exactly sized array, larger replies are buffered in segments
      */
-    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_PRESIZED_LENGTH = 16 * 1024 * 1024;
+
+    private static final AtomicLong PRESIZED_REPLY_COUNT = new AtomicLong();
+    private static final AtomicLong SEGMENTED_REPLY_COUNT = new AtomicLong();
+    private static final AtomicLong BUFFERED_BYTES = new AtomicLong();
 
     /**
      * The {@link WebRequest} executed by this {@link WebClient}
@@ -71,6 +79,12 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
      */
     private DownloadProgressListener downloadProgressListener;
 
+    /**
+     * Schedules retries of async {@link WebRequest}s, if <code>null</code>
+     * the {@link WebClient} waits for retries on the calling thread
+     */
+    protected RetryScheduler retryScheduler;
+
     /**
      * Allow protocol redirects (http -> https / http -> https / etc)
      */
@@ -132,17 +146,21 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
             if (file.exists() && !tmp.isAppend()) {
                 file.delete();
             }
-            byte buffer[] = new byte[READ_BUFFER_SIZE];
-            fos = new FileOutputStream(file, tmp.isAppend());
-            int bytesRead = 0;
-            while ((bytesRead = dis.read(buffer)) != -1) {
-                if (!webRequest.isCancelled()) {
-                    fos.write(buffer, 0, bytesRead);
-                    publishDownloadProgress(bytesRead);
-                } else {
-                    Log.i(TAG, "Cancelled Download");
-                    break;
+            byte buffer[] = BufferPool.getInstance().acquire();
+            try {
+                fos = new FileOutputStream(file, tmp.isAppend());
+                int bytesRead = 0;
+                while ((bytesRead = dis.read(buffer)) != -1) {
+                    if (!webRequest.isCancelled()) {
+                        fos.write(buffer, 0, bytesRead);
+                        publishDownloadProgress(bytesRead);
+                    } else {
+                        Log.i(TAG, "Cancelled Download");
+                        break;
+                    }
                 }
+            } finally {
+                BufferPool.getInstance().release(buffer);
             }
             fos.flush();
             fos.close();
@@ -185,69 +203,181 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
             return reply;
         }
 
+        CountingInputStream encoded = new CountingInputStream(i);
+        InputStream toRead = decode(encoded, reply);
+
         if (webRequest.isGetStream()) {
-            if (isGzipEncoded(reply)) {
-                reply.setInputStream(new GZIPInputStream(i));
-            } else {
-                reply.setInputStream(i);
-            }
+            reply.setInputStream(toRead);
             return reply;
         }
 
-        byte buffer[] = new byte[READ_BUFFER_SIZE];
+        // the Content-Length refers to the encoded body
+        long contentLength = toRead == encoded ? getContentLength(reply) : -1;
+        if (contentLength >= 0 && contentLength <= MAX_PRESIZED_LENGTH) {
+            readPresized(toRead, reply, (int) contentLength);
+        } else {
+            readSegmented(toRead, reply);
+        }
+        reply.setCompressedLength(encoded.getCount());
+        reply.setUncompressedLength(reply.getDataLength());
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            toRead.close();
+        } catch (Exception e) {
+        }
+        return reply;
+    }
 
-        InputStream toRead;
-        if (isGzipEncoded(reply)) {
-            Log.i(TAG, "Reply is gzip encoded! " + reply);
-            try {
-                toRead = new GZIPInputStream(i);
-            } catch (Throwable tr) {
-                Log.w(TAG,
-                        "Problem with GZIP reply, using normal input stream! This issue can be caused by an empty " +
-								"body (i.e. HEAD request)",
-                        tr);
-                toRead = i;
-            }
-        } else {
-            toRead = i;
+    /**
+     * Decodes the body according to its Content-Encoding. Replies that have
+     * been decoded by the http implementation (e.g. OkHttp's transparent gzip)
+     * no longer carry a Content-Encoding header and are not decoded twice.
+     *
+     * @param i     the body as received
+     * @param reply the {@link WebReply}
+     * @return the decoded body or i if it is not encoded or cannot be decoded
+     */
+    private InputStream decode(InputStream i, WebReply reply) {
+        List<String> contentEncoding = getHeaderValues(reply, "Content-Encoding");
+        if (contentEncoding == null || contentEncoding.isEmpty()) {
+            return i;
+        }
+        try {
+            return ContentDecoderRegistry.getInstance().decode(i, contentEncoding);
+        } catch (Throwable tr) {
+            Log.w(TAG, "Problem decoding " + contentEncoding + " reply, using normal input stream! This issue can be " +
+                    "caused by an empty body (i.e. HEAD request)", tr);
+            return i;
+        }
+    }
+
+    /**
+     * Returns the value of the Accept-Encoding header that should be sent for
+     * the current {@link WebRequest}
+     *
+     * @return the header value or <code>null</code> if the http
+     * implementation should negotiate the content coding itself
+     * @see WebRequest#setAcceptEncodings(String...)
+     */
+    protected String getAcceptEncoding() {
+        List<String> acceptEncodings = webRequest.getAcceptEncodings();
+        if (acceptEncodings == null || acceptEncodings.isEmpty()) {
+            return null;
         }
+        return ContentDecoderRegistry.getInstance().getAcceptEncoding(acceptEncodings);
+    }
 
-        int bytesRead = 0;
-        while ((bytesRead = toRead.read(buffer)) != -1) {
+    /**
+     * Reads a body of known length directly into an exactly sized array
+     */
+    private void readPresized(InputStream toRead, WebReply reply, int contentLength) throws IOException {
+        byte[] data = new byte[contentLength];
+        int offset = 0;
+        int bytesRead;
+        while (offset < contentLength && (bytesRead = toRead.read(data, offset, contentLength - offset)) != -1) {
             if (!webRequest.isCancelled()) {
-                baos.write(buffer, 0, bytesRead);
+                offset += bytesRead;
                 publishDownloadProgress(bytesRead);
             } else {
                 break;
             }
         }
-        reply.setData(baos.toByteArray());
-        try {
-            baos.close();
-        } catch (Exception e) {
+        if (offset < contentLength) {
+            Log.w(TAG, "Reply shorter than its Content-Length: " + offset + " < " + contentLength);
+            data = Arrays.copyOf(data, offset);
+        }
+        PRESIZED_REPLY_COUNT.incrementAndGet();
+        BUFFERED_BYTES.addAndGet(offset);
+        reply.setData(data);
+    }
+
+    /**
+     * Reads a body of unknown length into pooled segments, the reply's data is
+     * only made contiguous if it is requested as an array
+     */
+    private void readSegmented(InputStream toRead, WebReply reply) throws IOException {
+        SegmentedBuffer body = new SegmentedBuffer(BufferPool.getInstance());
+        int bytesRead;
+        while ((bytesRead = body.readFrom(toRead)) != -1) {
+            if (!webRequest.isCancelled()) {
+                publishDownloadProgress(bytesRead);
+            } else {
+                break;
+            }
         }
+        SEGMENTED_REPLY_COUNT.incrementAndGet();
+        BUFFERED_BYTES.addAndGet(body.size());
+        reply.setBody(body);
+    }
 
+    /**
+     * Returns the value of the Content-Length header of a reply, header
+     * names are matched case insensitively
+     *
+     * @param reply the {@link WebReply}
+     * @return the content length or -1 if it is unknown
+     */
+    protected long getContentLength(WebReply reply) {
+        List<String> values = getHeaderValues(reply, "Content-Length");
+        if (values == null || values.isEmpty()) {
+            return -1;
+        }
         try {
-            toRead.close();
-        } catch (Exception e) {
+            return Long.parseLong(values.get(0).trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid Content-Length: " + values);
+            return -1;
         }
-        return reply;
     }
 
-    private boolean isGzipEncoded(WebReply reply) {
-        if (reply.getReplyHeader() == null || !reply.getReplyHeader().containsKey("Content-Encoding")) {
-            return false;
+    /**
+     * Returns the values of a reply header, header names are matched case
+     * insensitively
+     *
+     * @param reply the {@link WebReply}
+     * @param name  the name of the header
+     * @return the values or <code>null</code> if the header is not present
+     */
+    protected List<String> getHeaderValues(WebReply reply, String name) {
+        if (reply.getReplyHeader() == null) {
+            return null;
         }
-        List<String> encodings = reply.getReplyHeader().get("Content-Encoding");
-        for (String encoding : encodings) {
-            Log.d(TAG, "Encoding: " + encoding);
-            if (encoding.contains("gzip")) {
-                return true;
+        for (Map.Entry<String, List<String>> header : reply.getReplyHeader().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
             }
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * Returns the number of replies that have been read into an array sized
+     * by their Content-Length
+     *
+     * @return the number of presized replies
+     */
+    public static long getPresizedReplyCount() {
+        return PRESIZED_REPLY_COUNT.get();
+    }
+
+    /**
+     * Returns the number of replies of unknown length that have been buffered
+     * in pooled segments, see {@link BufferPool#getReuseCount()} for the
+     * number of saved allocations
+     *
+     * @return the number of segmented replies
+     */
+    public static long getSegmentedReplyCount() {
+        return SEGMENTED_REPLY_COUNT.get();
+    }
+
+    /**
+     * Returns the total number of reply bytes buffered in memory
+     *
+     * @return the buffered bytes
+     */
+    public static long getBufferedBytes() {
+        return BUFFERED_BYTES.get();
     }
 
     protected void publishFileSize(long size) {
@@ -313,6 +443,28 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
         this.webRequest = webRequest;
     }
 
+    @SuppressWarnings("javadoc")
+    public void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Interface that needs to be implemented by classes that are able to run
+     * a {@link WebClient} again after a delay, without blocking a thread while
+     * waiting
+     */
+    public interface RetryScheduler {
+        /**
+         * Schedules the next attempt of a {@link WebClient}
+         *
+         * @param webClient the {@link WebClient} to call again
+         * @param delayMs   the delay in ms
+         * @return <code>true</code> if the retry has been scheduled,
+         * <code>false</code> if the {@link WebClient} has to retry by itself
+         */
+        boolean scheduleRetry(WebClient webClient, long delayMs);
+    }
+
     /**
      * Interface that needs to be implemented by every class that wished to
      * receive {@link WebReply} notifications
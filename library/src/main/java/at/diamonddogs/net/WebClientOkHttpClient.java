@@ -24,19 +24,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.sql.Time;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import javax.net.ssl.SSLSocketFactory;
 
 import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.dataobjects.CacheInformation;
 import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.exception.CircuitBreakerOpenException;
 import at.diamonddogs.exception.WebClientException;
-import at.diamonddogs.net.ssl.SSLHelper;
 import at.diamonddogs.util.Log;
 import okhttp3.Headers;
 import okhttp3.MediaType;
@@ -49,7 +47,11 @@ import okhttp3.ResponseBody;
 public class WebClientOkHttpClient extends WebClient {
 
     private static final String TAG = WebClientOkHttpClient.class.getSimpleName();
-    private int retryCount = 0;
+
+    /**
+     * The number of attempts made so far, kept across rescheduled retries
+     */
+    private int attempt = 0;
 
     private OkHttpClient httpClient;
     private Request request;
@@ -62,62 +64,138 @@ public class WebClientOkHttpClient extends WebClient {
      */
     public WebClientOkHttpClient(Context context) {
         super(context);
-        httpClient = new OkHttpClient();
     }
 
+    /**
+     * Runs the {@link WebRequest}. Failed attempts are retried according to {@link RetryPolicy}. If a
+     * {@link RetryScheduler} has been set, retries are handed to it and this method returns
+     * <code>null</code>, the final reply is only delivered to the {@link WebClientReplyListener}. Requests to hosts
+     * whose {@link CircuitBreaker} is open fail fast with a {@link CircuitBreakerOpenException}.
+     *
+     * @return the {@link ReplyAdapter} or <code>null</code> if a retry has been scheduled
+     */
     @Override
     public ReplyAdapter call() {
-        ReplyAdapter listenerReply;
         if (webRequest == null) {
             throw new WebClientException("WebRequest must not be null!");
         }
-        retryCount = webRequest.getNumberOfRetries();
-        do {
+        RetryPolicy retryPolicy = RetryPolicy.getInstance();
+        while (true) {
+            attempt++;
+            if (attempt == 1) {
+                retryPolicy.onFirstAttempt(webRequest);
+            }
+            CircuitBreaker circuitBreaker = CircuitBreakerRegistry.getInstance().getCircuitBreaker(webRequest);
+            if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+                // fail fast, retrying against an open circuit is pointless
+                Log.d(TAG, "circuit open, failing fast: " + webRequest.getUrl());
+                ReplyAdapter listenerReply = createListenerReply(webRequest, null,
+                        new CircuitBreakerOpenException("circuit open for " + circuitBreaker.getHost()),
+                        ReplyAdapter.Status.FAILED);
+                if (webClientReplyListener != null) {
+                    webClientReplyListener.onWebReply(this, listenerReply);
+                }
+                return listenerReply;
+            }
+
+            ReplyAdapter listenerReply;
+            WebReply reply = null;
+            Throwable throwable = null;
             try {
-                retryCount--;
-                WebReply reply;
+                reply = execute();
+                listenerReply = createListenerReply(webRequest, reply, null, ReplyAdapter.Status.OK);
+            } catch (Throwable tr) {
+                closeResponse();
+                throwable = tr;
+                listenerReply = createListenerReply(webRequest, null, tr, ReplyAdapter.Status.FAILED);
+                Log.w(TAG, "Error running webrequest: " + webRequest.getUrl(), tr);
+            }
+            if (circuitBreaker != null) {
+                recordOutcome(circuitBreaker, reply, throwable);
+            }
 
-                Request.Builder requestBuilder = new Request.Builder()
-                        .url(webRequest.getUrl());
+            if (!retryPolicy.shouldRetry(webRequest, attempt, reply, throwable)) {
+                if (webClientReplyListener != null) {
+                    webClientReplyListener.onWebReply(this, listenerReply);
+                }
+                return listenerReply;
+            }
 
-                configureConnection(requestBuilder);
+            // the reply of this attempt is discarded
+            closeResponse();
+            long delay = retryPolicy.getDelay(webRequest, attempt, reply);
+            Log.d(TAG, "retrying " + webRequest.getUrl() + " in " + delay + "ms, attempt " + attempt);
+            if (retryScheduler != null && retryScheduler.scheduleRetry(this, delay)) {
+                return null;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Error in WebRequest: " + webRequest, e);
+                Thread.currentThread().interrupt();
+                if (webClientReplyListener != null) {
+                    webClientReplyListener.onWebReply(this, listenerReply);
+                }
+                return listenerReply;
+            }
+        }
+    }
 
-                request = requestBuilder.build();
-                response = httpClient.newCall(request).execute();
-                reply = runRequest();
+    /**
+     * Connection errors and server errors count as failures of the host,
+     * cancelled {@link WebRequest}s are not counted at all
+     */
+    private void recordOutcome(CircuitBreaker circuitBreaker, WebReply reply, Throwable throwable) {
+        if (throwable != null && webRequest.isCancelled()) {
+            circuitBreaker.onIgnored();
+            return;
+        }
+        if (throwable != null || reply == null || reply.getHttpStatusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            circuitBreaker.onFailure();
+        } else {
+            circuitBreaker.onSuccess();
+        }
+    }
 
-                if (needsFollowRedirect(reply)) {
-                    String url = getRedirectUrl(reply);
-                    Log.d(TAG, "following redirect manually to new url: " + url);
-                    configureConnection(requestBuilder);
+    private WebReply execute() throws IOException {
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(webRequest.getUrl());
 
-                    request = requestBuilder.url(new URL(url)).build();
-                    response = httpClient.newCall(request).execute();
-                    reply = runRequest();
-                }
+        configureConnection(requestBuilder);
 
-                listenerReply = createListenerReply(webRequest, reply, null, ReplyAdapter.Status.OK);
-                int status = ((WebReply) listenerReply.getReply()).getHttpStatusCode();
-                if (!(status == -1)) {
-                    retryCount = -1;
-                }
+        request = requestBuilder.build();
+        response = httpClient.newCall(request).execute();
+        WebReply reply = runRequest();
+
+        if (needsFollowRedirect(reply)) {
+            String url = getRedirectUrl(reply);
+            Log.d(TAG, "following redirect manually to new url: " + url);
+            closeResponse();
+            configureConnection(requestBuilder);
+
+            request = requestBuilder.url(new URL(url)).build();
+            response = httpClient.newCall(request).execute();
+            reply = runRequest();
+        }
+        if (!webRequest.isGetStream()) {
+            closeResponse();
+        }
+        return reply;
+    }
+
+    /**
+     * Closes the current {@link Response}, so that its connection is returned
+     * to the shared connection pool
+     */
+    private void closeResponse() {
+        if (response != null && response.body() != null) {
+            try {
+                response.body().close();
             } catch (Throwable tr) {
-                if (retryCount != 0) {
-                    try {
-                        Thread.sleep(webRequest.getRetryInterval());
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Error in WebRequest: " + webRequest, e);
-                    }
-                }
-                listenerReply = createListenerReply(webRequest, null, tr, ReplyAdapter.Status.FAILED);
-                Log.w(TAG, "Error running webrequest: " + webRequest.getUrl(), tr);
+                Log.d(TAG, "could not close response", tr);
             }
-        } while (retryCount >= 0);
-
-        if (webClientReplyListener != null) {
-            webClientReplyListener.onWebReply(this, listenerReply);
         }
-        return listenerReply;
+        response = null;
     }
 
     private String getRedirectUrl(WebReply wr) {
@@ -133,25 +211,11 @@ public class WebClientOkHttpClient extends WebClient {
     }
 
     private void configureConnection(Request.Builder requestBuilder) throws IOException {
-
-        httpClient = httpClient.newBuilder()
-                .connectTimeout(webRequest.getConnectionTimeout(), TimeUnit.MILLISECONDS)
-                .readTimeout(webRequest.getConnectionTimeout(), TimeUnit.MILLISECONDS)
-                .followRedirects(webRequest.isFollowRedirects()).build();
-
-
-        setSslFactory();
+        httpClient = OkHttpClientRegistry.getInstance().getClient(webRequest);
         setRequestType(requestBuilder);
         buildHeader(requestBuilder);
     }
 
-    private void setSslFactory() {
-        SSLSocketFactory sslSocketFactory = SSLHelper.getInstance().SSL_FACTORY_JAVA;
-        if (sslSocketFactory != null) {
-            httpClient = httpClient.newBuilder().sslSocketFactory(sslSocketFactory).build();
-        }
-    }
-
     private void setRequestType(Request.Builder requestBuilder) throws IOException {
         switch (webRequest.getRequestType()) {
             case POST:
@@ -188,6 +252,31 @@ public class WebClientOkHttpClient extends WebClient {
                 }
             }
         }
+        String acceptEncoding = getAcceptEncoding();
+        if (acceptEncoding != null && !containsHeader(header, "Accept-Encoding")) {
+            // OkHttp only decodes transparently if it negotiated the coding itself
+            requestBuilder.header("Accept-Encoding", acceptEncoding);
+        }
+        CacheInformation revalidated = webRequest.getRevalidatedCacheInformation();
+        if (revalidated != null) {
+            if (revalidated.getETag() != null && !containsHeader(header, "If-None-Match")) {
+                requestBuilder.header("If-None-Match", revalidated.getETag());
+            }
+            if (revalidated.getLastModified() != null && !containsHeader(header, "If-Modified-Since")) {
+                requestBuilder.header("If-Modified-Since", revalidated.getLastModified());
+            }
+        }
+    }
+
+    private boolean containsHeader(Map<String, String> header, String name) {
+        if (header != null) {
+            for (String field : header.keySet()) {
+                if (name.equalsIgnoreCase(field)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     private WebReply runRequest() throws IOException {
@@ -218,9 +307,25 @@ public class WebClientOkHttpClient extends WebClient {
                 }
                 break;
         }
+        if (reply != null && isTransparentlyDecoded()) {
+            // the body has been decoded by OkHttp, the bytes on the wire are
+            // described by the network response
+            String contentLength = response.networkResponse().header("Content-Length");
+            try {
+                reply.setCompressedLength(contentLength == null ? -1 : Long.parseLong(contentLength));
+            } catch (NumberFormatException e) {
+                reply.setCompressedLength(-1);
+            }
+        }
         return reply;
     }
 
+    private boolean isTransparentlyDecoded() {
+        Response networkResponse = response.networkResponse();
+        return networkResponse != null && networkResponse.header("Content-Encoding") != null
+                && response.header("Content-Encoding") == null;
+    }
+
     private Map<String, List<String>> convertHeaders(Headers headers) {
         HashMap<String, List<String>> ret = new HashMap<>();
         for (int i = 0; i < headers.size(); i++) {
@@ -15,14 +15,22 @@
  */
 package at.diamonddogs.service.net;
 
+import java.net.HttpURLConnection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 import android.accounts.NetworkErrorException;
@@ -30,21 +38,30 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RecoverySystem.ProgressListener;
 import android.util.SparseArray;
 
 import at.diamonddogs.data.adapter.ReplyAdapter;
 import at.diamonddogs.data.adapter.ReplyAdapter.Status;
+import at.diamonddogs.data.dataobjects.NonTimeCriticalTask.PRIORITY;
 import at.diamonddogs.data.dataobjects.Request;
 import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.exception.ProcessorExeception;
 import at.diamonddogs.exception.ServiceException;
+import at.diamonddogs.net.CircuitBreaker;
+import at.diamonddogs.net.CircuitBreakerRegistry;
+import at.diamonddogs.net.ConnectionStatistics.HostConnectionStatistics;
+import at.diamonddogs.net.OkHttpClientRegistry;
 import at.diamonddogs.net.WebClient;
 import at.diamonddogs.net.WebClient.DownloadProgressListener;
+import at.diamonddogs.net.WebClient.RetryScheduler;
 import at.diamonddogs.net.WebClient.WebClientReplyListener;
 import at.diamonddogs.net.WebClientFactory;
 import at.diamonddogs.service.processor.DataProcessor;
@@ -53,13 +70,21 @@ import at.diamonddogs.service.processor.SynchronousProcessor;
 import at.diamonddogs.util.CacheManager;
 import at.diamonddogs.util.CacheManager.CachedObject;
 import at.diamonddogs.util.ConnectivityHelper;
+import at.diamonddogs.util.BoundedWorkerQueue;
+import at.diamonddogs.util.CallerRunsWorkerQueue;
+import at.diamonddogs.util.HostAwareScheduler;
+import at.diamonddogs.util.HostAwareScheduler.HostStatistics;
+import at.diamonddogs.util.HostAwareScheduler.RejectionListener;
+import at.diamonddogs.util.HostPartitionedWorkerQueue;
 import at.diamonddogs.util.Log;
+import at.diamonddogs.util.PriorityWorkerQueue;
+import at.diamonddogs.util.ThreadPoolWorkerQueue;
 import at.diamonddogs.util.WorkerQueue;
 
 /**
  * The central {@link Service} used to process {@link WebRequest}s
  */
-public class HttpService extends Service implements WebClientReplyListener {
+public class HttpService extends Service implements WebClientReplyListener, RetryScheduler {
 
     private static final String TAG = HttpService.class.getSimpleName();
 
@@ -81,20 +106,49 @@ public class HttpService extends Service implements WebClientReplyListener {
      */
     private static final int POOL_KEEPALIVE = 3000;
 
+    /**
+     * The number of threads used to look up cached {@link WebRequest} results
+     */
+    private static final int POOL_SIZE_CACHE_LOOKUP = 2;
+
+    /**
+     * The default maximum number of {@link WebRequest}s of a single host (or
+     * host group) that are processed at the same time
+     */
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+
     /**
      * Contains all registered processors
      */
     private SparseArray<ServiceProcessor<?>> registeredProcessors;
 
     /**
-     * Maps handler to {@link WebRequest}s
+     * Maps {@link WebRequest} ids to their {@link Handler}
+     */
+    private Map<String, Handler> requestHandlers;
+
+    /**
+     * Reverse index of requestHandlers, maps {@link Handler}s to the ids of
+     * their {@link WebRequest}s
+     */
+    private Map<Handler, Set<String>> handlerRequestIds;
+
+    /**
+     * {@link WorkerQueue} for threaded (async) {@link WebRequest} processing,
+     * schedules {@link WebRequest}s fairly across hosts
      */
-    private Map<Handler, List<WebRequest>> webRequestHandlerMap;
+    private HostAwareScheduler workerQueue;
 
     /**
-     * {@link WorkerQueue} for threaded (async) {@link WebRequest} processing
+     * {@link WorkerQueue} used to look up cached results of async
+     * {@link WebRequest}s without blocking the caller
      */
-    private WorkerQueue workerQueue;
+    private WorkerQueue cacheLookupQueue;
+
+    /**
+     * Delays retries of async {@link WebRequest}s without blocking a worker
+     */
+    private ScheduledExecutorService retryExecutor;
 
     /**
      * {@link Binder} instance for {@link HttpService} the default
@@ -112,14 +166,163 @@ public class HttpService extends Service implements WebClientReplyListener {
      */
     private ConnectivityHelper connectivityHelper;
 
+    /**
+     * Shares network calls between identical {@link WebRequest}s
+     */
+    private RequestCoalescer requestCoalescer;
+
+    /**
+     * Ids of stale-while-revalidate {@link WebRequest}s whose stale cached
+     * object has been delivered and that are being refreshed
+     */
+    private Set<String> backgroundRefreshes;
+
+    /**
+     * Receives the replies of background refreshes nobody is interested in,
+     * so that processors can still update the cache
+     */
+    private Handler discardingHandler;
+
     @Override
     public void onCreate() {
         super.onCreate();
-        workerQueue = new WorkerQueue(POOL_SIZE_CORE, POOL_SIZE_MAX, POOL_KEEPALIVE);
-        webRequestHandlerMap = Collections.synchronizedMap(new HashMap<Handler, List<WebRequest>>());
+        workerQueue = new HostAwareScheduler(createWorkerQueue(), getMaxConcurrentRequests(),
+                getMaxConcurrentRequestsPerHost());
+        workerQueue.setRejectionListener(new RejectionListener() {
+            @Override
+            public void onRejected(Callable<?> task) {
+                // queued WebClients the WorkerQueue gave up on, runCancelableTask did not return null for them
+                if (task instanceof WebClient) {
+                    failRejectedWebClient((WebClient) task, "WebRequest has been rejected: ");
+                }
+            }
+        });
+        cacheLookupQueue = new ThreadPoolWorkerQueue(POOL_SIZE_CACHE_LOOKUP, POOL_SIZE_CACHE_LOOKUP, POOL_KEEPALIVE);
+        retryExecutor = Executors.newSingleThreadScheduledExecutor();
+        requestHandlers = new ConcurrentHashMap<>();
+        handlerRequestIds = new HashMap<>();
         registeredProcessors = new SparseArray<>();
-        webRequests = Collections.synchronizedMap(new HashMap<String, WebRequestFutureContainer>());
+        webRequests = new ConcurrentHashMap<>();
         connectivityHelper = new ConnectivityHelper(this);
+        requestCoalescer = new RequestCoalescer();
+        backgroundRefreshes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        discardingHandler = new Handler(Looper.getMainLooper());
+        prewarmConfiguredConnections();
+    }
+
+    /**
+     * Prewarms the connections configured using the meta-data entry
+     * &lt;package name&gt;.prewarmUrls (comma separated urls) of the
+     * application
+     */
+    private void prewarmConfiguredConnections() {
+        String urls = null;
+        try {
+            ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
+            if (ai.metaData != null) {
+                urls = ai.metaData.getString(getPackageName() + ".prewarmUrls");
+            }
+        } catch (Throwable tr) {
+            Log.w(TAG, "could not read prewarm urls", tr);
+        }
+        if (urls != null) {
+            prewarmConnections(urls.split(","));
+        }
+    }
+
+    /**
+     * Opens connections (including TLS and HTTP/2 negotiation) to the hosts
+     * of the given urls ahead of time and keeps them in the shared connection
+     * pool, so that the first {@link WebRequest}s to these hosts do not pay
+     * for connection setup. Call this method as early as possible, e.g. when
+     * the app starts. Returns immediately.
+     *
+     * @param urls the urls to prewarm, usually the roots of the backends used
+     *             by the app
+     */
+    public void prewarmConnections(String... urls) {
+        for (String url : urls) {
+            if (url != null && url.trim().length() > 0) {
+                OkHttpClientRegistry.getInstance().prewarm(url.trim());
+            }
+        }
+    }
+
+    /**
+     * Returns per host statistics on new versus reused connections and streams
+     * per connection of the shared connection pool
+     *
+     * @return a map of host to {@link HostConnectionStatistics}
+     */
+    public Map<String, HostConnectionStatistics> getConnectionStatistics() {
+        return OkHttpClientRegistry.getInstance().getConnectionStatistics().getHostStatistics();
+    }
+
+    /**
+     * Returns the {@link CircuitBreaker.State} of all hosts contacted so far.
+     * Use {@link CircuitBreakerRegistry#addStateListener(CircuitBreaker.StateListener)}
+     * to observe state changes.
+     *
+     * @return a map of host to {@link CircuitBreaker.State}
+     */
+    public Map<String, CircuitBreaker.State> getCircuitBreakerStates() {
+        return CircuitBreakerRegistry.getInstance().getStates();
+    }
+
+    /**
+     * Creates the {@link WorkerQueue} used to run {@link WebRequest}s. Override
+     * this method to provide a different execution strategy, e.g.
+     * {@link BoundedWorkerQueue}, {@link CallerRunsWorkerQueue},
+     * {@link HostPartitionedWorkerQueue} or {@link PriorityWorkerQueue}.
+     *
+     * @return the {@link WorkerQueue} to be used by this {@link HttpService}
+     */
+    protected WorkerQueue createWorkerQueue() {
+        return new ThreadPoolWorkerQueue(POOL_SIZE_CORE, POOL_SIZE_MAX, POOL_KEEPALIVE);
+    }
+
+    /**
+     * Returns the maximum number of {@link WebRequest}s handed to the
+     * {@link WorkerQueue} returned by {@link HttpService#createWorkerQueue()}
+     * at the same time. Override this method if you override
+     * {@link HttpService#createWorkerQueue()}, the value should match the
+     * number of workers of that queue.
+     *
+     * @return the maximum number of concurrent {@link WebRequest}s
+     */
+    protected int getMaxConcurrentRequests() {
+        return POOL_SIZE_MAX;
+    }
+
+    /**
+     * Returns the maximum number of {@link WebRequest}s of a single host (or
+     * host group, see {@link WebRequest#setHostGroup(String)}) that are
+     * processed at the same time
+     *
+     * @return the maximum number of concurrent {@link WebRequest}s per host
+     */
+    protected int getMaxConcurrentRequestsPerHost() {
+        return MAX_REQUESTS_PER_HOST;
+    }
+
+    /**
+     * Returns the {@link WorkerQueue} used by this {@link HttpService}, can be
+     * used to obtain queue metrics
+     *
+     * @return the {@link WorkerQueue}
+     */
+    public WorkerQueue getWorkerQueue() {
+        return workerQueue;
+    }
+
+    /**
+     * Returns running / pending counts and queue wait times of all hosts that
+     * currently have {@link WebRequest}s in flight
+     *
+     * @return a map of host (or host group) to {@link HostStatistics}
+     */
+    public Map<String, HostStatistics> getHostStatistics() {
+        return workerQueue.getHostStatistics();
     }
 
     @Override
@@ -133,8 +336,17 @@ public class HttpService extends Service implements WebClientReplyListener {
         if (workerQueue != null) {
             workerQueue.shutDown();
         }
-        if (webRequestHandlerMap != null) {
-            webRequestHandlerMap.clear();
+        if (cacheLookupQueue != null) {
+            cacheLookupQueue.shutDown();
+        }
+        if (retryExecutor != null) {
+            retryExecutor.shutdownNow();
+        }
+        if (requestHandlers != null) {
+            requestHandlers.clear();
+            synchronized (handlerRequestIds) {
+                handlerRequestIds.clear();
+            }
         }
         if (registeredProcessors != null) {
             registeredProcessors.clear();
@@ -200,21 +412,59 @@ public class HttpService extends Service implements WebClientReplyListener {
                     webRequest.getOrigin());
         }
         addRequestToHandlerMap(handler, webRequest);
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                Future<?> future = getWebRequestTask(webRequest, progressListener, true);
-                if (future != null) {
-                    webRequests.put(webRequest.getId(), new WebRequestFutureContainer(webRequest, future));
+        // register the container before any task is submitted, the network task
+        // may finish (and remove the container) before this method returns
+        final WebRequestFutureContainer container = new WebRequestFutureContainer(webRequest);
+        webRequests.put(webRequest.getId(), container);
+        if (webRequest.getCacheTime() < 0) {
+            // nothing to look up, submit the network task right away
+            submitAsyncWebRequest(container, progressListener);
+        } else {
+            Future<?> lookup = cacheLookupQueue.runCancelableTask(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    submitAsyncWebRequest(container, progressListener);
+                    return null;
                 }
+            });
+            if (lookup == null) {
+                webRequests.remove(webRequest.getId());
+                ret.successful = false;
+            } else {
+                // the lookup may already have stored the network future, do not replace it
+                container.setLookupFuture(lookup);
             }
-        };
-        Thread t = new Thread(r);
-        t.start();
-
+        }
         return ret;
     }
 
+    /**
+     * Performs the cache lookup for an async {@link WebRequest} and either
+     * dispatches the cached object or submits the network task
+     *
+     * @param container        the {@link WebRequestFutureContainer} of the {@link WebRequest}
+     * @param progressListener an optional {@link DownloadProgressListener}
+     */
+    private void submitAsyncWebRequest(WebRequestFutureContainer container, DownloadProgressListener progressListener) {
+        WebRequest webRequest = container.webRequest;
+        if (webRequest.isCancelled()) {
+            webRequests.remove(webRequest.getId());
+            return;
+        }
+        Future<?> future = getWebRequestTask(webRequest, progressListener, true);
+        if (future == null) {
+            // served from cache, rejected or coalesced with an identical WebRequest
+            if (!requestCoalescer.contains(webRequest)) {
+                webRequests.remove(webRequest.getId());
+            }
+        } else {
+            container.setFuture(future);
+            if (webRequest.isCancelled()) {
+                future.cancel(true);
+            }
+        }
+    }
+
     /**
      * Executes an array of {@link WebRequest} synchronously using
      * {@link HttpService#runSynchronousWebRequest(WebRequest)}.
@@ -318,15 +568,29 @@ public class HttpService extends Service implements WebClientReplyListener {
                     ret.throwable = new NetworkErrorException("device is not connected to network");
                 }
             } else {
-                if (cachedObject != null) {
+                if (cachedObject != null && !(cachedObject.isStale() && webRequest.isStaleWhileRevalidate())) {
                     ret.payload = synchronousProcessor.obtainDataObjectFromCachedObject(this, webRequest, cachedObject);
                 } else {
+                    // a sync WebRequest can't be refreshed in the background, stale objects are only used on errors
                     ReplyAdapter replyAdapter = runSynchronousWebRequestFuture(webRequest, progressListener).get();
-                    ret.payload = synchronousProcessor.obtainDataObjectFromWebReply(this, replyAdapter);
+                    CachedObject fallbackObject = getRevalidatedObject(webRequest, replyAdapter);
+                    if (fallbackObject == null) {
+                        fallbackObject = getStaleObject(webRequest, replyAdapter);
+                    }
+                    if (fallbackObject == null && cachedObject != null && isError(replyAdapter)) {
+                        fallbackObject = cachedObject;
+                    }
+                    if (fallbackObject != null) {
+                        ret.payload = synchronousProcessor.obtainDataObjectFromCachedObject(this, webRequest, fallbackObject);
+                    } else {
+                        ret.payload = synchronousProcessor.obtainDataObjectFromWebReply(this, replyAdapter);
+                    }
 
                     WebReply reply = (WebReply) replyAdapter.getReply();
-                    ret.httpStatusCode = reply.getHttpStatusCode();
-                    ret.replyHeader = reply.getReplyHeader();
+                    if (reply != null) {
+                        ret.httpStatusCode = reply.getHttpStatusCode();
+                        ret.replyHeader = reply.getReplyHeader();
+                    }
                 }
             }
         } catch (InterruptedException ie) {
@@ -484,33 +748,39 @@ public class HttpService extends Service implements WebClientReplyListener {
     }
 
     private void addRequestToHandlerMap(Handler handler, WebRequest webRequest) {
-        synchronized (webRequestHandlerMap) {
-            List<WebRequest> requestList = webRequestHandlerMap.get(handler);
-            if (requestList == null) {
-                requestList = new LinkedList<>();
-
-                webRequestHandlerMap.put(handler, requestList);
+        String id = webRequest.getId();
+        requestHandlers.put(id, handler);
+        synchronized (handlerRequestIds) {
+            Set<String> ids = handlerRequestIds.get(handler);
+            if (ids == null) {
+                ids = new HashSet<>();
+                handlerRequestIds.put(handler, ids);
             }
-            requestList.add(webRequest);
+            ids.add(id);
         }
     }
 
-    private Handler getHandler(Request webRequest) {
-        synchronized (webRequestHandlerMap) {
-            Iterator<Handler> iterator = webRequestHandlerMap.keySet().iterator();
-            while (iterator.hasNext()) {
-                Handler h = iterator.next();
-                List<WebRequest> requestList = webRequestHandlerMap.get(h);
-                if (requestList.contains(webRequest)) {
-                    requestList.remove(webRequest);
-                    if (requestList.isEmpty()) {
-                        iterator.remove();
+    /**
+     * Removes the {@link Handler} of a {@link Request} from both indices
+     *
+     * @param webRequest the {@link Request} whose {@link Handler} should be removed
+     * @return the {@link Handler} or <code>null</code> if there was none
+     */
+    private Handler removeHandler(Request webRequest) {
+        String id = ((WebRequest) webRequest).getId();
+        Handler handler = requestHandlers.remove(id);
+        if (handler != null) {
+            synchronized (handlerRequestIds) {
+                Set<String> ids = handlerRequestIds.get(handler);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        handlerRequestIds.remove(handler);
                     }
-                    return h;
                 }
             }
         }
-        return null;
+        return handler;
     }
 
     private WebClient getNewWebClient(WebRequest webRequest, DownloadProgressListener downloadProgressListener) {
@@ -583,8 +853,159 @@ public class HttpService extends Service implements WebClientReplyListener {
     @Override
     public void onWebReply(WebClient webClient, ReplyAdapter reply) {
         logReply(reply);
-        webRequests.remove(webClient.getWebRequest().getId());
-        dispatchWebReplyProcessor(reply, getHandler(reply.getRequest()));
+        WebRequest webRequest = webClient.getWebRequest();
+        webRequests.remove(webRequest.getId());
+        List<WebRequest> coalescedWebRequests = requestCoalescer.complete(webRequest);
+        CachedObject revalidatedObject = getRevalidatedObject(webRequest, reply);
+        try {
+            if (coalescedWebRequests == null) {
+                dispatchReply(reply, revalidatedObject);
+            } else {
+                dispatchCoalescedWebReply(reply, revalidatedObject, coalescedWebRequests);
+            }
+        } finally {
+            releaseReply(reply);
+        }
+    }
+
+    /**
+     * Returns the pooled body segments of a reply after it has been
+     * dispatched to all {@link WebRequest}s sharing it. The body of an error
+     * reply is copied first, since {@link Handler}s may still read it.
+     */
+    private void releaseReply(ReplyAdapter reply) {
+        WebReply webReply = (WebReply) reply.getReply();
+        if (webReply == null) {
+            return;
+        }
+        if (webReply.getHttpStatusCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            webReply.getData();
+        }
+        webReply.release();
+    }
+
+    /**
+     * Gets the cached object of a {@link WebRequest} that revalidated an
+     * expired cache entry and received 304 Not Modified
+     *
+     * @return the cached object or <code>null</code> if the reply has to be processed
+     */
+    private CachedObject getRevalidatedObject(WebRequest webRequest, ReplyAdapter reply) {
+        if (reply.getStatus() != Status.OK || webRequest.getRevalidatedCacheInformation() == null) {
+            return null;
+        }
+        try {
+            return CacheManager.getInstance().getRevalidatedObject(this, webRequest, (WebReply) reply.getReply());
+        } catch (Throwable tr) {
+            Log.w(TAG, "could not read revalidated object: " + webRequest.getUrl(), tr);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the expired cache entry of a stale-if-error {@link WebRequest}
+     * whose network call failed
+     *
+     * @return the stale object or <code>null</code> if the reply has to be processed
+     */
+    private CachedObject getStaleObject(WebRequest webRequest, ReplyAdapter reply) {
+        if (!webRequest.isStaleIfError() || !isError(reply)) {
+            return null;
+        }
+        try {
+            return CacheManager.getInstance().getStaleObject(this, webRequest);
+        } catch (Throwable tr) {
+            Log.w(TAG, "could not read stale object: " + webRequest.getUrl(), tr);
+            return null;
+        }
+    }
+
+    /**
+     * Checks if a reply is an error as understood by stale-if-error: the
+     * network call failed or the server replied with a 5xx status
+     */
+    private boolean isError(ReplyAdapter reply) {
+        return reply.getStatus() != Status.OK || reply.getReply() == null
+                || ((WebReply) reply.getReply()).getHttpStatusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    /**
+     * Hands the reply of a {@link WebRequest} to its processor, or the cached
+     * object if the {@link WebRequest} revalidated it or fell back to it
+     *
+     * @param reply             the {@link ReplyAdapter} of the {@link WebRequest}
+     * @param revalidatedObject the cached object if the network call revalidated it, may be <code>null</code>
+     */
+    private void dispatchReply(ReplyAdapter reply, CachedObject revalidatedObject) {
+        WebRequest webRequest = (WebRequest) reply.getRequest();
+        if (backgroundRefreshes.remove(webRequest.getId())) {
+            dispatchBackgroundRefreshReply(reply, revalidatedObject);
+            return;
+        }
+        CachedObject cachedObject = revalidatedObject != null ? revalidatedObject : getStaleObject(webRequest, reply);
+        if (cachedObject != null) {
+            discardReply(reply);
+            dispatchCachedObjectToProcessor(cachedObject, webRequest);
+        } else {
+            dispatchWebReplyProcessor(reply, removeHandler(webRequest));
+        }
+    }
+
+    /**
+     * Handles the reply of a background refresh. The stale object has already
+     * been delivered, so a revalidated or failed refresh is not delivered at
+     * all. Successful refreshes update the cache and are only delivered to the
+     * {@link Handler} if {@link WebRequest#isDeliverRefreshedReply()}.
+     */
+    private void dispatchBackgroundRefreshReply(ReplyAdapter reply, CachedObject revalidatedObject) {
+        WebRequest webRequest = (WebRequest) reply.getRequest();
+        Handler handler = removeHandler(webRequest);
+        if (revalidatedObject != null || reply.getStatus() != Status.OK || reply.getReply() == null
+                || ((WebReply) reply.getReply()).getHttpStatusCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            Log.d(TAG, "background refresh did not change " + webRequest.getUrl());
+            discardReply(reply);
+            return;
+        }
+        if (handler == null || !webRequest.isDeliverRefreshedReply()) {
+            handler = discardingHandler;
+        }
+        dispatchWebReplyProcessor(reply, handler);
+    }
+
+    /**
+     * Closes the body of a reply that will not be processed
+     */
+    private void discardReply(ReplyAdapter reply) {
+        WebReply webReply = (WebReply) reply.getReply();
+        if (webReply != null && webReply.getInputStream() != null) {
+            try {
+                webReply.getInputStream().close();
+            } catch (Throwable tr) {
+                Log.d(TAG, "could not close reply", tr);
+            }
+        }
+    }
+
+    /**
+     * Hands a shared reply to all {@link WebRequest}s that have been coalesced
+     *
+     * @param reply                the {@link ReplyAdapter} of the shared network call
+     * @param revalidatedObject    the cached object if the network call revalidated it, may be <code>null</code>
+     * @param coalescedWebRequests the {@link WebRequest}s that are still interested in
+     *                             the reply
+     */
+    private void dispatchCoalescedWebReply(ReplyAdapter reply, CachedObject revalidatedObject,
+                                           List<WebRequest> coalescedWebRequests) {
+        Log.d(TAG, "dispatching coalesced reply to " + coalescedWebRequests.size() + " WebRequests");
+        for (WebRequest webRequest : coalescedWebRequests) {
+            webRequests.remove(webRequest.getId());
+            ReplyAdapter copy = new ReplyAdapter();
+            copy.setRequest(webRequest);
+            copy.setReply(reply.getReply());
+            copy.setStatus(reply.getStatus());
+            copy.setThrowable(reply.getThrowable());
+            dispatchReply(copy, revalidatedObject);
+        }
     }
 
     private void logReply(ReplyAdapter reply) {
@@ -600,8 +1021,12 @@ public class HttpService extends Service implements WebClientReplyListener {
     }
 
     private void dispatchCachedObjectToProcessor(CachedObject cachedObject, Request webRequest) {
+        dispatchCachedObjectToProcessor(cachedObject, webRequest, removeHandler(webRequest));
+    }
+
+    private void dispatchCachedObjectToProcessor(CachedObject cachedObject, Request webRequest, Handler handler) {
         if (!workerQueue.isShutDown()) {
-            getProcessor(webRequest).processCachedObject(cachedObject, getHandler(webRequest), webRequest);
+            getProcessor(webRequest).processCachedObject(cachedObject, handler, webRequest);
         } else {
             Log.d(TAG, "service already shutdown, ignoring response from cache");
         }
@@ -648,52 +1073,260 @@ public class HttpService extends Service implements WebClientReplyListener {
      */
     public void cancelRequest(String id) {
         Log.d(TAG, "cancelRequest " + id);
-        if (webRequests.containsKey(id)) {
-            Log.d(TAG, "found cancelRequest " + id);
-            WebRequestFutureContainer container = webRequests.get(id);
-            boolean hasBeenCanceled = container.future.cancel(true);
-            Log.i(TAG, "WebRequest with id " + id + " has been canceled " + hasBeenCanceled);
-            container.webRequest.setCancelled(true);
+        backgroundRefreshes.remove(id);
+        WebRequestFutureContainer container = webRequests.get(id);
+        if (container == null) {
+            return;
+        }
+        WebRequest toCancel = requestCoalescer.leave(container.webRequest);
+        if (!requestCoalescer.contains(container.webRequest)) {
             webRequests.remove(id);
         }
+        if (toCancel == null) {
+            // other WebRequests are still waiting for the shared network call
+            Log.d(TAG, "WebRequest with id " + id + " left its coalesced network call");
+            removeHandler(container.webRequest);
+            return;
+        }
+        if (toCancel != container.webRequest) {
+            container = webRequests.remove(toCancel.getId());
+            if (container == null) {
+                return;
+            }
+        }
+        Log.d(TAG, "found cancelRequest " + toCancel.getId());
+        container.webRequest.setCancelled(true);
+        Future<?> future = container.future.get();
+        boolean hasBeenCanceled = future != null && future.cancel(true);
+        Log.i(TAG, "WebRequest with id " + toCancel.getId() + " has been canceled " + hasBeenCanceled);
+    }
+
+    /**
+     * Changes the priority of a {@link WebRequest} that is waiting for
+     * execution, e.g. to boost an image request once its view scrolls into
+     * sight. If the {@link WebRequest} shares its network call with other
+     * {@link WebRequest}s, the shared call is only ever boosted, never
+     * demoted.
+     *
+     * @param id       the id of the {@link WebRequest}
+     * @param priority the new priority
+     * @return <code>true</code> if the {@link WebRequest} was still waiting and
+     * has been reordered, <code>false</code> otherwise
+     */
+    public boolean reprioritizeRequest(String id, PRIORITY priority) {
+        WebRequestFutureContainer container = webRequests.get(id);
+        if (container == null || priority == null) {
+            return false;
+        }
+        container.webRequest.setPriority(priority);
+        WebRequest leader = requestCoalescer.getLeader(container.webRequest);
+        if (leader != container.webRequest) {
+            if (leader.getPriority() != null && leader.getPriority().compareTo(priority) <= 0) {
+                return false;
+            }
+            leader.setPriority(priority);
+            container = webRequests.get(leader.getId());
+            if (container == null) {
+                return false;
+            }
+        }
+        boolean reprioritized = workerQueue.reprioritize(container.future.get());
+        Log.d(TAG, "WebRequest with id " + id + " reprioritized to " + priority + ": " + reprioritized);
+        return reprioritized;
+    }
+
+    /**
+     * Cancels all {@link WebRequest}s that have been issued using the given
+     * {@link Handler}. Call this method when the component owning the
+     * {@link Handler} (e.g. an Activity) goes away.
+     *
+     * @param handler the {@link Handler} whose {@link WebRequest}s should be cancelled
+     */
+    public void cancelRequests(Handler handler) {
+        Set<String> ids;
+        synchronized (handlerRequestIds) {
+            ids = handlerRequestIds.remove(handler);
+        }
+        if (ids == null) {
+            return;
+        }
+        Log.d(TAG, "cancelling " + ids.size() + " requests of " + handler);
+        for (String id : ids) {
+            requestHandlers.remove(id);
+            cancelRequest(id);
+        }
     }
 
     private Future<ReplyAdapter> getWebRequestTask(WebRequest webRequest, DownloadProgressListener
             downloadProgressListener, boolean async) {
-        Future<ReplyAdapter> ret = null;
-        WebClient client = null;
         try {
             CachedObject cachedObject = getCachedObject(webRequest);
             if (cachedObject == null) {
                 Log.d(TAG, "No cached objects available for: " + webRequest.getUrl());
-                client = getNewWebClient(webRequest, downloadProgressListener);
+                return submitNetworkTask(webRequest, downloadProgressListener, async);
+            } else if (cachedObject.isStale() && webRequest.isStaleWhileRevalidate()) {
                 if (!async) {
-                    client.setListener(null);
+                    Log.d(TAG, "Stale file found in file cache, refreshing: " + webRequest.getUrl());
+                    return submitNetworkTask(webRequest, downloadProgressListener, false);
                 }
-                ret = workerQueue.runCancelableTask(client);
+                Log.d(TAG, "Stale file found in file cache, refreshing in background: " + webRequest.getUrl());
+                return submitBackgroundRefresh(cachedObject, webRequest, downloadProgressListener);
             } else {
                 Log.d(TAG, "File found in file cache: " + webRequest.getUrl());
                 if (!webRequest.isCancelled()) {
                     dispatchCachedObjectToProcessor(cachedObject, webRequest);
                 }
+                return null;
             }
         } catch (Throwable tr) {
             Log.d(TAG, "No cached objects available for: " + webRequest.getUrl());
-            client = getNewWebClient(webRequest, downloadProgressListener);
-            if (!async) {
-                client.setListener(null);
-            }
-            ret = workerQueue.runCancelableTask(client);
+            return submitNetworkTask(webRequest, downloadProgressListener, async);
+        }
+    }
+
+    /**
+     * Delivers the stale cached object of a stale-while-revalidate
+     * {@link WebRequest} and submits its network task, which refreshes the
+     * cache in the background. The {@link Handler} is kept for the refreshed
+     * reply if the {@link WebRequest} asks for it.
+     */
+    private Future<ReplyAdapter> submitBackgroundRefresh(CachedObject cachedObject, WebRequest webRequest,
+                                                         DownloadProgressListener downloadProgressListener) {
+        if (webRequest.isCancelled()) {
+            return null;
+        }
+        Handler handler = webRequest.isDeliverRefreshedReply() ? requestHandlers.get(webRequest.getId()) : removeHandler(webRequest);
+        dispatchCachedObjectToProcessor(cachedObject, webRequest, handler);
+        backgroundRefreshes.add(webRequest.getId());
+        Future<ReplyAdapter> future = submitNetworkTask(webRequest, downloadProgressListener, true);
+        if (future == null && !requestCoalescer.contains(webRequest)) {
+            backgroundRefreshes.remove(webRequest.getId());
+        }
+        return future;
+    }
+
+    /**
+     * Submits the network task of a {@link WebRequest} to the {@link WorkerQueue}.
+     * Async {@link WebRequest}s that can be coalesced join a running, identical
+     * {@link WebRequest} instead.
+     *
+     * @param webRequest               the {@link WebRequest} to run
+     * @param downloadProgressListener an optional {@link DownloadProgressListener}
+     * @param async                    <code>true</code> if the {@link WebRequest} is async
+     * @return the {@link Future} of the network task or <code>null</code> if the
+     * {@link WebRequest} has been coalesced or rejected
+     */
+    private Future<ReplyAdapter> submitNetworkTask(WebRequest webRequest, DownloadProgressListener
+            downloadProgressListener, boolean async) {
+        ServiceProcessor<?> processor = registeredProcessors.get(webRequest.getProcessorId());
+        if (processor != null && processor.isGetStream()) {
+            // the processor consumes the body itself, the WebClient must not buffer it
+            webRequest.setGetStream(true);
+        }
+        boolean coalesced = async && RequestCoalescer.isCoalescable(webRequest);
+        if (coalesced && !requestCoalescer.join(webRequest)) {
+            // an identical WebRequest is already running, its reply will be shared
+            return null;
+        }
+        WebClient client = getNewWebClient(webRequest, downloadProgressListener);
+        if (!async) {
+            client.setListener(null);
+        } else {
+            client.setRetryScheduler(this);
+        }
+        Future<ReplyAdapter> ret = workerQueue.runCancelableTask(client);
+        if (ret == null && async) {
+            // the Handler and all coalesced WebRequests still wait for a reply
+            failRejectedWebClient(client, "WebRequest has been rejected: ");
         }
         return ret;
     }
 
+    /**
+     * Schedules the next attempt of an async {@link WebRequest}, the worker
+     * thread is released while waiting.
+     *
+     * @param webClient the {@link WebClient} to call again
+     * @param delayMs   the delay in ms
+     * @return <code>true</code> if the retry has been scheduled,
+     * <code>false</code> otherwise
+     */
+    @Override
+    public boolean scheduleRetry(final WebClient webClient, long delayMs) {
+        if (webClient.getWebRequest().isCancelled() || retryExecutor.isShutdown()) {
+            return false;
+        }
+        try {
+            retryExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resubmitWebClient(webClient);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void resubmitWebClient(WebClient webClient) {
+        WebRequest webRequest = webClient.getWebRequest();
+        if (webRequest.isCancelled()) {
+            Log.d(TAG, "WebRequest has been cancelled while waiting for a retry: " + webRequest.getId());
+            return;
+        }
+        Future<ReplyAdapter> future = workerQueue.runCancelableTask(webClient);
+        if (future == null) {
+            failRejectedWebClient(webClient, "Retry of WebRequest has been rejected: ");
+            return;
+        }
+        WebRequestFutureContainer container = webRequests.get(webRequest.getId());
+        if (container != null) {
+            container.setFuture(future);
+            if (webRequest.isCancelled()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Delivers a failed reply for a {@link WebClient} that will never run,
+     * completes its coalesced {@link WebRequest}s and forgets the
+     * {@link WebRequest}
+     *
+     * @param webClient the rejected {@link WebClient}
+     * @param message   the message of the {@link ServiceException}, followed by the {@link WebRequest}
+     */
+    private void failRejectedWebClient(WebClient webClient, String message) {
+        WebRequest webRequest = webClient.getWebRequest();
+        ReplyAdapter reply = new ReplyAdapter();
+        reply.setRequest(webRequest);
+        reply.setStatus(Status.FAILED);
+        reply.setThrowable(new ServiceException(message + webRequest));
+        onWebReply(webClient, reply);
+    }
+
+    /**
+     * Gets the cached object of a {@link WebRequest}. If the
+     * {@link CircuitBreaker} of the {@link WebRequest}'s host is open and the
+     * {@link WebRequest} uses the offline cache, expired data is served rather
+     * than failing fast.
+     */
     private CachedObject getCachedObject(WebRequest webRequest) {
         if (webRequest.getCacheTime() < 0) {
             return null;
         }
+        boolean serveStale = webRequest.isUseOfflineCache()
+                && CircuitBreakerRegistry.getInstance().isRejecting(webRequest);
+        if (serveStale) {
+            Log.i(TAG, "circuit open, serving stale data if available: " + webRequest.getUrl());
+        }
+        ServiceProcessor<?> processor = registeredProcessors.get(webRequest.getProcessorId());
+        if (processor != null && processor.isMapCachedFiles()) {
+            webRequest.setMapCachedFile(true);
+        }
         CacheManager cm = CacheManager.getInstance();
-        return cm.getFromCache(HttpService.this, webRequest);
+        return cm.getFromCache(HttpService.this, webRequest, serveStale);
     }
 
     /**
@@ -711,12 +1344,28 @@ public class HttpService extends Service implements WebClientReplyListener {
     }
 
     private static final class WebRequestFutureContainer {
-        private WebRequest webRequest;
-        private Future<?> future;
+        private final WebRequest webRequest;
+        private final AtomicReference<Future<?>> future = new AtomicReference<>();
+
+        private WebRequestFutureContainer(WebRequest webRequest) {
+            this.webRequest = webRequest;
+        }
 
         private WebRequestFutureContainer(WebRequest webRequest, Future<?> future) {
             this.webRequest = webRequest;
-            this.future = future;
+            this.future.set(future);
+        }
+
+        private void setFuture(Future<?> future) {
+            this.future.set(future);
+        }
+
+        /**
+         * Stores the future of the cache lookup, unless the lookup has already
+         * stored the future of the network task
+         */
+        private void setLookupFuture(Future<?> lookup) {
+            future.compareAndSet(null, lookup);
         }
     }
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.service.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.util.Log;
+
+/**
+ * Single-flight bookkeeping for {@link HttpService}. Concurrent, identical
+ * {@link WebRequest}s (see {@link WebRequest#setCoalesce(boolean)}) join a
+ * flight, only the first {@link WebRequest} of a flight (the leader) is
+ * executed, its reply is handed to all {@link WebRequest}s that are still
+ * interested once the flight completes.
+ */
+class RequestCoalescer {
+
+    private static final String TAG = RequestCoalescer.class.getSimpleName();
+
+    /**
+     * Flights by coalescing key
+     */
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    /**
+     * Flights by {@link WebRequest} id
+     */
+    private final Map<String, Flight> flightsByRequestId = new HashMap<>();
+
+    /**
+     * Checks if a {@link WebRequest} may share its network call with others.
+     * Streamed and temp file {@link WebRequest}s can only be consumed once,
+     * POST {@link WebRequest}s are never coalesced.
+     *
+     * @param webRequest the {@link WebRequest} to check
+     * @return <code>true</code> if the {@link WebRequest} can be coalesced
+     */
+    static boolean isCoalescable(WebRequest webRequest) {
+        return webRequest.isCoalesce() && !webRequest.isGetStream() && !webRequest.getTmpFile().first
+                && webRequest.getRequestType() != WebRequest.Type.POST;
+    }
+
+    /**
+     * Creates the coalescing key of a {@link WebRequest}
+     *
+     * @param webRequest the {@link WebRequest}
+     * @return the coalescing key
+     */
+    static String getKey(WebRequest webRequest) {
+        StringBuilder key = new StringBuilder();
+        key.append(webRequest.getRequestType()).append(' ').append(webRequest.getUrl()).append('#')
+                .append(webRequest.getProcessorId());
+        Set<String> varyHeaders = webRequest.getVaryHeaders();
+        if (varyHeaders != null) {
+            Map<String, String> header = webRequest.getHeader();
+            for (String field : varyHeaders) {
+                key.append('|').append(field).append('=').append(header == null ? null : header.get(field));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Adds a {@link WebRequest} to the flight matching its key, creates a new
+     * flight if there is none
+     *
+     * @param webRequest the {@link WebRequest} to add
+     * @return <code>true</code> if the {@link WebRequest} is the leader of a new
+     * flight and must be executed, <code>false</code> if it joined a flight that
+     * is already in progress
+     */
+    synchronized boolean join(WebRequest webRequest) {
+        String key = getKey(webRequest);
+        Flight flight = flights.get(key);
+        boolean leader = flight == null;
+        if (leader) {
+            flight = new Flight(key, webRequest);
+            flights.put(key, flight);
+        } else {
+            Log.d(TAG, "coalescing " + webRequest.getId() + " with " + flight.leader.getId() + ": " + key);
+        }
+        flight.interested.add(webRequest);
+        flightsByRequestId.put(webRequest.getId(), flight);
+        return leader;
+    }
+
+    /**
+     * Checks if a {@link WebRequest} is part of a flight
+     *
+     * @param webRequest the {@link WebRequest} to check
+     * @return <code>true</code> if it is, <code>false</code> otherwise
+     */
+    synchronized boolean contains(WebRequest webRequest) {
+        return flightsByRequestId.containsKey(webRequest.getId());
+    }
+
+    /**
+     * Returns the {@link WebRequest} whose network call is shared by the given
+     * {@link WebRequest}
+     *
+     * @param webRequest a {@link WebRequest}
+     * @return the leader of the flight or webRequest itself if it is not part
+     * of a flight
+     */
+    synchronized WebRequest getLeader(WebRequest webRequest) {
+        Flight flight = flightsByRequestId.get(webRequest.getId());
+        return flight == null ? webRequest : flight.leader;
+    }
+
+    /**
+     * Completes the flight led by the given {@link WebRequest}
+     *
+     * @param leader the leading {@link WebRequest} whose reply has been received
+     * @return all {@link WebRequest}s that are still interested in the reply or
+     * <code>null</code> if the {@link WebRequest} does not lead a flight
+     */
+    synchronized List<WebRequest> complete(WebRequest leader) {
+        Flight flight = flightsByRequestId.get(leader.getId());
+        if (flight == null || flight.leader != leader) {
+            return null;
+        }
+        flights.remove(flight.key);
+        flightsByRequestId.remove(leader.getId());
+        for (WebRequest webRequest : flight.interested) {
+            flightsByRequestId.remove(webRequest.getId());
+        }
+        return new ArrayList<>(flight.interested);
+    }
+
+    /**
+     * Removes the interest of a {@link WebRequest} in its flight
+     *
+     * @param webRequest the {@link WebRequest} that is no longer interested
+     * @return the {@link WebRequest} whose execution should be cancelled:
+     * webRequest itself if it is not part of a flight, the leader of the flight
+     * if no {@link WebRequest} is interested anymore or <code>null</code> if the
+     * shared network call must continue
+     */
+    synchronized WebRequest leave(WebRequest webRequest) {
+        Flight flight = flightsByRequestId.get(webRequest.getId());
+        if (flight == null) {
+            return webRequest;
+        }
+        flight.interested.remove(webRequest);
+        if (flight.leader != webRequest) {
+            flightsByRequestId.remove(webRequest.getId());
+        }
+        if (flight.interested.isEmpty()) {
+            flights.remove(flight.key);
+            flightsByRequestId.remove(flight.leader.getId());
+            return flight.leader;
+        }
+        return null;
+    }
+
+    private static final class Flight {
+        private final String key;
+        private final WebRequest leader;
+        private final Set<WebRequest> interested = new LinkedHashSet<>();
+
+        private Flight(String key, WebRequest leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+    }
+}
@@ -23,10 +23,15 @@ import android.graphics.BitmapFactory;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
 
+import at.diamonddogs.data.dataobjects.ImageWebRequest;
+import at.diamonddogs.data.dataobjects.ImageWebRequest.ScaleType;
+import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.util.Log;
 
 /**
- * A processor that handles image post processing
+ * A processor that handles image post processing. Images of
+ * {@link ImageWebRequest}s are decoded to their target size, all other images
+ * are decoded to fit into the display.
  */
 public class AdjustableImageProcessor extends ImageProcessor {
 
@@ -36,28 +41,59 @@ public class AdjustableImageProcessor extends ImageProcessor {
 
 	private Context context;
 
-	private Bitmap.Config config;
-
 	/**
 	 * Default constructor
 	 * 
 	 * @param context
 	 *            a {@link Context}
 	 * @param config
-	 *            the bitm
+	 *            the bitmap config used for decoding
 	 */
 	public AdjustableImageProcessor(Context context, Bitmap.Config config) {
-		useMemCache = false;
+		super(createOptions(config));
 		this.context = context;
-		this.config = config;
+	}
+
+	private static BitmapFactory.Options createOptions(Bitmap.Config config) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = config;
+		options.inDither = true;
+		return options;
+	}
+
+	/**
+	 * Images of plain {@link WebRequest}s are decoded to the display size and
+	 * would shadow full size images kept under the same url, only
+	 * {@link ImageWebRequest}s with a target size use the memory cache.
+	 */
+	@Override
+	protected boolean isUseMemCache(WebRequest webRequest) {
+		return super.isUseMemCache(webRequest) && webRequest instanceof ImageWebRequest
+				&& ((ImageWebRequest) webRequest).hasTargetSize();
+	}
+
+	@Override
+	protected Bitmap decodeImage(byte[] data, WebRequest webRequest) {
+		try {
+			if (webRequest instanceof ImageWebRequest && ((ImageWebRequest) webRequest).hasTargetSize()) {
+				return super.decodeImage(data, webRequest);
+			}
+			return decodeToDisplaySize(data);
+		} catch (OutOfMemoryError e) {
+			System.gc();
+			Log.e(TAG, "OutOfMemoryError", e);
+			return null;
+		}
 	}
 
 	@Override
 	protected Bitmap createParsedObjectFromByteArray(byte[] data) {
-		int reqWidth = getDisplayMetrics().widthPixels;
-		int reqHeight = getDisplayMetrics().heightPixels;
+		return decodeImage(data, null);
+	}
 
-		return decodeSampledBitmapFromResource(data, reqWidth, reqHeight);
+	private Bitmap decodeToDisplaySize(byte[] data) {
+		DisplayMetrics displayMetrics = getDisplayMetrics();
+		return decodeBitmap(data, displayMetrics.widthPixels, displayMetrics.heightPixels, ScaleType.CENTER_INSIDE);
 	}
 
 	private DisplayMetrics getDisplayMetrics() {
@@ -74,50 +110,4 @@ public class AdjustableImageProcessor extends ImageProcessor {
 		}
 		return ID;
 	}
-
-	// thanks to android training lessons for the code
-	// http://developer.android.com/training/displaying-bitmaps/load-bitmap.html
-	private Bitmap decodeSampledBitmapFromResource(byte[] data, int reqWidth, int reqHeight) {
-
-		// First decode with inJustDecodeBounds=true to check dimensions
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeByteArray(data, 0, data.length, options);
-
-		// Calculate inSampleSize
-		options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-
-		// Decode bitmap with inSampleSize set
-		options.inJustDecodeBounds = false;
-		try {
-			if (options != null) {
-				options.inPreferredConfig = config;
-				options.inDither = true;
-			}
-			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
-		} catch (OutOfMemoryError e) {
-			System.gc();
-			Log.e(TAG, "OutOfMemoryError", e);
-			return null;
-		}
-
-	}
-
-	private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-		// Raw height and width of image
-		final int height = options.outHeight;
-		final int width = options.outWidth;
-		int inSampleSize = 1;
-
-		if (height > reqHeight || width > reqWidth) {
-			if (width > height) {
-				inSampleSize = Math.round((float) height / (float) reqHeight);
-			} else {
-				inSampleSize = Math.round((float) width / (float) reqWidth);
-			}
-		}
-		Log.e(TAG, "calculated sample size: " + inSampleSize);
-
-		return inSampleSize;
-	}
 }
@@ -104,8 +104,7 @@ public abstract class DataProcessor<INPUT, OUTPUT> extends ServiceProcessor<OUTP
 			if (r.getStatus() == Status.OK) {
 				handler.sendMessage(processData(r).returnMessage);
 				if (r.getRequest().getCacheTime() != CacheInformation.CACHE_NO) {
-					cacheObjectToFile(c, (WebRequest) r.getRequest(), ((WebReply) r.getReply()).getData(),
-							((WebRequest) r.getRequest()).isUseOfflineCache());
+					cacheObjectToFile(c, r, ((WebRequest) r.getRequest()).isUseOfflineCache());
 				}
 			} else {
 				handler.sendMessage(createErrorMessage(r));
@@ -121,7 +120,7 @@ public abstract class DataProcessor<INPUT, OUTPUT> extends ServiceProcessor<OUTP
 	@Override
 	public void processCachedObject(CachedObject cachedObject, Handler handler, Request request) {
 		try {
-			handler.sendMessage(processData((WebRequest) request, (byte[]) cachedObject.getCachedObject()).returnMessage);
+			handler.sendMessage(processData((WebRequest) request, cachedObject.getData()).returnMessage);
 		} catch (Throwable tr) {
 			handler.sendMessage(createErrorMessage(tr, (WebRequest) request));
 		}
@@ -153,7 +152,7 @@ public abstract class DataProcessor<INPUT, OUTPUT> extends ServiceProcessor<OUTP
 		case MEMORY:
 			return (OUTPUT) object.getCachedObject();
 		case FILE:
-			return processData(wr, (byte[]) object.getCachedObject()).output;
+			return processData(wr, object.getData()).output;
 		default:
 			throw new RuntimeException("Invalid cache source");
 		}
@@ -16,14 +16,19 @@
 package at.diamonddogs.service.processor;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -34,11 +39,16 @@ import android.widget.ImageView;
 import at.diamonddogs.data.adapter.ReplyAdapter;
 import at.diamonddogs.data.adapter.ReplyAdapter.Status;
 import at.diamonddogs.data.dataobjects.CacheInformation;
+import at.diamonddogs.data.dataobjects.ImageWebRequest;
+import at.diamonddogs.data.dataobjects.ImageWebRequest.ScaleType;
 import at.diamonddogs.data.dataobjects.Request;
+import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.exception.ProcessorExeception;
+import at.diamonddogs.util.BitmapPool;
 import at.diamonddogs.util.CacheManager;
 import at.diamonddogs.util.CacheManager.CachedObject;
+import at.diamonddogs.util.CacheWriter;
 import at.diamonddogs.util.Log;
 import at.diamonddogs.util.Utils;
 
@@ -90,53 +100,286 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
         this.useMemCache = useMemCache;
     }
 
+    /**
+     * Determines if decoding reuses the memory of {@link Bitmap}s in the
+     * {@link BitmapPool} (requires API level 11)
+     */
+    protected boolean reuseBitmaps = true;
+
+    @SuppressWarnings("javadoc")
+    public void setReuseBitmaps(boolean reuseBitmaps) {
+        this.reuseBitmaps = reuseBitmaps;
+    }
+
+    /**
+     * Checks if the image of a {@link WebRequest} should be kept in the memory
+     * cache
+     *
+     * @param webRequest the {@link WebRequest}
+     * @return <code>true</code> if the image should be kept in the memory cache
+     */
+    protected boolean isUseMemCache(WebRequest webRequest) {
+        return useMemCache;
+    }
+
+    /**
+     * Decodes the image of a {@link WebRequest}. Images of
+     * {@link ImageWebRequest}s are decoded to their target size.
+     *
+     * @param data       the encoded image
+     * @param webRequest the {@link WebRequest} the image belongs to
+     * @return the {@link Bitmap} or <code>null</code> if data could not be decoded
+     */
+    protected Bitmap decodeImage(byte[] data, WebRequest webRequest) {
+        if (hasTargetSize(webRequest)) {
+            ImageWebRequest imageWebRequest = (ImageWebRequest) webRequest;
+            return decodeBitmap(data, imageWebRequest.getTargetWidth(), imageWebRequest.getTargetHeight(),
+                    imageWebRequest.getScaleType());
+        }
+        return decodeBitmap(data, bitmapOptions);
+    }
+
+    /**
+     * Decodes a {@link Bitmap} to a target size. The image is subsampled by
+     * the largest power of two that keeps it at least as large as required
+     * and then scaled to the exact target size.
+     *
+     * @param data         the encoded image
+     * @param targetWidth  the target width in pixels, {@link ImageWebRequest#SIZE_ORIGINAL} if unconstrained
+     * @param targetHeight the target height in pixels, {@link ImageWebRequest#SIZE_ORIGINAL} if unconstrained
+     * @param scaleType    the {@link ScaleType}
+     * @return the {@link Bitmap} or <code>null</code> if data could not be decoded
+     */
+    protected Bitmap decodeBitmap(byte[] data, int targetWidth, int targetHeight, ScaleType scaleType) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        int sourceWidth = bounds.outWidth;
+        int sourceHeight = bounds.outHeight;
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            return null;
+        }
+
+        float scaleX;
+        float scaleY;
+        int width;
+        int height;
+        switch (scaleType) {
+            case CENTER_CROP:
+                scaleX = scaleY = Math.max((float) targetWidth / sourceWidth, (float) targetHeight / sourceHeight);
+                width = targetWidth;
+                height = targetHeight;
+                break;
+            case FIT_XY:
+                scaleX = (float) targetWidth / sourceWidth;
+                scaleY = (float) targetHeight / sourceHeight;
+                width = targetWidth;
+                height = targetHeight;
+                break;
+            default:
+                float scale = 1;
+                if (targetWidth != ImageWebRequest.SIZE_ORIGINAL) {
+                    scale = Math.min(scale, (float) targetWidth / sourceWidth);
+                }
+                if (targetHeight != ImageWebRequest.SIZE_ORIGINAL) {
+                    scale = Math.min(scale, (float) targetHeight / sourceHeight);
+                }
+                scaleX = scaleY = scale;
+                width = Math.max(1, Math.round(sourceWidth * scale));
+                height = Math.max(1, Math.round(sourceHeight * scale));
+                break;
+        }
+
+        BitmapFactory.Options options = copyOptions(bitmapOptions);
+        options.inScaled = false;
+        options.inSampleSize = calculateInSampleSize(sourceWidth, sourceHeight, sourceWidth * scaleX, sourceHeight * scaleY);
+        Bitmap sampled = decodeBitmap(data, options);
+        if (sampled == null || (sampled.getWidth() == width && sampled.getHeight() == height)) {
+            return sampled;
+        }
+
+        float sampledScaleX = sourceWidth * scaleX / sampled.getWidth();
+        float sampledScaleY = sourceHeight * scaleY / sampled.getHeight();
+        Matrix matrix = new Matrix();
+        matrix.setScale(sampledScaleX, sampledScaleY);
+        // centers the image, crops evenly if it exceeds the target size
+        matrix.postTranslate((width - sampled.getWidth() * sampledScaleX) / 2, (height - sampled.getHeight() * sampledScaleY) / 2);
+
+        Bitmap.Config config = sampled.getConfig() == null ? Bitmap.Config.ARGB_8888 : sampled.getConfig();
+        Bitmap scaled = Bitmap.createBitmap(width, height, config);
+        new Canvas(scaled).drawBitmap(sampled, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        if (reuseBitmaps) {
+            BitmapPool.getInstance().put(sampled);
+        }
+        return scaled;
+    }
+
+    /**
+     * Calculates the largest power of two sample size that keeps the decoded
+     * image at least as large as required
+     */
+    private int calculateInSampleSize(int sourceWidth, int sourceHeight, float requiredWidth, float requiredHeight) {
+        int inSampleSize = 1;
+        while (sourceWidth / (inSampleSize * 2f) >= requiredWidth && sourceHeight / (inSampleSize * 2f) >= requiredHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Decodes a {@link Bitmap}. If possible, the {@link Bitmap} is decoded
+     * into a {@link Bitmap} taken from the {@link BitmapPool} (see
+     * {@link BitmapFactory.Options#inBitmap}). Decoded {@link Bitmap}s are
+     * mutable, so that they can be pooled once they are no longer used.
+     *
+     * @param data    the encoded image
+     * @param options the {@link BitmapFactory.Options} to use, will not be modified
+     * @return the {@link Bitmap} or <code>null</code> if data could not be decoded
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    protected Bitmap decodeBitmap(byte[] data, BitmapFactory.Options options) {
+        BitmapFactory.Options decodeOptions = copyOptions(options);
+        if (!reuseBitmaps || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+        }
+        decodeOptions.inMutable = true;
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        Bitmap reusable = getReusableBitmap(bitmapPool, data, decodeOptions);
+        if (reusable != null) {
+            decodeOptions.inBitmap = reusable;
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            } catch (IllegalArgumentException e) {
+                // the decoder rejected the bitmap, it might still fit other images
+                Log.d(TAG, "could not reuse bitmap", e);
+                bitmapPool.onReuseFailed(reusable);
+                decodeOptions.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap getReusableBitmap(BitmapPool bitmapPool, byte[] data, BitmapFactory.Options decodeOptions) {
+        int sampleSize = Math.max(1, decodeOptions.inSampleSize);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && sampleSize != 1) {
+            return null;
+        }
+        if (decodeOptions.inScaled && decodeOptions.inDensity != 0 && decodeOptions.inTargetDensity != 0
+                && decodeOptions.inDensity != decodeOptions.inTargetDensity) {
+            // the size of scaled bitmaps is not known in advance
+            return null;
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        int width = (bounds.outWidth + sampleSize - 1) / sampleSize;
+        int height = (bounds.outHeight + sampleSize - 1) / sampleSize;
+        Bitmap.Config config = decodeOptions.inPreferredConfig == null ? Bitmap.Config.ARGB_8888
+                : decodeOptions.inPreferredConfig;
+        return bitmapPool.get(width, height, config);
+    }
+
+    private BitmapFactory.Options copyOptions(BitmapFactory.Options options) {
+        // the options of a processor are shared between threads
+        BitmapFactory.Options copy = new BitmapFactory.Options();
+        if (options != null) {
+            copy.inPreferredConfig = options.inPreferredConfig;
+            copy.inSampleSize = options.inSampleSize;
+            copy.inDither = options.inDither;
+            copy.inScaled = options.inScaled;
+            copy.inDensity = options.inDensity;
+            copy.inTargetDensity = options.inTargetDensity;
+            copy.inScreenDensity = options.inScreenDensity;
+            copy.inPurgeable = options.inPurgeable;
+            copy.inInputShareable = options.inInputShareable;
+        }
+        return copy;
+    }
+
     @Override
     public void processWebReply(Context c, ReplyAdapter r, Handler handler) {
         Log.i(TAG, "processing imagerequest from: " + r.getRequest().getUrl());
         if (r.getStatus() == Status.OK) {
-            ProcessingData<Bitmap> processingData = processData(r);
-            Bitmap b = processingData.output;
-            saveBitmapToFile(c, r, handler, b);
+            Bitmap decoded = decodeImage(((WebReply) r.getReply()).getData(), (WebRequest) r.getRequest());
+            Bitmap b = parse(decoded);
+            cacheImage(c, r, b, b != decoded);
+            handler.sendMessage(createReturnMessage(r, b));
         } else if (r.getStatus() == Status.FAILED) {
             handler.sendMessage(createErrorMessage(r.getThrowable(), r));
         }
     }
 
-    private void saveBitmapToFile(Context c, ReplyAdapter r, Handler handler, Bitmap b) {
-        try {
-            saveBitmapToFile(c, r, b);
-            handler.sendMessage(createReturnMessage(r, b));
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, e.getMessage(), e);
-            handler.sendMessage(createErrorMessage(e, r));
+    /**
+     * Caches an image. The file cache keeps the original encoded image, which
+     * is written by the {@link CacheWriter}. Only images that have been
+     * transformed by {@link ImageProcessor#parse(Bitmap)} are encoded, unless
+     * they have been decoded to a target size, since the file cache is shared
+     * by all target sizes.
+     *
+     * @param c           a {@link Context}
+     * @param r           the {@link ReplyAdapter} containing the original image
+     * @param b           the {@link Bitmap} delivered to the caller
+     * @param transformed <code>true</code> if b differs from the decoded image
+     */
+    private void cacheImage(Context c, ReplyAdapter r, final Bitmap b, boolean transformed) {
+        final WebRequest request = (WebRequest) r.getRequest();
+        if (b == null || request.getCacheTime() == CacheInformation.CACHE_NO) {
+            return;
+        }
+        if (!transformed || hasTargetSize(request)) {
+            if (isUseMemCache(request)) {
+                CacheManager.getInstance().addToMemoryCache(request.getMemoryCacheKey(), ID, b);
+            }
+            cacheObjectToFile(c, r, true);
+            return;
         }
-    }
 
-    private void saveBitmapToFile(Context c, ReplyAdapter r, Bitmap b) throws FileNotFoundException {
-        WebRequest request = (WebRequest) r.getRequest();
         String filename = Utils.getMD5Hash(request.getUrl().toString());
-        if (filename != null && b != null) {
-            if (request.getCacheTime() != CacheInformation.CACHE_NO) {
-                File path = Utils.getCacheDir(c);
-                FileOutputStream fos = new FileOutputStream(new File(path, filename));
-                b.compress(CompressFormat.PNG, 0, fos);
-
-                CacheInformation ci = createImage(request, path.toString(), filename);
-
-                CacheManager cm = CacheManager.getInstance();
-                cm.addToCache(c, ci);
-                if (useMemCache) {
-                    cm.addToMemoryCache(request.getUrl().toString(), ID, b);
+        if (filename == null) {
+            return;
+        }
+        CacheInformation ci = createImage(request, CacheManager.getInstance().getCacheDirectory(c).toString(), filename);
+        ci.setValidators((WebReply) r.getReply());
+        CacheWriter.getInstance().write(c, ci, new CacheWriter.Payload() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                if (!b.compress(CompressFormat.PNG, 0, os)) {
+                    throw new IOException("could not encode image: " + request.getUrl());
+                }
+                // added once encoded, so that the bitmap is not pooled while compressing
+                if (isUseMemCache(request)) {
+                    CacheManager.getInstance().addToMemoryCache(request.getMemoryCacheKey(), ID, b);
                 }
             }
+        });
+    }
+
+    private static boolean hasTargetSize(WebRequest webRequest) {
+        return webRequest instanceof ImageWebRequest && ((ImageWebRequest) webRequest).hasTargetSize();
+    }
+
+    /**
+     * The file cache keeps original images of {@link ImageWebRequest}s, so
+     * they still need to be transformed
+     */
+    private Bitmap decodeCachedImage(byte[] data, WebRequest webRequest) {
+        Bitmap b = decodeImage(data, webRequest);
+        if (b != null && hasTargetSize(webRequest)) {
+            return parse(b);
         }
+        return b;
     }
 
     @Override
     public Bitmap obtainDataObjectFromWebReply(Context c, ReplyAdapter reply) {
-        Bitmap b = super.obtainDataObjectFromWebReply(c, reply);
+        Bitmap decoded = decodeImage(((WebReply) reply.getReply()).getData(), (WebRequest) reply.getRequest());
+        Bitmap b = parse(decoded);
         try {
-            saveBitmapToFile(c, reply, b);
+            cacheImage(c, reply, b, b != decoded);
         } catch (Throwable tr) {
             Log.w(TAG, "Could not cache bitmap (sync webrequest)", tr);
         }
@@ -158,7 +401,7 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
                 return (Bitmap) object.getCachedObject();
             case FILE:
                 byte[] data = (byte[]) object.getCachedObject();
-                return BitmapFactory.decodeByteArray(data, 0, data.length, bitmapOptions);
+                return decodeCachedImage(data, wr);
             default:
                 return null;
         }
@@ -180,14 +423,14 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
     }
 
     private void processFileCache(byte[] data, Handler handler, WebRequest webRequest) throws IllegalArgumentException {
-        Bitmap b = BitmapFactory.decodeByteArray(data, 0, data.length, bitmapOptions);
+        Bitmap b = decodeCachedImage(data, webRequest);
 
         if (b == null) {
             handler.sendMessage(createErrorMessage(new IllegalArgumentException("Couldn't decode Bitmap from data"), webRequest));
             return;
         }
-        if (useMemCache) {
-            CacheManager.getInstance().addToMemoryCache(webRequest.getUrl().toString(), webRequest.getUrl().toString(), b);
+        if (isUseMemCache(webRequest)) {
+            CacheManager.getInstance().addToMemoryCache(webRequest.getMemoryCacheKey(), webRequest.getUrl().toString(), b);
         }
         handler.sendMessage(createReturnMessage(webRequest, b));
     }
@@ -208,6 +451,7 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
         c.setFileName(fileName);
         c.setFilePath(filePath);
         c.setUseOfflineCache(true);
+        c.setPriority(request.getCachePriority());
         return c;
     }
 
@@ -221,7 +465,7 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
      */
     public static String getImageFileUrl(String url, Context context) {
         String filename = Utils.getMD5Hash(url);
-        File dir = context.getExternalCacheDir();
+        File dir = CacheManager.getInstance().getCacheDirectory(context);
         File file = new File(dir, filename);
         if (file.exists()) {
             return file.getAbsolutePath();
@@ -239,7 +483,7 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
         if (data == null) {
             return null;
         }
-        return BitmapFactory.decodeByteArray(data, 0, data.length, bitmapOptions);
+        return decodeBitmap(data, bitmapOptions);
 
     }
 
@@ -276,6 +520,22 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
         return wr;
     }
 
+    /**
+     * Constructs a default image {@link WebRequest} whose image is decoded to
+     * a target size
+     *
+     * @param url          the url of the image
+     * @param targetWidth  the target width in pixels
+     * @param targetHeight the target height in pixels
+     * @param scaleType    the {@link ScaleType}
+     * @return the {@link ImageWebRequest}
+     */
+    public static ImageWebRequest getDefaultImageRequest(String url, int targetWidth, int targetHeight, ScaleType scaleType) {
+        ImageWebRequest wr = new ImageWebRequest(url, targetWidth, targetHeight, scaleType);
+        wr.setCacheTime(CacheInformation.CACHE_1MO);
+        return wr;
+    }
+
     /**
      * A default {@link Handler} for image {@link WebRequest} will take care of
      * displaying the image on an {@link ImageView}
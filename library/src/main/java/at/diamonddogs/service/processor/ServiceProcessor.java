@@ -15,10 +15,7 @@
  */
 package at.diamonddogs.service.processor;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -37,6 +34,7 @@ import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.util.CacheManager;
 import at.diamonddogs.util.CacheManager.CachedObject;
+import at.diamonddogs.util.CacheWriter;
 import at.diamonddogs.util.Log;
 import at.diamonddogs.util.Utils;
 
@@ -151,6 +149,36 @@ public abstract class ServiceProcessor<OUTPUT> {
 		processCachedObject(cachedObject, handler, request);
 	}
 
+	/**
+	 * Indicates whether this processor consumes the body of a {@link WebReply}
+	 * as a stream. If <code>true</code>, the body will not be buffered,
+	 * {@link WebReply#getData()} will be <code>null</code> and the processor
+	 * has to read and close {@link WebReply#getInputStream()} instead.
+	 * 
+	 * @return <code>true</code> if the processor wants a stream,
+	 *         <code>false</code> otherwise (default)
+	 * @see WebRequest#setGetStream(boolean)
+	 */
+	public boolean isGetStream() {
+		return false;
+	}
+
+	/**
+	 * Indicates whether this processor can handle cached files that are
+	 * memory mapped rather than read onto the heap. If <code>true</code>,
+	 * {@link CachedObject#getCachedObject()} of file cache hits is a read only
+	 * {@link java.nio.ByteBuffer}, which should be accessed using
+	 * {@link CachedObject#openInputStream()} or
+	 * {@link CachedObject#getByteBuffer()}.
+	 * 
+	 * @return <code>true</code> if the processor handles mapped files,
+	 *         <code>false</code> otherwise (default)
+	 * @see WebRequest#setMapCachedFile(boolean)
+	 */
+	public boolean isMapCachedFiles() {
+		return false;
+	}
+
 	/**
 	 * Returns the ID of the processor
 	 * 
@@ -179,13 +207,14 @@ public abstract class ServiceProcessor<OUTPUT> {
 	 * @see CacheInformation#useOfflineCache
 	 */
 	protected void cacheObjectToFile(Context context, ReplyAdapter r) {
-		cacheObjectToFile(context, (WebRequest) r.getRequest(), ((WebReply) r.getReply()).getData(), false);
+		cacheObjectToFile(context, r, false);
 	}
 
 	/**
 	 * Writes {@link WebRequest} specific data to the cache. Ignores
 	 * {@link WebRequest} whose {@link WebRequest#getCacheTime()} is
-	 * {@link CacheInformation#CACHE_NO}
+	 * {@link CacheInformation#CACHE_NO}. The data is written asynchronously by
+	 * the {@link CacheWriter}.
 	 * 
 	 * @param context
 	 *            a {@link Context}
@@ -197,7 +226,8 @@ public abstract class ServiceProcessor<OUTPUT> {
 	 * @see CacheInformation#useOfflineCache
 	 */
 	protected void cacheObjectToFile(Context context, ReplyAdapter r, boolean useOfflineCache) {
-		cacheObjectToFile(context, (WebRequest) r.getRequest(), ((WebReply) r.getReply()).getData(), useOfflineCache);
+		WebReply webReply = (WebReply) r.getReply();
+		cacheObjectToFile(context, (WebRequest) r.getRequest(), webReply, webReply.getData(), useOfflineCache);
 	}
 
 	/**
@@ -217,35 +247,23 @@ public abstract class ServiceProcessor<OUTPUT> {
 	 * @see CacheInformation#useOfflineCache
 	 */
 	protected void cacheObjectToFile(Context context, WebRequest request, byte[] data, boolean useOfflineCache) {
+		cacheObjectToFile(context, request, null, data, useOfflineCache);
+	}
+
+	private void cacheObjectToFile(Context context, WebRequest request, WebReply webReply, byte[] data, boolean useOfflineCache) {
 		String filename = Utils.getMD5Hash(request.getUrl().toString());
-		BufferedOutputStream bos = null;
-		try {
-			if (filename != null && data != null) {
-				if (request.getCacheTime() != CacheInformation.CACHE_NO) {
-					File path = Utils.getCacheDir(context);
-					FileOutputStream fos = new FileOutputStream(new File(path, filename));
-					bos = new BufferedOutputStream(fos);
-					bos.write(data);
-
-					CacheInformation ci = createCachingInformation(request.getCacheTime(), path.toString(), filename, useOfflineCache);
-
-					CacheManager cm = CacheManager.getInstance();
-					cm.addToCache(context, ci);
-				}
-			}
-		} catch (Throwable th) {
-		} finally {
-			if (bos != null) {
-				try {
-					bos.close();
-				} catch (IOException e) {
-					bos = null;
-				}
+		if (filename != null && data != null) {
+			if (request.getCacheTime() != CacheInformation.CACHE_NO) {
+				File path = CacheManager.getInstance().getCacheDirectory(context);
+				CacheInformation ci = createCachingInformation(request.getCacheTime(), path.toString(), filename, useOfflineCache);
+				ci.setValidators(webReply);
+				ci.setPriority(request.getCachePriority());
+				CacheWriter.getInstance().write(context, ci, data);
 			}
 		}
 	}
 
-	private CacheInformation createCachingInformation(long chacheTime, String filePath, String fileName, boolean useOfflineCache) {
+	protected CacheInformation createCachingInformation(long chacheTime, String filePath, String fileName, boolean useOfflineCache) {
 		CacheInformation c = new CacheInformation();
 		c.setCacheTime(chacheTime);
 		c.setCreationTimeStamp(System.currentTimeMillis());
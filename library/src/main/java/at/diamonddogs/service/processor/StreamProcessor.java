@@ -35,6 +35,11 @@ public class StreamProcessor extends ServiceProcessor<InputStream> implements Sy
 		throw new UnsupportedOperationException("chaching not supported");
 	}
 
+	@Override
+	public boolean isGetStream() {
+		return true;
+	}
+
 	@Override
 	public int getProcessorID() {
 		return ID;
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.service.processor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Message;
+import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.adapter.ReplyAdapter.Status;
+import at.diamonddogs.data.dataobjects.CacheInformation;
+import at.diamonddogs.data.dataobjects.Request;
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.util.CacheManager;
+import at.diamonddogs.util.CacheManager.CachedObject;
+import at.diamonddogs.util.Log;
+import at.diamonddogs.util.TeeInputStream;
+import at.diamonddogs.util.Utils;
+
+/**
+ * Base class for processors that parse the body of a {@link WebReply} directly
+ * from the network stream, without buffering it in memory first. Use this
+ * class for large JSON / XML documents and parse them using a pull parser
+ * (e.g. JsonReader or XmlPullParser).
+ *
+ * If the {@link WebRequest} is cacheable, the stream is copied to the cache
+ * directory while it is being parsed. The cache entry is only committed if
+ * the whole body has been received. Cached data is parsed using the same
+ * stream based method, directly from the memory mapped cache file.
+ *
+ * @param <INPUT>
+ *            the input object type that will be created from the stream
+ * @param <OUTPUT>
+ *            The output object that will be created from the input object,
+ *            usually a POJO
+ */
+public abstract class StreamingDataProcessor<INPUT, OUTPUT> extends DataProcessor<INPUT, OUTPUT> {
+
+	private static final String TAG = StreamingDataProcessor.class.getSimpleName();
+
+	/**
+	 * Parses the content of inputStream into an INPUT object. Implementations
+	 * must not close the stream.
+	 *
+	 * @param inputStream
+	 *            the body of the {@link WebReply} or the cached data
+	 * @return a parsed object
+	 * @throws IOException
+	 *             if reading from the stream fails
+	 */
+	protected abstract INPUT createParsedObjectFromStream(InputStream inputStream) throws IOException;
+
+	/**
+	 * Used for cached data, delegates to
+	 * {@link StreamingDataProcessor#createParsedObjectFromStream(InputStream)}
+	 */
+	@Override
+	protected INPUT createParsedObjectFromByteArray(byte[] data) {
+		try {
+			return createParsedObjectFromStream(new ByteArrayInputStream(data));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isGetStream() {
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isMapCachedFiles() {
+		return true;
+	}
+
+	/**
+	 * Parses cached files from the mapped file, without copying them onto the
+	 * heap
+	 */
+	@Override
+	public void processCachedObject(CachedObject cachedObject, Handler handler, Request request) {
+		try {
+			handler.sendMessage(createReturnMessage((WebRequest) request, parseCachedObject(cachedObject)));
+		} catch (Throwable tr) {
+			handler.sendMessage(createErrorMessage(tr, (WebRequest) request));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OUTPUT obtainDataObjectFromCachedObject(Context c, WebRequest wr, CachedObject object) {
+		if (object.getFrom() != CachedObject.From.FILE) {
+			return super.obtainDataObjectFromCachedObject(c, wr, object);
+		}
+		try {
+			return parseCachedObject(object);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private OUTPUT parseCachedObject(CachedObject cachedObject) throws IOException {
+		return parse(createParsedObjectFromStream(cachedObject.openInputStream()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void processWebReply(Context c, ReplyAdapter r, Handler handler) {
+		try {
+			if (r.getStatus() == Status.OK) {
+				OUTPUT output = parseStream(c, r);
+				Message message = createReturnMessage(r, output);
+				handler.sendMessage(message);
+			} else {
+				closeStream(r);
+				handler.sendMessage(createErrorMessage(r));
+			}
+		} catch (Throwable tr) {
+			handler.sendMessage(createErrorMessage(tr, r));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OUTPUT obtainDataObjectFromWebReply(Context c, ReplyAdapter reply) {
+		Log.d(TAG, "status: " + ((WebReply) reply.getReply()).getHttpStatusCode());
+		try {
+			return parseStream(c, reply);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private OUTPUT parseStream(Context c, ReplyAdapter r) throws IOException {
+		WebRequest webRequest = (WebRequest) r.getRequest();
+		WebReply webReply = (WebReply) r.getReply();
+		InputStream inputStream = getInputStream(webReply);
+		if (webRequest.getCacheTime() == CacheInformation.CACHE_NO) {
+			try {
+				return parse(createParsedObjectFromStream(inputStream));
+			} finally {
+				close(inputStream);
+			}
+		}
+
+		File path = CacheManager.getInstance().getCacheDirectory(c);
+		String filename = Utils.getMD5Hash(webRequest.getUrl().toString());
+		File tmpFile = File.createTempFile(filename, ".tmp", path);
+		TeeInputStream teeInputStream = new TeeInputStream(inputStream, new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			OUTPUT output = parse(createParsedObjectFromStream(teeInputStream));
+			teeInputStream.drain();
+			close(teeInputStream);
+			if (teeInputStream.isComplete() && tmpFile.renameTo(new File(path, filename))) {
+				CacheInformation ci = createCachingInformation(webRequest.getCacheTime(), path.toString(), filename,
+						webRequest.isUseOfflineCache());
+				ci.setValidators(webReply);
+				ci.setPriority(webRequest.getCachePriority());
+				CacheManager.getInstance().addToCache(c, ci);
+			}
+			return output;
+		} finally {
+			close(teeInputStream);
+			if (tmpFile.exists() && !tmpFile.delete()) {
+				Log.w(TAG, "could not delete " + tmpFile);
+			}
+		}
+	}
+
+	private InputStream getInputStream(WebReply webReply) {
+		if (webReply.getInputStream() != null) {
+			return webReply.getInputStream();
+		}
+		// no body or the body has been buffered anyway
+		InputStream dataStream = webReply.openDataStream();
+		return dataStream == null ? new ByteArrayInputStream(new byte[0]) : dataStream;
+	}
+
+	private void closeStream(ReplyAdapter r) {
+		if (r.getReply() != null) {
+			close(((WebReply) r.getReply()).getInputStream());
+		}
+	}
+
+	private void close(InputStream inputStream) {
+		if (inputStream != null) {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+				Log.d(TAG, "could not close stream", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * A bounded pool of mutable {@link Bitmap}s that are no longer in use, so that
+ * their memory can be reused instead of allocating new {@link Bitmap}s.
+ * {@link Bitmap}s are kept in buckets by their allocation size, the pool
+ * evicts (and recycles) the least recently added {@link Bitmap} once it
+ * exceeds its budget.
+ *
+ * A {@link Bitmap} must not be used by its previous owner after it has been
+ * put into the pool.
+ */
+public class BitmapPool {
+
+	private static final String TAG = BitmapPool.class.getSimpleName();
+
+	/**
+	 * The default share of the maximum heap size used by the pool
+	 */
+	public static final float DEFAULT_MAX_SIZE_FRACTION = 0.0625f;
+
+	private static BitmapPool INSTANCE = null;
+
+	/**
+	 * Pooled {@link Bitmap}s by allocation size
+	 */
+	private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+
+	/**
+	 * All pooled {@link Bitmap}s in the order they have been added
+	 */
+	private final LinkedHashSet<Bitmap> insertionOrder = new LinkedHashSet<>();
+
+	private int maxSize;
+	private int size = 0;
+
+	private long putCount = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+	private long reuseFailedCount = 0;
+
+	/**
+	 * Creates a {@link BitmapPool}
+	 *
+	 * @param maxSize
+	 *            the budget of the pool in bytes
+	 */
+	public BitmapPool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Singleton getInstance() method
+	 *
+	 * @return the process wide {@link BitmapPool}
+	 */
+	public synchronized static BitmapPool getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new BitmapPool((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() * DEFAULT_MAX_SIZE_FRACTION));
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Adds a {@link Bitmap} to the pool. Immutable and recycled
+	 * {@link Bitmap}s are ignored, {@link Bitmap}s exceeding the budget of
+	 * the pool are recycled.
+	 *
+	 * @param bitmap
+	 *            the {@link Bitmap} to add, may be <code>null</code>
+	 */
+	public void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		int bitmapSize = getSize(bitmap);
+		synchronized (this) {
+			if (bitmapSize > maxSize || !insertionOrder.add(bitmap)) {
+				return;
+			}
+			ArrayDeque<Bitmap> bucket = buckets.get(bitmapSize);
+			if (bucket == null) {
+				bucket = new ArrayDeque<>();
+				buckets.put(bitmapSize, bucket);
+			}
+			bucket.addLast(bitmap);
+			size += bitmapSize;
+			putCount++;
+		}
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Takes a {@link Bitmap} whose allocation has room for a {@link Bitmap} of
+	 * the given dimensions out of the pool. Only {@link Bitmap}s of at most
+	 * twice the required size are considered, so that large allocations are
+	 * not wasted on small images.
+	 *
+	 * @param width
+	 *            the width of the {@link Bitmap} in pixels
+	 * @param height
+	 *            the height of the {@link Bitmap} in pixels
+	 * @param config
+	 *            the {@link Bitmap.Config} of the {@link Bitmap}
+	 * @return a {@link Bitmap} or <code>null</code> if there is no suitable
+	 *         {@link Bitmap} in the pool
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		int requiredSize = width * height * getBytesPerPixel(config);
+		for (Map.Entry<Integer, ArrayDeque<Bitmap>> bucket : buckets.tailMap(requiredSize, true).entrySet()) {
+			if (bucket.getKey() > requiredSize * 2) {
+				break;
+			}
+			Iterator<Bitmap> i = bucket.getValue().iterator();
+			while (i.hasNext()) {
+				Bitmap candidate = i.next();
+				if (canReuse(candidate, width, height, config)) {
+					i.remove();
+					if (bucket.getValue().isEmpty()) {
+						buckets.remove(bucket.getKey());
+					}
+					insertionOrder.remove(candidate);
+					size -= bucket.getKey();
+					hitCount++;
+					return candidate;
+				}
+			}
+		}
+		missCount++;
+		return null;
+	}
+
+	/**
+	 * Called if a {@link Bitmap} obtained from
+	 * {@link BitmapPool#get(int, int, Bitmap.Config)} could not be reused
+	 * after all (e.g. because the decoder rejected it). The {@link Bitmap} is
+	 * returned to the pool and the hit is counted as a miss.
+	 *
+	 * @param bitmap
+	 *            the {@link Bitmap} that could not be reused
+	 */
+	public void onReuseFailed(Bitmap bitmap) {
+		synchronized (this) {
+			reuseFailedCount++;
+			hitCount--;
+			missCount++;
+		}
+		put(bitmap);
+	}
+
+	/**
+	 * Evicts and recycles pooled {@link Bitmap}s until the pool is at or below
+	 * the requested size
+	 *
+	 * @param targetSize
+	 *            the size in bytes
+	 */
+	public void trimToSize(int targetSize) {
+		while (true) {
+			Bitmap toEvict;
+			synchronized (this) {
+				if (size <= targetSize || insertionOrder.isEmpty()) {
+					return;
+				}
+				toEvict = insertionOrder.iterator().next();
+				insertionOrder.remove(toEvict);
+				int bitmapSize = getSize(toEvict);
+				ArrayDeque<Bitmap> bucket = buckets.get(bitmapSize);
+				bucket.remove(toEvict);
+				if (bucket.isEmpty()) {
+					buckets.remove(bitmapSize);
+				}
+				size -= bitmapSize;
+				evictionCount++;
+			}
+			toEvict.recycle();
+		}
+	}
+
+	/**
+	 * Evicts and recycles all pooled {@link Bitmap}s
+	 */
+	public void clear() {
+		trimToSize(0);
+		Log.d(TAG, "cleared");
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private boolean canReuse(Bitmap candidate, int width, int height, Bitmap.Config config) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return width * height * getBytesPerPixel(config) <= candidate.getAllocationByteCount();
+		}
+		// older versions can only decode into bitmaps of the same size
+		return candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == config;
+	}
+
+	/**
+	 * Returns the number of bytes a {@link Bitmap} occupies
+	 *
+	 * @param bitmap
+	 *            the {@link Bitmap}
+	 * @return the allocation size in bytes
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	public static int getSize(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8) {
+			return 1;
+		}
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			return 2;
+		}
+		return 4;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the budget of the pool, evicts {@link Bitmap}s if the pool exceeds
+	 * the new budget
+	 *
+	 * @param maxSize
+	 *            the budget in bytes
+	 */
+	public void setMaxSize(int maxSize) {
+		synchronized (this) {
+			this.maxSize = maxSize;
+		}
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Returns the number of bytes held by the pool
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of {@link Bitmap}s held by the pool
+	 *
+	 * @return the number of pooled {@link Bitmap}s
+	 */
+	public synchronized int getCount() {
+		return insertionOrder.size();
+	}
+
+	/**
+	 * Returns the number of {@link Bitmap}s added to the pool
+	 *
+	 * @return the put count
+	 */
+	public synchronized long getPutCount() {
+		return putCount;
+	}
+
+	/**
+	 * Returns the number of calls to {@link BitmapPool#get(int, int, Bitmap.Config)}
+	 * that returned a {@link Bitmap}
+	 *
+	 * @return the hit count
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of calls to {@link BitmapPool#get(int, int, Bitmap.Config)}
+	 * that returned <code>null</code>
+	 *
+	 * @return the miss count
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of {@link Bitmap}s evicted to stay within the budget
+	 *
+	 * @return the eviction count
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of {@link Bitmap}s that have been handed out but
+	 * could not be reused, see {@link BitmapPool#onReuseFailed(Bitmap)}
+	 *
+	 * @return the reuse failure count
+	 */
+	public synchronized long getReuseFailedCount() {
+		return reuseFailedCount;
+	}
+
+	/**
+	 * Returns the share of {@link BitmapPool#get(int, int, Bitmap.Config)}
+	 * calls that returned a reusable {@link Bitmap}
+	 *
+	 * @return the hit rate between 0 and 1, 0 if the pool has not been used
+	 */
+	public synchronized float getHitRate() {
+		long requests = hitCount + missCount;
+		return requests == 0 ? 0 : (float) hitCount / requests;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapPool [size=" + size + ", maxSize=" + maxSize + ", count=" + insertionOrder.size() + ", puts=" + putCount
+				+ ", hits=" + hitCount + ", misses=" + missCount + ", hitRate=" + getHitRate() + ", reuseFailed="
+				+ reuseFailedCount + ", evictions=" + evictionCount + "]";
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A {@link WorkerQueue} using a bounded queue. Once the queue is full, the pool
+ * grows up to its max pool size. Tasks submitted while pool and queue are
+ * saturated are rejected and
+ * {@link WorkerQueue#runCancelableTask(java.util.concurrent.Callable)} returns
+ * <code>null</code>.
+ */
+public class BoundedWorkerQueue extends ThreadPoolWorkerQueue {
+
+	/**
+	 * Creates a {@link BoundedWorkerQueue}
+	 *
+	 * @param corePoolSize
+	 *            the core pool size
+	 * @param maxPoolSize
+	 *            the max pool size
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 * @param queueCapacity
+	 *            the maximum number of waiting tasks
+	 */
+	public BoundedWorkerQueue(int corePoolSize, int maxPoolSize, long keepAliveTimeMs, int queueCapacity) {
+		this(corePoolSize, maxPoolSize, keepAliveTimeMs, queueCapacity, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Creates a {@link BoundedWorkerQueue} using a custom
+	 * {@link RejectedExecutionHandler}
+	 *
+	 * @param corePoolSize
+	 *            the core pool size
+	 * @param maxPoolSize
+	 *            the max pool size
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 * @param queueCapacity
+	 *            the maximum number of waiting tasks
+	 * @param rejectedExecutionHandler
+	 *            the handler to use when the queue and the pool are saturated
+	 */
+	protected BoundedWorkerQueue(int corePoolSize, int maxPoolSize, long keepAliveTimeMs, int queueCapacity,
+			RejectedExecutionHandler rejectedExecutionHandler) {
+		super(corePoolSize, maxPoolSize, keepAliveTimeMs, new ArrayBlockingQueue<Runnable>(queueCapacity), rejectedExecutionHandler);
+	}
+
+	/**
+	 * Returns the number of tasks that can still be queued
+	 *
+	 * @return the remaining capacity
+	 */
+	public int getRemainingCapacity() {
+		return outstandingRequests.remainingCapacity();
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded, thread safe pool of fixed size byte buffers (segments). Used to
+ * read and buffer network replies without allocating a new buffer for every
+ * request. The pool keeps counters that show how many allocations have been
+ * saved.
+ */
+public class BufferPool {
+
+	/**
+	 * The default segment size in bytes
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 8192;
+
+	/**
+	 * The default number of segments kept by the pool
+	 */
+	public static final int DEFAULT_MAX_POOLED_SEGMENTS = 64;
+
+	private static BufferPool INSTANCE = null;
+
+	private final int segmentSize;
+	private final int maxPooledSegments;
+	private final ArrayDeque<byte[]> segments = new ArrayDeque<>();
+
+	private long acquireCount = 0;
+	private long reuseCount = 0;
+	private long allocationCount = 0;
+	private long allocatedBytes = 0;
+	private long discardCount = 0;
+
+	/**
+	 * Creates a {@link BufferPool}
+	 *
+	 * @param segmentSize
+	 *            the size of a single segment in bytes
+	 * @param maxPooledSegments
+	 *            the maximum number of segments kept by the pool
+	 */
+	public BufferPool(int segmentSize, int maxPooledSegments) {
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("segmentSize must be > 0");
+		}
+		this.segmentSize = segmentSize;
+		this.maxPooledSegments = maxPooledSegments;
+	}
+
+	/**
+	 * Singleton getInstance() method
+	 *
+	 * @return the process wide {@link BufferPool}
+	 */
+	public synchronized static BufferPool getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new BufferPool(DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_POOLED_SEGMENTS);
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Takes a segment from the pool or allocates a new one if the pool is
+	 * empty. The content of the segment is undefined.
+	 *
+	 * @return a segment of {@link BufferPool#getSegmentSize()} bytes
+	 */
+	public byte[] acquire() {
+		synchronized (segments) {
+			acquireCount++;
+			byte[] segment = segments.pollLast();
+			if (segment != null) {
+				reuseCount++;
+				return segment;
+			}
+			allocationCount++;
+			allocatedBytes += segmentSize;
+		}
+		return new byte[segmentSize];
+	}
+
+	/**
+	 * Returns a segment to the pool. The caller must not use the segment
+	 * afterwards. Segments that have not been obtained from
+	 * {@link BufferPool#acquire()} and segments exceeding the capacity of the
+	 * pool are dropped.
+	 *
+	 * @param segment
+	 *            the segment to return, may be <code>null</code>
+	 */
+	public void release(byte[] segment) {
+		if (segment == null || segment.length != segmentSize) {
+			return;
+		}
+		synchronized (segments) {
+			if (segments.size() < maxPooledSegments) {
+				segments.addLast(segment);
+			} else {
+				discardCount++;
+			}
+		}
+	}
+
+	/**
+	 * Drops all pooled segments
+	 */
+	public void clear() {
+		synchronized (segments) {
+			segments.clear();
+		}
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Returns the number of segments currently held by the pool
+	 *
+	 * @return the number of pooled segments
+	 */
+	public int getPooledSegmentCount() {
+		synchronized (segments) {
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Returns the number of calls to {@link BufferPool#acquire()}
+	 *
+	 * @return the acquire count
+	 */
+	public long getAcquireCount() {
+		synchronized (segments) {
+			return acquireCount;
+		}
+	}
+
+	/**
+	 * Returns the number of acquired segments that have been reused, every
+	 * reuse is an allocation that has been saved
+	 *
+	 * @return the reuse count
+	 */
+	public long getReuseCount() {
+		synchronized (segments) {
+			return reuseCount;
+		}
+	}
+
+	/**
+	 * Returns the number of segments that had to be allocated
+	 *
+	 * @return the allocation count
+	 */
+	public long getAllocationCount() {
+		synchronized (segments) {
+			return allocationCount;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes allocated by this pool
+	 *
+	 * @return the allocated bytes
+	 */
+	public long getAllocatedBytes() {
+		synchronized (segments) {
+			return allocatedBytes;
+		}
+	}
+
+	/**
+	 * Returns the number of released segments that have been dropped because
+	 * the pool was full
+	 *
+	 * @return the discard count
+	 */
+	public long getDiscardCount() {
+		synchronized (segments) {
+			return discardCount;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (segments) {
+			return "BufferPool [segmentSize=" + segmentSize + ", pooled=" + segments.size() + ", acquired=" + acquireCount
+					+ ", reused=" + reuseCount + ", allocated=" + allocationCount + ", allocatedBytes=" + allocatedBytes
+					+ ", discarded=" + discardCount + "]";
+		}
+	}
+}
@@ -17,11 +17,23 @@ package at.diamonddogs.util;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -29,14 +41,13 @@ import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
-import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.os.Build;
 
 import at.diamonddogs.android.support.v4.util.LruCache;
-import at.diamonddogs.contentprovider.CacheContentProvider;
-import at.diamonddogs.data.adapter.database.DataBaseAdapterCacheInformation;
 import at.diamonddogs.data.dataobjects.CacheInformation;
 import at.diamonddogs.data.dataobjects.Request;
+import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.exception.CacheManagerException;
 import at.diamonddogs.service.CacheService;
@@ -60,17 +71,43 @@ public class CacheManager {
     public static final String ACTION_INTENT_SCHEDULE_CACHE = "at.diamonddogs.action.schedule.cache";
 
     /**
-     * Max cache entries
+     * The default share of the memory class used by the memory cache
      */
-    private static final int CACHE_SIZE_MAX_ENTRIES = 20;
+    public static final float DEFAULT_MEMORY_CACHE_FRACTION = 0.125f;
 
     /**
-     * The {@link LruCache} that will be used as an in memory cache
+     * The size in bytes assumed for cached objects without a
+     * {@link SizeEstimator}
      */
-    private LruCache<String, CacheItem> cache;
+    public static final int DEFAULT_OBJECT_SIZE = 4096;
+
+    /**
+     * The {@link LruCache} that will be used as an in memory cache, its size
+     * is measured in bytes
+     */
+    private MemoryCache cache;
+
+    /**
+     * {@link SizeEstimator}s of parsed objects, by type
+     */
+    private final Map<Class<?>, SizeEstimator> sizeEstimators = new LinkedHashMap<>();
+
+    private float memoryCacheFraction = DEFAULT_MEMORY_CACHE_FRACTION;
+
+    /**
+     * Eviction priorities by tag, see {@link CacheManager#setTagPriority(Object, int)}
+     */
+    private final Map<Object, Integer> tagPriorities = new ConcurrentHashMap<>();
+
+    private volatile boolean poolRemovedBitmaps = false;
+
+    private volatile DiskCacheEngine diskCacheEngine = new DatabaseDiskCacheEngine();
+
+    private volatile ConnectivityHelper connectivityHelper;
 
     private CacheManager() {
-        cache = new LruCache<>(CACHE_SIZE_MAX_ENTRIES);
+        // until the memory class is known, see setMemoryCacheFraction
+        cache = new MemoryCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_CACHE_FRACTION));
     }
 
     /**
@@ -92,8 +129,57 @@ public class CacheManager {
      * @param cacheInformation the information related to the object that gets cached
      */
     public void addToCache(Context context, CacheInformation cacheInformation) {
-        DataBaseAdapterCacheInformation dbaci = new DataBaseAdapterCacheInformation(cacheInformation);
-        dbaci.insert(context);
+        diskCacheEngine.put(context, cacheInformation);
+    }
+
+    /**
+     * Sets the {@link DiskCacheEngine} of the file cache. Should be called
+     * once, before the first {@link WebRequest} is run (e.g. in
+     * {@link android.app.Application#onCreate()}), files cached by the
+     * previous {@link DiskCacheEngine} are not migrated.
+     *
+     * @param diskCacheEngine the {@link DiskCacheEngine}, {@link DatabaseDiskCacheEngine} by default
+     */
+    public void setDiskCacheEngine(DiskCacheEngine diskCacheEngine) {
+        if (diskCacheEngine == null) {
+            throw new IllegalArgumentException("diskCacheEngine must not be null");
+        }
+        this.diskCacheEngine = diskCacheEngine;
+    }
+
+    @SuppressWarnings("javadoc")
+    public DiskCacheEngine getDiskCacheEngine() {
+        return diskCacheEngine;
+    }
+
+    /**
+     * Sets the byte budget of the file cache. Unlike
+     * {@link CacheManager#cleanExpired(Context)}, the budget also applies to
+     * files that have not expired yet, see
+     * {@link WebRequest#setCachePriority(int)} to protect important files.
+     * Files cached {@link CacheInformation#CACHE_FOREVER} and offline cache
+     * files are pinned unless their {@link WebRequest} sets a priority.
+     *
+     * @param maxSize the maximum size of the file cache in bytes
+     */
+    public void setDiskCacheMaxSize(long maxSize) {
+        diskCacheEngine.setMaxSize(maxSize);
+    }
+
+    @SuppressWarnings("javadoc")
+    public long getDiskCacheMaxSize() {
+        return diskCacheEngine.getMaxSize();
+    }
+
+    /**
+     * Returns the directory cache files should be written to before they are
+     * added using {@link CacheManager#addToCache(Context, CacheInformation)}
+     *
+     * @param c a {@link Context}
+     * @return the directory of the file cache
+     */
+    public File getCacheDirectory(Context c) {
+        return diskCacheEngine.getDirectory(c);
     }
 
     /**
@@ -105,32 +191,185 @@ public class CacheManager {
      * @return a cached item
      */
     public CachedObject getFromCache(Context c, Request request) {
+        return getFromCache(c, request, false);
+    }
+
+    /**
+     * Retrieves an item from the cache. Memory cache has precedence over file
+     * cache
+     *
+     * @param c          a {@link Context}
+     * @param request    the request whose data is cached
+     * @param serveStale if <code>true</code>, expired items cached with useOfflineCache are returned even
+     *                   if the device is connected, e.g. because the host cannot be reached anyway
+     * @return a cached item or <code>null</code>. Expired items that can be
+     * revalidated are not deleted, they are attached to the {@link WebRequest}
+     * instead, see {@link WebRequest#getRevalidatedCacheInformation()}
+     */
+    public CachedObject getFromCache(Context c, Request request, boolean serveStale) {
+        if (request instanceof WebRequest) {
+            ((WebRequest) request).setRevalidatedCacheInformation(null);
+        }
         try {
-            return getFromMemoryCache(c, request);
+            return getFromMemoryCache(c, request, serveStale);
         } catch (Throwable tr) {
             throw new CacheManagerException(tr);
         }
     }
 
-    private CachedObject getFromMemoryCache(Context c, Request request) {
-        CacheItem i = cache.get(request.getUrl().toString());
+    private CachedObject getFromMemoryCache(Context c, Request request, boolean serveStale) {
+        CacheItem i = cache.get(getMemoryCacheKey(request));
         if (i == null) {
-            return getFromFileCache(c, request);
+            return getFromFileCache(c, request, serveStale);
         } else {
             return new CachedObject(i.data, CachedObject.From.MEMORY);
         }
     }
 
+    private String getMemoryCacheKey(Request request) {
+        if (request instanceof WebRequest) {
+            return ((WebRequest) request).getMemoryCacheKey();
+        }
+        return request.getUrl().toString();
+    }
+
     /**
      * Adds an item to the memory cache.
      *
-     * @param fileUrl the url of the file
+     * @param fileUrl the url of the file or the memory cache key of the request, see
+     *                {@link WebRequest#getMemoryCacheKey()}
      * @param tag     a tag (used to group cached items)
      * @param data    the data to be cached
      */
     public void addToMemoryCache(String fileUrl, Object tag, Object data) {
-        cache.put(fileUrl, new CacheItem(tag, data));
-        Log.d(TAG, "new cache size: " + cache.size());
+        cache.put(fileUrl, new CacheItem(tag, data, sizeOf(data)));
+        Log.d(TAG, "new cache size: " + cache.size() + " of " + cache.maxSize() + " bytes");
+    }
+
+    /**
+     * Sets the budget of the memory cache to a share of the memory class of
+     * the device (see {@link ActivityManager#getMemoryClass()}). Items are
+     * evicted if the cache exceeds its new budget.
+     *
+     * @param c        a {@link Context}
+     * @param fraction the share of the memory class, e.g. 0.125 for one eighth
+     */
+    public void setMemoryCacheFraction(Context c, float fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be > 0 and <= 1");
+        }
+        memoryCacheFraction = fraction;
+        ActivityManager am = (ActivityManager) c.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClass = am.getMemoryClass() * 1024L * 1024L;
+        cache.resize((int) Math.min(Integer.MAX_VALUE, memoryClass * fraction));
+        Log.i(TAG, "memory cache budget: " + cache.maxSize() + " bytes");
+    }
+
+    /**
+     * Registers a {@link SizeEstimator} for parsed objects of a type (and its
+     * subtypes) that are put into the memory cache. {@link Bitmap}s and
+     * byte arrays are measured without an estimator.
+     *
+     * @param type          the type of the objects
+     * @param sizeEstimator the {@link SizeEstimator}
+     */
+    public void registerSizeEstimator(Class<?> type, SizeEstimator sizeEstimator) {
+        synchronized (sizeEstimators) {
+            sizeEstimators.put(type, sizeEstimator);
+        }
+    }
+
+    /**
+     * Removes the {@link SizeEstimator} of a type
+     *
+     * @param type the type of the objects
+     */
+    public void unregisterSizeEstimator(Class<?> type) {
+        synchronized (sizeEstimators) {
+            sizeEstimators.remove(type);
+        }
+    }
+
+    /**
+     * Estimates the number of bytes an object occupies in the memory cache
+     *
+     * @param data the object
+     * @return the size in bytes
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+    public int sizeOf(Object data) {
+        if (data == null) {
+            return 0;
+        }
+        if (data instanceof Bitmap) {
+            Bitmap b = (Bitmap) data;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+                return b.getByteCount();
+            }
+            return b.getRowBytes() * b.getHeight();
+        }
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        }
+        synchronized (sizeEstimators) {
+            for (Entry<Class<?>, SizeEstimator> sizeEstimator : sizeEstimators.entrySet()) {
+                if (sizeEstimator.getKey().isInstance(data)) {
+                    return sizeEstimator.getValue().sizeOf(data);
+                }
+            }
+        }
+        return DEFAULT_OBJECT_SIZE;
+    }
+
+    @SuppressWarnings("javadoc")
+    public float getMemoryCacheFraction() {
+        return memoryCacheFraction;
+    }
+
+    /**
+     * Returns the number of bytes held by the memory cache
+     *
+     * @return the size in bytes
+     */
+    public int getMemoryCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the budget of the memory cache
+     *
+     * @return the maximum size in bytes
+     */
+    public int getMemoryCacheMaxSize() {
+        return cache.maxSize();
+    }
+
+    /**
+     * Returns the number of memory cache lookups that found an item
+     *
+     * @return the hit count
+     */
+    public int getMemoryCacheHitCount() {
+        return cache.hitCount();
+    }
+
+    /**
+     * Returns the number of memory cache lookups that did not find an item
+     *
+     * @return the miss count
+     */
+    public int getMemoryCacheMissCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * Returns the number of items evicted from the memory cache to stay
+     * within its budget
+     *
+     * @return the eviction count
+     */
+    public int getMemoryCacheEvictionCount() {
+        return cache.evictionCount();
     }
 
     /**
@@ -148,13 +387,12 @@ public class CacheManager {
      *            {@link CacheManager#addToMemoryCache(String, Object, Object)}
      */
     public void clearMemoryCache(Object tag) {
-        Iterator<Entry<String, CacheItem>> i = cache.getMap().entrySet().iterator();
+        // iterate a snapshot, removing items from the live map would break the iteration
         int count = 0;
-        while (i.hasNext()) {
-            Entry<String, CacheItem> item = i.next();
+        for (Entry<String, CacheItem> item : cache.snapshot().entrySet()) {
             CacheItem cacheItem = item.getValue();
             String key = item.getKey();
-            if (cacheItem.tag.equals(tag)) {
+            if (cacheItem.tag != null && cacheItem.tag.equals(tag)) {
                 cache.remove(key);
                 count++;
             }
@@ -162,20 +400,95 @@ public class CacheManager {
         Log.d(TAG, "Manually cleaned cache for tag '" + tag + "' total of " + count + " items removed.");
     }
 
-    private CachedObject getFromFileCache(Context c, Request request) {
-        ConnectivityHelper connectivityHelper = new ConnectivityHelper(c);
+    /**
+     * Sets the eviction priority of a tag. When the memory cache is trimmed,
+     * items with a lower priority are evicted first. The default priority is
+     * 0.
+     *
+     * @param tag      an arbitrary tag, see
+     *                 {@link CacheManager#addToMemoryCache(String, Object, Object)}
+     * @param priority the priority of the tag
+     */
+    public void setTagPriority(Object tag, int priority) {
+        tagPriorities.put(tag, priority);
+    }
+
+    private int getTagPriority(Object tag) {
+        Integer priority = tag == null ? null : tagPriorities.get(tag);
+        return priority == null ? 0 : priority;
+    }
+
+    /**
+     * Shrinks the memory cache to a share of its budget. Unlike the eviction
+     * of the {@link LruCache}, which is purely least recently used, trimming
+     * evicts items of low priority tags first and, within the same priority,
+     * the most expensive (largest) items first, so that the fewest items
+     * have to be reloaded. The {@link BitmapPool} is trimmed by the same
+     * share.
+     *
+     * @param fraction the share of the budget to keep, 0 evicts everything
+     */
+    public void trimMemoryCache(float fraction) {
+        int targetSize = (int) (cache.maxSize() * fraction);
+        if (fraction <= 0) {
+            cache.evictAll();
+        } else if (cache.size() > targetSize) {
+            List<Entry<String, CacheItem>> items = new ArrayList<>(cache.snapshot().entrySet());
+            // stable sort, items of the same priority and size stay in lru order
+            Collections.sort(items, new Comparator<Entry<String, CacheItem>>() {
+                @Override
+                public int compare(Entry<String, CacheItem> lhs, Entry<String, CacheItem> rhs) {
+                    int lhsPriority = getTagPriority(lhs.getValue().tag);
+                    int rhsPriority = getTagPriority(rhs.getValue().tag);
+                    if (lhsPriority != rhsPriority) {
+                        return lhsPriority < rhsPriority ? -1 : 1;
+                    }
+                    int lhsSize = lhs.getValue().size;
+                    int rhsSize = rhs.getValue().size;
+                    return lhsSize == rhsSize ? 0 : (lhsSize > rhsSize ? -1 : 1);
+                }
+            });
+            for (Entry<String, CacheItem> item : items) {
+                if (cache.size() <= targetSize) {
+                    break;
+                }
+                cache.remove(item.getKey());
+            }
+        }
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        bitmapPool.trimToSize((int) (bitmapPool.getMaxSize() * Math.max(fraction, 0)));
+        Log.i(TAG, "trimmed memory cache to " + cache.size() + " of " + cache.maxSize() + " bytes, " + bitmapPool);
+    }
+
+    /**
+     * Controls whether {@link Bitmap}s removed from the memory cache are put
+     * into the {@link BitmapPool} for reuse. Disabled by default, only enable
+     * this if cached {@link Bitmap}s are not used anymore once they have been
+     * removed from the cache (e.g. by views that are still displayed), pooled
+     * {@link Bitmap}s are overwritten by subsequent decodes.
+     *
+     * @param poolRemovedBitmaps <code>true</code> to pool removed {@link Bitmap}s
+     */
+    public void setPoolRemovedBitmaps(boolean poolRemovedBitmaps) {
+        this.poolRemovedBitmaps = poolRemovedBitmaps;
+    }
+
+    @SuppressWarnings("javadoc")
+    public boolean isPoolRemovedBitmaps() {
+        return poolRemovedBitmaps;
+    }
+
+    private CachedObject getFromFileCache(Context c, Request request, boolean serveStale) {
         String fileName = Utils.getMD5Hash(request.getUrl().toString());
-        DataBaseAdapterCacheInformation daci = new DataBaseAdapterCacheInformation();
         CacheInformation ci;
 
         try {
-            CacheInformation[] cacheInformation = daci.query(c, fileName);
-            if (cacheInformation.length == 0) {
+            ci = diskCacheEngine.get(c, fileName);
+            if (ci == null) {
                 return null;
             }
-            ci = cacheInformation[0];
         } catch (Throwable tr) {
-            Log.w(TAG, "Problem querying database", tr);
+            Log.w(TAG, "Problem querying disk cache", tr);
             return null;
         }
 
@@ -184,35 +497,155 @@ public class CacheManager {
         String filePath = ci.getFilePath();
 
         File f = new File(filePath, fileName);
+        boolean expired = fileExpired(creationTimeStamp, cacheTime);
+        boolean exists = f.exists();
 
-        boolean connected = connectivityHelper.checkConnectivityWebRequest((WebRequest) request);
+        // connectivity only matters if the file cannot be served as is
         // @formatter:off
         if (
-                (fileExpired(creationTimeStamp, cacheTime) || !f.exists()) &&
-                        (!ci.isUseOfflineCache() || connected)
+                (expired || !exists) &&
+                        (!ci.isUseOfflineCache() || (!serveStale && getConnectivityHelper(c).checkConnectivityWebRequest((WebRequest) request)))
                 ) {
             // @formatter:on
-            daci.setDataObject(ci);
-            daci.delete(c);
-            f.delete();
+            if (exists && request instanceof WebRequest) {
+                WebRequest webRequest = (WebRequest) request;
+                if (webRequest.isStaleWhileRevalidate()) {
+                    // serve the expired file, the network call will refresh it
+                    Log.d(TAG, "serving stale file: " + request.getUrl());
+                    webRequest.setRevalidatedCacheInformation(ci);
+                    return readCachedFile(f, true, webRequest.isMapCachedFile());
+                }
+                if (ci.hasValidators() || webRequest.isStaleIfError()) {
+                    // keep the entry, the network call will revalidate it or fall back to it
+                    Log.d(TAG, "revalidating expired file: " + request.getUrl());
+                    webRequest.setRevalidatedCacheInformation(ci);
+                    return null;
+                }
+            }
+            diskCacheEngine.remove(c, ci);
             return null;
         } else {
-            Log.i(TAG, "Obtaining file from Cache. Expired: " + fileExpired(creationTimeStamp, cacheTime) + " File Exists: " + f.exists()
-                    + " UseOfflineCache: " + ci.isUseOfflineCache() + " Connectivity: " + connected);
-            try {
-                byte[] buffer = new byte[(int) f.length()];
-                FileInputStream fis;
-                fis = new FileInputStream(f);
-                fis.read(buffer);
-                fis.close();
-                return new CachedObject(buffer, CachedObject.From.FILE);
-            } catch (Throwable e) {
-                Log.w(TAG, "Could not read cached file", e);
+            Log.i(TAG, "Obtaining file from Cache. Expired: " + expired + " File Exists: " + exists + " UseOfflineCache: "
+                    + ci.isUseOfflineCache() + " ServeStale: " + serveStale);
+            return readCachedFile(f, expired, isMapCachedFile(request));
+        }
+    }
+
+    private ConnectivityHelper getConnectivityHelper(Context c) {
+        if (connectivityHelper == null) {
+            // stateless, a race creates an additional instance at worst
+            connectivityHelper = new ConnectivityHelper(c.getApplicationContext());
+        }
+        return connectivityHelper;
+    }
+
+    /**
+     * Gets the expired cache entry of a {@link WebRequest} whose network call
+     * failed. Only works for {@link WebRequest}s that use
+     * {@link WebRequest#isStaleIfError()}.
+     *
+     * @param c       a {@link Context}
+     * @param request the {@link WebRequest}, see
+     *                {@link WebRequest#getRevalidatedCacheInformation()}
+     * @return the stale data or <code>null</code> if there is none
+     */
+    public CachedObject getStaleObject(Context c, WebRequest request) {
+        CacheInformation ci = request.getRevalidatedCacheInformation();
+        if (ci == null || !request.isStaleIfError()) {
+            return null;
+        }
+        Log.d(TAG, "serving stale file after error: " + request.getUrl());
+        return readCachedFile(new File(ci.getFilePath(), ci.getFileName()), true, request.isMapCachedFile());
+    }
+
+    private boolean isMapCachedFile(Request request) {
+        return request instanceof WebRequest && ((WebRequest) request).isMapCachedFile();
+    }
+
+    /**
+     * Reads a cache file
+     *
+     * @param f     the file
+     * @param stale <code>true</code> if the file has expired
+     * @param map   <code>true</code> to map the file into memory instead of
+     *              reading it onto the heap, see {@link WebRequest#isMapCachedFile()}
+     * @return a {@link CachedObject} containing a byte[] or a read only
+     * {@link ByteBuffer}, <code>null</code> if the file could not be read
+     */
+    private CachedObject readCachedFile(File f, boolean stale, boolean map) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (map) {
+                // the mapping stays valid after closing the channel, cache files are replaced by renaming, never rewritten
+                return new CachedObject(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), CachedObject.From.FILE, stale);
+            }
+            if (size > Integer.MAX_VALUE) {
+                Log.w(TAG, "Cached file too large to be read onto the heap: " + f);
                 return null;
             }
+            byte[] buffer = new byte[(int) size];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer) == -1) {
+                    Log.w(TAG, "Cached file is shorter than expected: " + f);
+                    return null;
+                }
+            }
+            return new CachedObject(buffer, CachedObject.From.FILE, stale);
+        } catch (Throwable e) {
+            Log.w(TAG, "Could not read cached file", e);
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not close cached file", e);
+                }
+            }
         }
     }
 
+    /**
+     * Completes the revalidation of an expired cache entry. If the server
+     * replied with 304 Not Modified, the creation time stamp (and the
+     * validators, if the server sent new ones) of the entry are refreshed and
+     * the cached data is returned, so that the body does not need to be
+     * downloaded again.
+     *
+     * @param c        a {@link Context}
+     * @param request  the {@link WebRequest} that revalidated the entry, see
+     *                 {@link WebRequest#getRevalidatedCacheInformation()}
+     * @param webReply the reply to the conditional request
+     * @return the cached data or <code>null</code> if the entry has not been
+     * revalidated, the server did not reply with 304 or the file is gone
+     */
+    public CachedObject getRevalidatedObject(Context c, WebRequest request, WebReply webReply) {
+        CacheInformation ci = request.getRevalidatedCacheInformation();
+        if (ci == null || webReply == null || webReply.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return null;
+        }
+        File f = new File(ci.getFilePath(), ci.getFileName());
+        CachedObject cachedObject = readCachedFile(f, false, request.isMapCachedFile());
+        if (cachedObject == null) {
+            return null;
+        }
+        ci.setCreationTimeStamp(System.currentTimeMillis());
+        if (webReply.getReplyHeaderValue("ETag") != null || webReply.getReplyHeaderValue("Last-Modified") != null) {
+            ci.setValidators(webReply);
+        }
+        try {
+            diskCacheEngine.update(c, ci);
+        } catch (Throwable tr) {
+            Log.w(TAG, "Could not refresh cache information", tr);
+        }
+        Log.d(TAG, "revalidated: " + request.getUrl());
+        return cachedObject;
+    }
+
     /**
      * Deleted expired files from the file cache
      *
@@ -221,28 +654,14 @@ public class CacheManager {
      * <code>false</code> otherwise
      */
     public void cleanExpired(Context c) {
-        Cursor cursor = c.getContentResolver().query(CacheContentProvider.CONTENT_URI, null, null, null, null);
-
-        if (!Utils.checkCursor(cursor)) {
-            return;
-        }
-        cursor.moveToFirst();
-        DataBaseAdapterCacheInformation dbaci = new DataBaseAdapterCacheInformation();
-        do {
-            dbaci.setDataObject(cursor);
-            CacheInformation cacheInfo = dbaci.getDataObject();
+        for (CacheInformation cacheInfo : diskCacheEngine.getAll(c)) {
             long creationTimeStamp = cacheInfo.getCreationTimeStamp();
             long cacheTime = cacheInfo.getCacheTime();
 
             if (fileExpired(creationTimeStamp, cacheTime) && (cacheTime != CacheInformation.CACHE_FOREVER)) {
-                String fileName = cacheInfo.getFileName();
-                File f = new File(cacheInfo.getFilePath(), fileName);
-                f.delete();
-                dbaci.delete(c);
+                diskCacheEngine.remove(c, cacheInfo);
             }
-        } while (cursor.moveToNext());
-
-        cursor.close();
+        }
     }
 
     private boolean fileExpired(long creationTime, long cacheTime) {
@@ -314,6 +733,7 @@ public class CacheManager {
 
         private Object cachedObject;
         private From from;
+        private boolean stale;
 
         /**
          * Constructor
@@ -322,8 +742,20 @@ public class CacheManager {
          * @param from         the source cache
          */
         public CachedObject(Object cachedObject, From from) {
+            this(cachedObject, from, false);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param cachedObject the actual object that was cached
+         * @param from         the source cache
+         * @param stale        <code>true</code> if the object has expired
+         */
+        public CachedObject(Object cachedObject, From from, boolean stale) {
             this.cachedObject = cachedObject;
             this.from = from;
+            this.stale = stale;
         }
 
         @SuppressWarnings("javadoc")
@@ -335,25 +767,115 @@ public class CacheManager {
         public From getFrom() {
             return from;
         }
+
+        @SuppressWarnings("javadoc")
+        public boolean isStale() {
+            return stale;
+        }
+
+        /**
+         * Returns the content of a file cache hit as a {@link ByteBuffer}
+         * without copying it
+         *
+         * @return a read only {@link ByteBuffer}, positioned at the start of the data
+         * @throws IllegalStateException if the object has not been obtained from the file cache
+         */
+        public ByteBuffer getByteBuffer() {
+            if (cachedObject instanceof ByteBuffer) {
+                return ((ByteBuffer) cachedObject).asReadOnlyBuffer();
+            }
+            if (cachedObject instanceof byte[]) {
+                return ByteBuffer.wrap((byte[]) cachedObject).asReadOnlyBuffer();
+            }
+            throw new IllegalStateException("Not a file cache hit: " + from);
+        }
+
+        /**
+         * Opens an {@link InputStream} on the content of a file cache hit
+         * without copying it
+         *
+         * @return an {@link InputStream}, does not need to be closed
+         * @throws IllegalStateException if the object has not been obtained from the file cache
+         */
+        public InputStream openInputStream() {
+            return new ByteBufferInputStream(getByteBuffer());
+        }
+
+        /**
+         * Returns the content of a file cache hit as a byte[], copies it if
+         * the file has been mapped into memory
+         *
+         * @return the data
+         * @throws IllegalStateException if the object has not been obtained from the file cache
+         */
+        public byte[] getData() {
+            if (cachedObject instanceof byte[]) {
+                return (byte[]) cachedObject;
+            }
+            ByteBuffer byteBuffer = getByteBuffer();
+            byte[] data = new byte[byteBuffer.remaining()];
+            byteBuffer.get(data);
+            return data;
+        }
+    }
+
+    /**
+     * Estimates the memory used by parsed objects, see
+     * {@link CacheManager#registerSizeEstimator(Class, SizeEstimator)}
+     */
+    public interface SizeEstimator {
+        /**
+         * Estimates the number of bytes an object occupies
+         *
+         * @param object the object
+         * @return the size in bytes, must not change while the object is cached
+         */
+        int sizeOf(Object object);
+    }
+
+    /**
+     * The memory cache, measures items in bytes
+     */
+    private final class MemoryCache extends LruCache<String, CacheItem> {
+
+        private MemoryCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(String key, CacheItem value) {
+            return value.size;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, CacheItem oldValue, CacheItem newValue) {
+            if (poolRemovedBitmaps && oldValue.data instanceof Bitmap && (newValue == null || newValue.data != oldValue.data)) {
+                BitmapPool.getInstance().put((Bitmap) oldValue.data);
+            }
+        }
     }
 
     private static final class CacheItem {
         public Object tag;
         public Object data;
+        public int size;
 
-        public CacheItem(Object tag, Object data) {
+        public CacheItem(Object tag, Object data, int size) {
             this.tag = tag;
             this.data = data;
+            this.size = size;
         }
     }
 
     /**
-     * Registers a component callback for cache cleaning on low memory
+     * Registers a component callback for cache cleaning on low memory and
+     * sizes the memory cache by the memory class of the device
      *
      * @param c a {@link Context}
      */
     @TargetApi(14)
     public void registerComponentCallback(Context c) {
+        setMemoryCacheFraction(c, memoryCacheFraction);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             c.registerComponentCallbacks(new ComponentCallbackListener());
         }
@@ -373,18 +895,31 @@ public class CacheManager {
          */
         @Override
         public void onLowMemory() {
+            trimMemoryCache(0);
         }
 
         /**
-         * {@inheritDoc}
+         * Trims the memory cache gradually, the more pressure the system is
+         * under, the less is kept. Trimming while in the background does not
+         * throw away everything, so that returning to the app does not mean
+         * reloading every item.
          */
         @Override
         public void onTrimMemory(int level) {
-            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
-                cache.evictAll();
-            }
-            if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
-                // trim cache to reasonable size here
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+                trimMemoryCache(0);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                trimMemoryCache(0.25f);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                trimMemoryCache(0.5f);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                trimMemoryCache(0.75f);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                trimMemoryCache(0.25f);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                trimMemoryCache(0.5f);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+                trimMemoryCache(0.75f);
             }
         }
 
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import at.diamonddogs.data.dataobjects.CacheInformation;
+
+/**
+ * Writes cache files and their {@link CacheInformation} on a background
+ * thread, so that threads processing replies are not held up by file I/O.
+ * Writes for the same file that are still waiting are coalesced, only the most
+ * recent one is performed. If the backlog is full, the write is performed on
+ * the calling thread. Files are written to a temporary file that is renamed
+ * once complete, readers never see partially written files.
+ */
+public class CacheWriter {
+
+	private static final String TAG = CacheWriter.class.getSimpleName();
+
+	/**
+	 * The default maximum number of waiting writes
+	 */
+	public static final int DEFAULT_MAX_BACKLOG = 64;
+
+	private static CacheWriter INSTANCE = null;
+
+	/**
+	 * Provides the content of a cache file
+	 */
+	public interface Payload {
+		/**
+		 * Writes the content of the cache file
+		 *
+		 * @param os
+		 *            the {@link OutputStream} of the temporary file
+		 * @throws IOException
+		 *             if writing fails, the cache file is not created
+		 */
+		void writeTo(OutputStream os) throws IOException;
+	}
+
+	/**
+	 * Waiting writes by file
+	 */
+	private final Map<String, Write> pending = new HashMap<>();
+
+	private final ExecutorService executor;
+
+	private volatile int maxBacklog = DEFAULT_MAX_BACKLOG;
+
+	private long writeCount = 0;
+	private long failureCount = 0;
+	private long coalescedCount = 0;
+	private long callerRunsCount = 0;
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+
+	private CacheWriter() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Singleton getInstance() method
+	 *
+	 * @return the process wide {@link CacheWriter}
+	 */
+	public synchronized static CacheWriter getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new CacheWriter();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Writes data to the file described by a {@link CacheInformation} and adds
+	 * the {@link CacheInformation} to the cache once the file is complete
+	 *
+	 * @param context
+	 *            a {@link Context}
+	 * @param cacheInformation
+	 *            the {@link CacheInformation} of the file
+	 * @param data
+	 *            the content of the file
+	 */
+	public void write(Context context, CacheInformation cacheInformation, final byte[] data) {
+		write(context, cacheInformation, new Payload() {
+			@Override
+			public void writeTo(OutputStream os) throws IOException {
+				os.write(data);
+			}
+		});
+	}
+
+	/**
+	 * Writes a {@link Payload} to the file described by a
+	 * {@link CacheInformation} and adds the {@link CacheInformation} to the
+	 * cache once the file is complete. A {@link Payload} superseded by a more
+	 * recent write for the same file is never written.
+	 *
+	 * @param context
+	 *            a {@link Context}
+	 * @param cacheInformation
+	 *            the {@link CacheInformation} of the file
+	 * @param payload
+	 *            the {@link Payload} providing the content of the file
+	 */
+	public void write(Context context, CacheInformation cacheInformation, Payload payload) {
+		final String key = new File(cacheInformation.getFilePath(), cacheInformation.getFileName()).getAbsolutePath();
+		Write write = new Write(context.getApplicationContext(), cacheInformation, payload);
+		synchronized (pending) {
+			if (pending.put(key, write) != null) {
+				coalescedCount++;
+				return;
+			}
+			if (pending.size() > maxBacklog) {
+				pending.remove(key);
+				callerRunsCount++;
+			} else {
+				write = null;
+			}
+		}
+		if (write != null) {
+			perform(write);
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Write w;
+				synchronized (pending) {
+					w = pending.remove(key);
+				}
+				if (w != null) {
+					perform(w);
+				}
+			}
+		});
+	}
+
+	private void perform(Write write) {
+		CacheInformation ci = write.cacheInformation;
+		File dir = new File(ci.getFilePath());
+		File target = new File(dir, ci.getFileName());
+		File tmp = null;
+		OutputStream os = null;
+		boolean success = false;
+		try {
+			tmp = File.createTempFile(ci.getFileName(), ".tmp", dir);
+			os = new BufferedOutputStream(new FileOutputStream(tmp));
+			write.payload.writeTo(os);
+			os.close();
+			os = null;
+			if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+				throw new IOException("could not rename " + tmp + " to " + target);
+			}
+			CacheManager.getInstance().addToCache(write.context, ci);
+			success = true;
+		} catch (Throwable tr) {
+			Log.w(TAG, "could not write " + target, tr);
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {
+					os = null;
+				}
+			}
+			if (!success && tmp != null) {
+				tmp.delete();
+			}
+		}
+		recordWrite(write, success);
+	}
+
+	private synchronized void recordWrite(Write write, boolean success) {
+		if (!success) {
+			failureCount++;
+			return;
+		}
+		long latency = SystemClock.elapsedRealtime() - write.enqueuedAt;
+		writeCount++;
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+	}
+
+	/**
+	 * Returns the number of writes waiting to be performed
+	 *
+	 * @return the backlog
+	 */
+	public int getBacklog() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getMaxBacklog() {
+		return maxBacklog;
+	}
+
+	/**
+	 * Sets the maximum number of waiting writes, further writes are performed
+	 * on the calling thread
+	 *
+	 * @param maxBacklog
+	 *            the maximum backlog
+	 */
+	public void setMaxBacklog(int maxBacklog) {
+		this.maxBacklog = maxBacklog;
+	}
+
+	/**
+	 * Returns the number of completed writes
+	 *
+	 * @return the write count
+	 */
+	public synchronized long getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * Returns the number of failed writes
+	 *
+	 * @return the failure count
+	 */
+	public synchronized long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Returns the number of writes that have been superseded by a more recent
+	 * write for the same file
+	 *
+	 * @return the coalesced count
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	/**
+	 * Returns the number of writes performed on the calling thread because the
+	 * backlog was full
+	 *
+	 * @return the caller runs count
+	 */
+	public synchronized long getCallerRunsCount() {
+		return callerRunsCount;
+	}
+
+	/**
+	 * Returns the average time between submitting and completing a write
+	 *
+	 * @return the average latency in ms
+	 */
+	public synchronized long getAverageLatency() {
+		return writeCount == 0 ? 0 : totalLatency / writeCount;
+	}
+
+	/**
+	 * Returns the longest time between submitting and completing a write
+	 *
+	 * @return the max latency in ms
+	 */
+	public synchronized long getMaxLatency() {
+		return maxLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheWriter [backlog=" + getBacklog() + ", writes=" + getWriteCount() + ", failures=" + getFailureCount()
+				+ ", coalesced=" + getCoalescedCount() + ", callerRuns=" + getCallerRunsCount() + ", averageLatency="
+				+ getAverageLatency() + ", maxLatency=" + getMaxLatency() + "]";
+	}
+
+	private static final class Write {
+		private final Context context;
+		private final CacheInformation cacheInformation;
+		private final Payload payload;
+		private final long enqueuedAt = SystemClock.elapsedRealtime();
+
+		private Write(Context context, CacheInformation cacheInformation, Payload payload) {
+			this.context = context;
+			this.cacheInformation = cacheInformation;
+			this.payload = payload;
+		}
+	}
+}
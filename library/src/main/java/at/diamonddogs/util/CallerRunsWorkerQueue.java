@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A {@link BoundedWorkerQueue} that runs tasks on the submitting thread if
+ * pool and queue are saturated, which throttles producers instead of rejecting
+ * tasks. {@link WorkerQueue#getRejectedCount()} returns the number of tasks
+ * that have been run by the caller. Never submit to this queue from the main
+ * thread.
+ */
+public class CallerRunsWorkerQueue extends BoundedWorkerQueue {
+
+	/**
+	 * Creates a {@link CallerRunsWorkerQueue}
+	 *
+	 * @param corePoolSize
+	 *            the core pool size
+	 * @param maxPoolSize
+	 *            the max pool size
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 * @param queueCapacity
+	 *            the maximum number of waiting tasks
+	 */
+	public CallerRunsWorkerQueue(int corePoolSize, int maxPoolSize, long keepAliveTimeMs, int queueCapacity) {
+		super(corePoolSize, maxPoolSize, keepAliveTimeMs, queueCapacity, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+}
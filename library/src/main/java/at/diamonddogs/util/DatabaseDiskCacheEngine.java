@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Process;
+import at.diamonddogs.contentprovider.CacheContentProvider;
+import at.diamonddogs.data.adapter.database.DataBaseAdapterCacheInformation;
+import at.diamonddogs.data.dataobjects.CacheInformation;
+
+/**
+ * The default {@link DiskCacheEngine}, keeps one row per cache file in the
+ * table of {@link CacheContentProvider}. Cache files are stored in
+ * {@link Utils#getCacheDir(Context)}.
+ *
+ * Once the cache files exceed the maximum size, files are evicted on a
+ * background thread after each write, lowest priority first and least recently
+ * used first within the same priority. Files of
+ * {@link CacheInformation#PRIORITY_PINNED} are never evicted, by default this
+ * includes files cached {@link CacheInformation#CACHE_FOREVER} and offline
+ * cache files, see {@link at.diamonddogs.data.dataobjects.WebRequest#getCachePriority()}.
+ *
+ * The table is loaded into an in-memory index on first use and kept in sync
+ * on every change, lookups do not query {@link CacheContentProvider}. The
+ * engine must be the only writer of the table.
+ */
+public class DatabaseDiskCacheEngine implements DiskCacheEngine {
+
+	private static final String TAG = DatabaseDiskCacheEngine.class.getSimpleName();
+
+	/**
+	 * The default maximum size of the cache in bytes
+	 */
+	public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The access time of a file is only written if its last access is older,
+	 * saves a database write per cache hit
+	 */
+	private static final long ACCESS_TIME_RESOLUTION = 60 * 1000;
+
+	/**
+	 * Number of eviction candidates loaded per query
+	 */
+	private static final int EVICTION_BATCH_SIZE = 32;
+
+	/**
+	 * Runs access time updates and evictions
+	 */
+	private final ExecutorService executor;
+
+	private final AtomicBoolean trimPending = new AtomicBoolean(false);
+
+	/**
+	 * {@link CacheInformation} by file name, mirrors the table once
+	 * {@link DatabaseDiskCacheEngine#indexLoaded} is set. Changes are made
+	 * while holding its lock.
+	 */
+	private final Map<String, CacheInformation> index = new ConcurrentHashMap<>();
+
+	private volatile boolean indexLoaded = false;
+
+	private volatile long maxSize;
+
+	private volatile long size = -1;
+
+	private volatile long evictionCount = 0;
+
+	/**
+	 * Only accessed by the {@link DatabaseDiskCacheEngine#executor}
+	 */
+	private boolean sizesChecked = false;
+
+	/**
+	 * Creates a {@link DatabaseDiskCacheEngine} using
+	 * {@link DatabaseDiskCacheEngine#DEFAULT_MAX_SIZE}
+	 */
+	public DatabaseDiskCacheEngine() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a {@link DatabaseDiskCacheEngine}
+	 *
+	 * @param maxSize
+	 *            the maximum size of the cache in bytes
+	 */
+	public DatabaseDiskCacheEngine(long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be > 0");
+		}
+		this.maxSize = maxSize;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public File getDirectory(Context c) {
+		return Utils.getCacheDir(c);
+	}
+
+	@Override
+	public CacheInformation get(Context c, String fileName) {
+		loadIndex(c);
+		// files that have never been cached are the common case
+		if (!index.containsKey(fileName)) {
+			return null;
+		}
+		synchronized (index) {
+			CacheInformation ci = index.get(fileName);
+			if (ci == null) {
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			if (now - ci.getLastAccessTimeStamp() >= ACCESS_TIME_RESOLUTION) {
+				ci.setLastAccessTimeStamp(now);
+				touch(c.getApplicationContext(), ci.get_id(), now);
+			}
+			return new CacheInformation(ci);
+		}
+	}
+
+	@Override
+	public void put(Context c, CacheInformation cacheInformation) {
+		loadIndex(c);
+		cacheInformation.setSize(new File(cacheInformation.getFilePath(), cacheInformation.getFileName()).length());
+		cacheInformation.setLastAccessTimeStamp(System.currentTimeMillis());
+		synchronized (index) {
+			// replaces the row of a file with the same name
+			cacheInformation.set_id(new DataBaseAdapterCacheInformation(cacheInformation).insert(c));
+			index.put(cacheInformation.getFileName(), new CacheInformation(cacheInformation));
+		}
+		scheduleTrim(c.getApplicationContext());
+	}
+
+	@Override
+	public void update(Context c, CacheInformation cacheInformation) {
+		loadIndex(c);
+		synchronized (index) {
+			if (new DataBaseAdapterCacheInformation(cacheInformation).update(c) > 0) {
+				index.put(cacheInformation.getFileName(), new CacheInformation(cacheInformation));
+			}
+		}
+	}
+
+	@Override
+	public void remove(Context c, CacheInformation cacheInformation) {
+		delete(c, cacheInformation);
+		new File(cacheInformation.getFilePath(), cacheInformation.getFileName()).delete();
+	}
+
+	@Override
+	public List<CacheInformation> getAll(Context c) {
+		loadIndex(c);
+		synchronized (index) {
+			List<CacheInformation> ret = new ArrayList<>(index.size());
+			for (CacheInformation ci : index.values()) {
+				ret.add(new CacheInformation(ci));
+			}
+			return ret;
+		}
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum size of the cache, files are evicted after the next
+	 * write if the cache exceeds the new maximum size
+	 *
+	 * @param maxSize
+	 *            the maximum size in bytes
+	 */
+	@Override
+	public void setMaxSize(long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be > 0");
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the number of bytes used by the cache as of the last eviction
+	 * run
+	 *
+	 * @return the size in bytes or -1 if the cache has not been written to yet
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of files evicted to stay within the maximum size
+	 *
+	 * @return the eviction count
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of cached files
+	 *
+	 * @param c
+	 *            a {@link Context}
+	 * @return the number of entries
+	 */
+	public int getEntryCount(Context c) {
+		loadIndex(c);
+		return index.size();
+	}
+
+	private void loadIndex(Context c) {
+		if (indexLoaded) {
+			return;
+		}
+		synchronized (index) {
+			if (!indexLoaded) {
+				for (CacheInformation ci : new DataBaseAdapterCacheInformation().query(c, (Object) null)) {
+					index.put(ci.getFileName(), ci);
+				}
+				indexLoaded = true;
+				Log.d(TAG, "loaded " + index.size() + " entries");
+			}
+		}
+	}
+
+	/**
+	 * Deletes the row of a file
+	 *
+	 * @return <code>false</code> if the row is gone, e.g. because the file has
+	 *         been replaced in the meantime
+	 */
+	private boolean delete(Context c, CacheInformation cacheInformation) {
+		loadIndex(c);
+		synchronized (index) {
+			boolean deleted = new DataBaseAdapterCacheInformation(cacheInformation).delete(c) > 0;
+			CacheInformation ci = index.get(cacheInformation.getFileName());
+			if (ci != null && ci.get_id() == cacheInformation.get_id()) {
+				index.remove(cacheInformation.getFileName());
+			}
+			return deleted;
+		}
+	}
+
+	private void touch(final Context c, final int id, final long accessTimeStamp) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				ContentValues cv = new ContentValues();
+				cv.put(DataBaseAdapterCacheInformation.LASTACCESSTIMESTAMP, accessTimeStamp);
+				try {
+					c.getContentResolver().update(CacheContentProvider.CONTENT_URI, cv, DataBaseAdapterCacheInformation._ID + " = ?",
+							new String[] { String.valueOf(id) });
+				} catch (Throwable tr) {
+					Log.w(TAG, "could not update access time", tr);
+				}
+			}
+		});
+	}
+
+	private void scheduleTrim(final Context c) {
+		// writes during a running eviction schedule one more run
+		if (trimPending.compareAndSet(false, true)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					trimPending.set(false);
+					try {
+						trimToSize(c, maxSize);
+					} catch (Throwable tr) {
+						Log.w(TAG, "could not trim disk cache", tr);
+					}
+				}
+			});
+		}
+	}
+
+	private void trimToSize(Context c, long targetSize) {
+		if (!sizesChecked) {
+			fillInMissingSizes(c);
+			sizesChecked = true;
+		}
+		long currentSize = querySize(c);
+		int count = 0;
+		while (currentSize > targetSize) {
+			List<CacheInformation> candidates = queryEvictionCandidates(c);
+			if (candidates.isEmpty()) {
+				Log.w(TAG, "pinned files exceed the disk cache budget: " + currentSize + " > " + targetSize);
+				break;
+			}
+			int batchCount = 0;
+			for (CacheInformation ci : candidates) {
+				if (currentSize <= targetSize) {
+					break;
+				}
+				// the row is gone if the file has been replaced in the meantime, keep the new file
+				if (delete(c, ci)) {
+					new File(ci.getFilePath(), ci.getFileName()).delete();
+					currentSize -= ci.getSize();
+					batchCount++;
+				}
+			}
+			if (batchCount == 0) {
+				break;
+			}
+			count += batchCount;
+		}
+		size = currentSize;
+		if (count > 0) {
+			evictionCount += count;
+			Log.d(TAG, "evicted " + count + " files, " + currentSize + " of " + targetSize + " bytes used");
+		}
+	}
+
+	private long querySize(Context c) {
+		Cursor cursor = c.getContentResolver().query(CacheContentProvider.CONTENT_URI,
+				new String[] { "SUM(" + DataBaseAdapterCacheInformation.SIZE + ")" }, null, null, null);
+		if (cursor == null) {
+			return 0;
+		}
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private List<CacheInformation> queryEvictionCandidates(Context c) {
+		Uri uri = CacheContentProvider.CONTENT_URI.buildUpon()
+				.appendQueryParameter(CacheContentProvider.QUERY_PARAMETER_LIMIT, String.valueOf(EVICTION_BATCH_SIZE)).build();
+		// @formatter:off
+		Cursor cursor = c.getContentResolver().query(
+				uri,
+				null,
+				DataBaseAdapterCacheInformation.PRIORITY + " < ?",
+				new String[] { String.valueOf(CacheInformation.PRIORITY_PINNED) },
+				DataBaseAdapterCacheInformation.PRIORITY + " ASC, " + DataBaseAdapterCacheInformation.LASTACCESSTIMESTAMP + " ASC"
+		);
+		// @formatter:on
+		return read(cursor);
+	}
+
+	/**
+	 * Files cached before sizes were recorded have a size of 0
+	 */
+	private void fillInMissingSizes(Context c) {
+		Cursor cursor = c.getContentResolver().query(CacheContentProvider.CONTENT_URI, null,
+				DataBaseAdapterCacheInformation.SIZE + " = 0", null, null);
+		for (CacheInformation ci : read(cursor)) {
+			File file = new File(ci.getFilePath(), ci.getFileName());
+			if (!file.exists()) {
+				remove(c, ci);
+			} else if (file.length() > 0) {
+				ci.setSize(file.length());
+				update(c, ci);
+			}
+		}
+	}
+
+	private List<CacheInformation> read(Cursor cursor) {
+		List<CacheInformation> ret = new ArrayList<>();
+		if (cursor == null) {
+			return ret;
+		}
+		try {
+			DataBaseAdapterCacheInformation dbaci = new DataBaseAdapterCacheInformation();
+			while (cursor.moveToNext()) {
+				ret.add(dbaci.deserialize(cursor));
+			}
+		} finally {
+			cursor.close();
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return "DatabaseDiskCacheEngine [size=" + size + ", maxSize=" + maxSize + ", evictions=" + evictionCount + "]";
+	}
+}
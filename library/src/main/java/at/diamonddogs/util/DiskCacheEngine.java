@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.io.File;
+import java.util.List;
+
+import android.content.Context;
+import at.diamonddogs.data.dataobjects.CacheInformation;
+
+/**
+ * Keeps track of the files of the file cache, see
+ * {@link CacheManager#setDiskCacheEngine(DiskCacheEngine)}. Cache files are
+ * written to {@link DiskCacheEngine#getDirectory(Context)} first and then
+ * handed to {@link DiskCacheEngine#put(Context, CacheInformation)}. Engines
+ * keep the cache within a maximum size by evicting files of a low
+ * {@link CacheInformation#getPriority()} first.
+ */
+public interface DiskCacheEngine {
+
+	/**
+	 * Returns the directory cache files should be written to
+	 *
+	 * @param c
+	 *            a {@link Context}
+	 * @return the cache directory
+	 */
+	File getDirectory(Context c);
+
+	/**
+	 * Looks up the {@link CacheInformation} of a cache file
+	 *
+	 * @param c
+	 *            a {@link Context}
+	 * @param fileName
+	 *            the name of the cache file
+	 * @return the {@link CacheInformation} or <code>null</code> if the file is
+	 *         not cached
+	 */
+	CacheInformation get(Context c, String fileName);
+
+	/**
+	 * Adds a complete cache file, replaces the {@link CacheInformation} of a
+	 * file with the same name
+	 *
+	 * @param c
+	 *            a {@link Context}
+	 * @param cacheInformation
+	 *            the {@link CacheInformation} of the file
+	 */
+	void put(Context c, CacheInformation cacheInformation);
+
+	/**
+	 * Updates the {@link CacheInformation} of a cached file, e.g. after it has
+	 * been revalidated
+	 *
+	 * @param c
+	 *            a {@link Context}
+	 * @param cacheInformation
+	 *            the {@link CacheInformation} obtained from
+	 *            {@link DiskCacheEngine#get(Context, String)}
+	 */
+	void update(Context c, CacheInformation cacheInformation);
+
+	/**
+	 * Removes a cache file and its {@link CacheInformation}
+	 *
+	 * @param c
+	 *            a {@link Context}
+	 * @param cacheInformation
+	 *            the {@link CacheInformation} of the file
+	 */
+	void remove(Context c, CacheInformation cacheInformation);
+
+	/**
+	 * Returns the {@link CacheInformation} of all cached files
+	 *
+	 * @param c
+	 *            a {@link Context}
+	 * @return all {@link CacheInformation}s
+	 */
+	List<CacheInformation> getAll(Context c);
+
+	/**
+	 * Returns the maximum size of the cache
+	 *
+	 * @return the maximum size in bytes
+	 */
+	long getMaxSize();
+
+	/**
+	 * Sets the maximum size of the cache, files of
+	 * {@link CacheInformation#PRIORITY_PINNED} are never evicted to stay
+	 * within it
+	 *
+	 * @param maxSize
+	 *            the maximum size in bytes
+	 */
+	void setMaxSize(long maxSize);
+}
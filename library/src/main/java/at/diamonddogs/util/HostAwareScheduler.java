@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import at.diamonddogs.data.dataobjects.NonTimeCriticalTask;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.net.WebClient;
+import at.diamonddogs.util.HostPartitionedWorkerQueue.HostPartitionKeyProvider;
+import at.diamonddogs.util.HostPartitionedWorkerQueue.PartitionKeyProvider;
+
+/**
+ * A {@link WorkerQueue} that sits in front of another {@link WorkerQueue} and
+ * decides which task is handed to it next. Tasks are queued per host (or host
+ * group, see {@link HostPartitionKeyProvider}), at most
+ * maxConcurrentPerHost tasks of a single host run at the same time and hosts
+ * are served round robin, so that a burst of requests to one host cannot
+ * starve requests to other hosts. At most maxConcurrent tasks are handed to
+ * the underlying {@link WorkerQueue} at any given time, this value should
+ * match the number of workers of that queue.
+ * <p/>
+ * Tasks have a priority level (see {@link PriorityProvider}), lower levels are
+ * started first. Priorities age: a task's effective level drops by one for
+ * every agingIntervalMs it has been waiting, so that low priority tasks are
+ * not starved by a steady stream of high priority tasks. Hosts whose next
+ * tasks have the same effective level are served round robin.
+ * <p/>
+ * If the delegate rejects a task while it is being submitted,
+ * {@link HostAwareScheduler#runCancelableTask(Callable)} returns
+ * <code>null</code>. Tasks that are rejected later on, after they have been
+ * queued, or that are dropped by {@link HostAwareScheduler#shutDown()} are
+ * reported to the {@link RejectionListener}.
+ */
+public class HostAwareScheduler implements WorkerQueue {
+
+	private static final String TAG = HostAwareScheduler.class.getSimpleName();
+
+	/**
+	 * The default aging interval in ms
+	 */
+	public static final long DEFAULT_AGING_INTERVAL = 1000;
+
+	private static final Comparator<ScheduledTask<?>> TASK_ORDER = new Comparator<ScheduledTask<?>>() {
+		@Override
+		public int compare(ScheduledTask<?> lhs, ScheduledTask<?> rhs) {
+			if (lhs.score != rhs.score) {
+				return lhs.score < rhs.score ? -1 : 1;
+			}
+			return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+		}
+	};
+
+	private final WorkerQueue delegate;
+	private final PartitionKeyProvider partitionKeyProvider;
+	private final PriorityProvider priorityProvider;
+	private final long agingIntervalMs;
+	private final int maxConcurrent;
+	private final int maxConcurrentPerHost;
+	private volatile RejectionListener rejectionListener;
+
+	/**
+	 * All hosts known to this scheduler, iteration order is the round robin
+	 * order
+	 */
+	private final LinkedHashMap<String, HostQueue> hosts = new LinkedHashMap<>();
+
+	private long sequence = 0;
+	private int running = 0;
+	private long rejectedCount = 0;
+	private long startedCount = 0;
+	private long totalWaitTime = 0;
+	private long maxWaitTime = 0;
+
+	/**
+	 * Creates a {@link HostAwareScheduler} that groups tasks by host and
+	 * prioritizes them using {@link WebRequestPriorityProvider}
+	 *
+	 * @param delegate
+	 *            the {@link WorkerQueue} that executes the tasks
+	 * @param maxConcurrent
+	 *            the max number of tasks handed to delegate at the same time
+	 * @param maxConcurrentPerHost
+	 *            the max number of tasks of a single host running at the same
+	 *            time
+	 */
+	public HostAwareScheduler(WorkerQueue delegate, int maxConcurrent, int maxConcurrentPerHost) {
+		this(delegate, maxConcurrent, maxConcurrentPerHost, new HostPartitionKeyProvider(), new WebRequestPriorityProvider(),
+				DEFAULT_AGING_INTERVAL);
+	}
+
+	/**
+	 * Creates a {@link HostAwareScheduler}
+	 *
+	 * @param delegate
+	 *            the {@link WorkerQueue} that executes the tasks
+	 * @param maxConcurrent
+	 *            the max number of tasks handed to delegate at the same time
+	 * @param maxConcurrentPerHost
+	 *            the max number of tasks of a single host running at the same
+	 *            time
+	 * @param partitionKeyProvider
+	 *            assigns tasks to hosts
+	 * @param priorityProvider
+	 *            assigns priority levels to tasks
+	 * @param agingIntervalMs
+	 *            the time after which a waiting task's effective priority
+	 *            level is lowered by one
+	 */
+	public HostAwareScheduler(WorkerQueue delegate, int maxConcurrent, int maxConcurrentPerHost,
+			PartitionKeyProvider partitionKeyProvider, PriorityProvider priorityProvider, long agingIntervalMs) {
+		if (maxConcurrent < 1 || maxConcurrentPerHost < 1) {
+			throw new IllegalArgumentException("maxConcurrent and maxConcurrentPerHost must be > 0");
+		}
+		if (agingIntervalMs < 1) {
+			throw new IllegalArgumentException("agingIntervalMs must be > 0");
+		}
+		this.priorityProvider = priorityProvider;
+		this.agingIntervalMs = agingIntervalMs;
+		this.delegate = delegate;
+		this.maxConcurrent = maxConcurrent;
+		this.maxConcurrentPerHost = maxConcurrentPerHost;
+		this.partitionKeyProvider = partitionKeyProvider;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T> Future<T> runCancelableTask(Callable<T> task) {
+		if (delegate.isShutDown()) {
+			return null;
+		}
+		String host = partitionKeyProvider.getPartitionKey(Utils.unwrapCallable(task));
+		if (host == null) {
+			host = HostPartitionedWorkerQueue.DEFAULT_PARTITION;
+		}
+		ScheduledTask<T> scheduledTask = new ScheduledTask<>(task, host);
+		synchronized (hosts) {
+			scheduledTask.sequence = sequence++;
+			scheduledTask.score = getScore(scheduledTask);
+			HostQueue hostQueue = hosts.get(host);
+			if (hostQueue == null) {
+				hostQueue = new HostQueue(host);
+				hosts.put(host, hostQueue);
+			}
+			hostQueue.pending.add(scheduledTask);
+		}
+		dispatch();
+		synchronized (scheduledTask) {
+			// rejections from now on are reported to the RejectionListener
+			scheduledTask.admitted = true;
+			if (scheduledTask.rejected) {
+				return null;
+			}
+		}
+		return scheduledTask;
+	}
+
+	/**
+	 * Sets the {@link RejectionListener} that is informed about queued tasks
+	 * that will never run
+	 *
+	 * @param rejectionListener
+	 *            the {@link RejectionListener}, may be <code>null</code>
+	 */
+	public void setRejectionListener(RejectionListener rejectionListener) {
+		this.rejectionListener = rejectionListener;
+	}
+
+	/**
+	 * Recomputes the priority of a pending task, call this method after the
+	 * priority of the task's {@link Callable} has changed
+	 *
+	 * @param future
+	 *            a {@link Future} returned by this scheduler
+	 * @return <code>true</code> if the task was still pending and has been
+	 *         reordered, <code>false</code> otherwise
+	 */
+	public boolean reprioritize(Future<?> future) {
+		if (!(future instanceof ScheduledTask<?>)) {
+			return false;
+		}
+		ScheduledTask<?> task = (ScheduledTask<?>) future;
+		synchronized (hosts) {
+			HostQueue hostQueue = hosts.get(task.host);
+			if (hostQueue == null || !hostQueue.pending.remove(task)) {
+				return false;
+			}
+			task.score = getScore(task);
+			hostQueue.pending.add(task);
+		}
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * The score orders the tasks of a host queue: tasks with a lower score
+	 * are started first. Adding the enqueue time implements aging.
+	 */
+	private long getScore(ScheduledTask<?> task) {
+		return task.enqueueTime + priorityProvider.getPriorityLevel(Utils.unwrapCallable(task.callable)) * agingIntervalMs;
+	}
+
+	/**
+	 * Hands pending tasks to the delegate, as long as there are free slots.
+	 * The host whose next task has the lowest effective priority level is
+	 * served first, hosts with the same level are served round robin. A host
+	 * that received a slot is moved to the end of the round robin order.
+	 */
+	private void dispatch() {
+		while (true) {
+			ScheduledTask<?> next = null;
+			synchronized (hosts) {
+				if (running >= maxConcurrent) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				HostQueue selected = null;
+				long selectedLevel = Long.MAX_VALUE;
+				for (HostQueue hostQueue : hosts.values()) {
+					ScheduledTask<?> head = hostQueue.pending.peek();
+					if (hostQueue.running < maxConcurrentPerHost && head != null) {
+						long level = floorDiv(head.score - now, agingIntervalMs);
+						if (level < selectedLevel) {
+							selected = hostQueue;
+							selectedLevel = level;
+						}
+					}
+				}
+				if (selected == null) {
+					return;
+				}
+				next = selected.pending.poll();
+				selected.running++;
+				running++;
+				hosts.remove(selected.host);
+				hosts.put(selected.host, selected);
+			}
+			if (delegate.runCancelableTask(next.runner) == null) {
+				Log.w(TAG, "task rejected by delegate: " + next);
+				synchronized (hosts) {
+					rejectedCount++;
+				}
+				freeSlot(next);
+				reject(next);
+			}
+		}
+	}
+
+	private static long floorDiv(long x, long y) {
+		long r = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0)) {
+			r--;
+		}
+		return r;
+	}
+
+	/**
+	 * Fails the {@link Future} of a task that will never run and informs the
+	 * {@link RejectionListener} unless the task is still being submitted, in
+	 * which case runCancelableTask returns <code>null</code>
+	 */
+	private void reject(ScheduledTask<?> task) {
+		boolean admitted;
+		synchronized (task) {
+			task.rejected = true;
+			admitted = task.admitted;
+		}
+		task.reject();
+		RejectionListener listener = rejectionListener;
+		if (admitted && listener != null) {
+			listener.onRejected(task.callable);
+		}
+	}
+
+	private void release(ScheduledTask<?> task) {
+		freeSlot(task);
+		dispatch();
+	}
+
+	/**
+	 * Frees the slot of a task that has been handed to the delegate
+	 */
+	private void freeSlot(ScheduledTask<?> task) {
+		synchronized (hosts) {
+			running--;
+			HostQueue hostQueue = hosts.get(task.host);
+			if (hostQueue != null) {
+				hostQueue.running--;
+				if (hostQueue.running == 0 && hostQueue.pending.isEmpty()) {
+					hosts.remove(task.host);
+				}
+			}
+		}
+	}
+
+	private void started(ScheduledTask<?> task) {
+		long waitTime = System.currentTimeMillis() - task.enqueueTime;
+		synchronized (hosts) {
+			startedCount++;
+			totalWaitTime += waitTime;
+			maxWaitTime = Math.max(maxWaitTime, waitTime);
+			HostQueue hostQueue = hosts.get(task.host);
+			if (hostQueue != null) {
+				hostQueue.statistics.record(waitTime);
+			}
+		}
+	}
+
+	private void cancelled(ScheduledTask<?> task) {
+		synchronized (hosts) {
+			HostQueue hostQueue = hosts.get(task.host);
+			if (hostQueue != null && hostQueue.pending.remove(task) && hostQueue.running == 0
+					&& hostQueue.pending.isEmpty()) {
+				hosts.remove(task.host);
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of all hosts that currently have
+	 * running or pending tasks
+	 *
+	 * @return a map of host to {@link HostStatistics}
+	 */
+	public Map<String, HostStatistics> getHostStatistics() {
+		synchronized (hosts) {
+			Map<String, HostStatistics> ret = new HashMap<>();
+			for (HostQueue hostQueue : hosts.values()) {
+				ret.put(hostQueue.host, new HostStatistics(hostQueue));
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Returns the {@link WorkerQueue} that executes the tasks
+	 *
+	 * @return the delegate
+	 */
+	public WorkerQueue getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isShutDown() {
+		return delegate.isShutDown();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void shutDown() {
+		List<ScheduledTask<?>> dropped = new ArrayList<>();
+		synchronized (hosts) {
+			for (HostQueue hostQueue : hosts.values()) {
+				dropped.addAll(hostQueue.pending);
+			}
+			hosts.clear();
+		}
+		delegate.shutDown();
+		for (ScheduledTask<?> task : dropped) {
+			reject(task);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getQueueDepth() {
+		int depth = 0;
+		synchronized (hosts) {
+			for (HostQueue hostQueue : hosts.values()) {
+				depth += hostQueue.pending.size();
+			}
+		}
+		return depth + delegate.getQueueDepth();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getActiveCount() {
+		return delegate.getActiveCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRejectedCount() {
+		synchronized (hosts) {
+			return rejectedCount;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getStartedCount() {
+		synchronized (hosts) {
+			return startedCount;
+		}
+	}
+
+	/**
+	 * Returns the average time a task waited, measured from the time it was
+	 * passed to this scheduler until it was started by the delegate
+	 *
+	 * @return the average wait time in ms
+	 */
+	@Override
+	public long getAverageWaitTime() {
+		synchronized (hosts) {
+			return startedCount == 0 ? 0 : totalWaitTime / startedCount;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMaxWaitTime() {
+		synchronized (hosts) {
+			return maxWaitTime;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [queueDepth=" + getQueueDepth() + ", active=" + getActiveCount() + ", hosts="
+				+ getHostStatistics().values() + ", avgWait=" + getAverageWaitTime() + "ms, maxWait=" + getMaxWaitTime() + "ms]";
+	}
+
+	/**
+	 * Wait time statistics of a single host
+	 */
+	public static class HostStatistics {
+		private final String host;
+		private final int running;
+		private final int pending;
+		private final long startedCount;
+		private final long averageWaitTime;
+		private final long maxWaitTime;
+
+		private HostStatistics(HostQueue hostQueue) {
+			this.host = hostQueue.host;
+			this.running = hostQueue.running;
+			this.pending = hostQueue.pending.size();
+			this.startedCount = hostQueue.statistics.startedCount;
+			this.averageWaitTime = startedCount == 0 ? 0 : hostQueue.statistics.totalWaitTime / startedCount;
+			this.maxWaitTime = hostQueue.statistics.maxWaitTime;
+		}
+
+		@SuppressWarnings("javadoc")
+		public String getHost() {
+			return host;
+		}
+
+		@SuppressWarnings("javadoc")
+		public int getRunning() {
+			return running;
+		}
+
+		@SuppressWarnings("javadoc")
+		public int getPending() {
+			return pending;
+		}
+
+		@SuppressWarnings("javadoc")
+		public long getStartedCount() {
+			return startedCount;
+		}
+
+		@SuppressWarnings("javadoc")
+		public long getAverageWaitTime() {
+			return averageWaitTime;
+		}
+
+		@SuppressWarnings("javadoc")
+		public long getMaxWaitTime() {
+			return maxWaitTime;
+		}
+
+		@Override
+		public String toString() {
+			return "HostStatistics [host=" + host + ", running=" + running + ", pending=" + pending + ", started="
+					+ startedCount + ", avgWait=" + averageWaitTime + "ms, maxWait=" + maxWaitTime + "ms]";
+		}
+	}
+
+	private static final class WaitTimeCounter {
+		private long startedCount;
+		private long totalWaitTime;
+		private long maxWaitTime;
+
+		private void record(long waitTime) {
+			startedCount++;
+			totalWaitTime += waitTime;
+			maxWaitTime = Math.max(maxWaitTime, waitTime);
+		}
+	}
+
+	private static final class HostQueue {
+		private final String host;
+		private final Queue<ScheduledTask<?>> pending = new PriorityQueue<>(11, TASK_ORDER);
+		private final WaitTimeCounter statistics = new WaitTimeCounter();
+		private int running;
+
+		private HostQueue(String host) {
+			this.host = host;
+		}
+	}
+
+	/**
+	 * Informed about tasks that have been queued by a
+	 * {@link HostAwareScheduler} but will never run, because the delegate
+	 * rejected them or the {@link HostAwareScheduler} has been shut down
+	 */
+	public interface RejectionListener {
+		/**
+		 * Called after the {@link Future} of the task has failed with a
+		 * {@link RejectedExecutionException}, no locks are held
+		 *
+		 * @param task
+		 *            the task passed to
+		 *            {@link HostAwareScheduler#runCancelableTask(Callable)}
+		 */
+		void onRejected(Callable<?> task);
+	}
+
+	/**
+	 * Assigns priority levels to tasks, lower levels are started first
+	 */
+	public interface PriorityProvider {
+		/**
+		 * Returns the priority level of a task
+		 *
+		 * @param task
+		 *            the task
+		 * @return the priority level, lower levels are started first
+		 */
+		int getPriorityLevel(Callable<?> task);
+	}
+
+	/**
+	 * Prioritizes {@link WebClient}s by the {@link WebRequest#getPriority()}
+	 * of their {@link WebRequest}. Non time critical {@link WebRequest}s are
+	 * placed behind all time critical {@link WebRequest}s of the same
+	 * priority.
+	 */
+	public static class WebRequestPriorityProvider implements PriorityProvider {
+
+		private static final int NON_TIME_CRITICAL_OFFSET = NonTimeCriticalTask.PRIORITY.values().length;
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int getPriorityLevel(Callable<?> task) {
+			if (task instanceof WebClient) {
+				WebRequest webRequest = ((WebClient) task).getWebRequest();
+				if (webRequest != null) {
+					int level = webRequest.getPriority() == null ? NonTimeCriticalTask.PRIORITY.NORMAL.ordinal()
+							: webRequest.getPriority().ordinal();
+					return webRequest.isTimeCritical() ? level : level + NON_TIME_CRITICAL_OFFSET;
+				}
+			}
+			return NonTimeCriticalTask.PRIORITY.NORMAL.ordinal();
+		}
+	}
+
+	/**
+	 * The {@link Future} handed out by {@link HostAwareScheduler}. Cancelling
+	 * it while it is pending removes it from its host queue, cancelling it
+	 * while it is running interrupts the worker thread.
+	 */
+	private final class ScheduledTask<T> extends FutureTask<T> {
+		private final Callable<T> callable;
+		private final String host;
+		private final long enqueueTime;
+		private long sequence;
+		private long score;
+		/** guarded by the task itself */
+		private boolean admitted;
+		/** guarded by the task itself */
+		private boolean rejected;
+		/**
+		 * Handed to the delegate, exposes the original task so that the
+		 * delegate can partition or prioritize it
+		 */
+		private final WrappedCallable<Void> runner = new WrappedCallable<Void>() {
+			@Override
+			public Callable<?> getWrappedCallable() {
+				return callable;
+			}
+
+			@Override
+			public Void call() {
+				try {
+					if (!isDone()) {
+						started(ScheduledTask.this);
+						run();
+					}
+				} finally {
+					release(ScheduledTask.this);
+				}
+				return null;
+			}
+		};
+
+		private ScheduledTask(Callable<T> callable, String host) {
+			super(callable);
+			this.callable = callable;
+			this.host = host;
+			this.enqueueTime = System.currentTimeMillis();
+		}
+
+		private void reject() {
+			setException(new RejectedExecutionException("task rejected"));
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled()) {
+				cancelled(this);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "ScheduledTask [host=" + host + "]";
+		}
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.net.WebClient;
+
+/**
+ * A {@link WorkerQueue} that maintains one thread pool per partition (by
+ * default the host of a {@link WebClient}'s {@link WebRequest}), so that a slow
+ * host can never occupy the workers of other hosts. Idle partitions are
+ * dropped before a new partition is created, once the max number of
+ * partitions has been reached, tasks of new partitions are executed by
+ * {@link #DEFAULT_PARTITION}.
+ */
+public class HostPartitionedWorkerQueue implements WorkerQueue {
+
+	private static final String TAG = HostPartitionedWorkerQueue.class.getSimpleName();
+
+	/**
+	 * The partition key used for tasks that cannot be assigned to a host
+	 */
+	public static final String DEFAULT_PARTITION = "default";
+
+	/**
+	 * The default max number of partitions
+	 */
+	public static final int DEFAULT_MAX_PARTITIONS = 16;
+
+	private final int threadsPerPartition;
+	private final long keepAliveTimeMs;
+	private final int maxPartitions;
+	private final PartitionKeyProvider partitionKeyProvider;
+	private final Map<String, ThreadPoolWorkerQueue> partitions = new HashMap<>();
+	private boolean shutDown = false;
+
+	/**
+	 * Statistics of dropped partitions, guarded by partitions
+	 */
+	private long droppedRejectedCount = 0;
+	private long droppedStartedCount = 0;
+	private long droppedWaitTime = 0;
+	private long droppedMaxWaitTime = 0;
+
+	/**
+	 * Creates a {@link HostPartitionedWorkerQueue} that partitions by host
+	 *
+	 * @param threadsPerPartition
+	 *            the max pool size of each partition
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 */
+	public HostPartitionedWorkerQueue(int threadsPerPartition, long keepAliveTimeMs) {
+		this(threadsPerPartition, keepAliveTimeMs, new HostPartitionKeyProvider());
+	}
+
+	/**
+	 * Creates a {@link HostPartitionedWorkerQueue}
+	 *
+	 * @param threadsPerPartition
+	 *            the max pool size of each partition
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 * @param partitionKeyProvider
+	 *            assigns tasks to partitions
+	 */
+	public HostPartitionedWorkerQueue(int threadsPerPartition, long keepAliveTimeMs, PartitionKeyProvider partitionKeyProvider) {
+		this(threadsPerPartition, keepAliveTimeMs, DEFAULT_MAX_PARTITIONS, partitionKeyProvider);
+	}
+
+	/**
+	 * Creates a {@link HostPartitionedWorkerQueue}
+	 *
+	 * @param threadsPerPartition
+	 *            the max pool size of each partition
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 * @param maxPartitions
+	 *            the max number of partitions, including
+	 *            {@link #DEFAULT_PARTITION}
+	 * @param partitionKeyProvider
+	 *            assigns tasks to partitions
+	 */
+	public HostPartitionedWorkerQueue(int threadsPerPartition, long keepAliveTimeMs, int maxPartitions,
+			PartitionKeyProvider partitionKeyProvider) {
+		if (maxPartitions < 1) {
+			throw new IllegalArgumentException("maxPartitions must be > 0");
+		}
+		this.threadsPerPartition = threadsPerPartition;
+		this.keepAliveTimeMs = keepAliveTimeMs;
+		this.maxPartitions = maxPartitions;
+		this.partitionKeyProvider = partitionKeyProvider;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T> Future<T> runCancelableTask(Callable<T> task) {
+		synchronized (partitions) {
+			if (shutDown) {
+				return null;
+			}
+			String key = partitionKeyProvider.getPartitionKey(Utils.unwrapCallable(task));
+			if (key == null) {
+				key = DEFAULT_PARTITION;
+			}
+			ThreadPoolWorkerQueue partition = partitions.get(key);
+			if (partition == null) {
+				dropIdlePartitions();
+				int reserved = partitions.containsKey(DEFAULT_PARTITION) || DEFAULT_PARTITION.equals(key) ? 0 : 1;
+				if (partitions.size() + reserved >= maxPartitions && !DEFAULT_PARTITION.equals(key)) {
+					Log.d(TAG, "max partitions reached, using " + DEFAULT_PARTITION + " for: " + key);
+					key = DEFAULT_PARTITION;
+					partition = partitions.get(key);
+				}
+			}
+			if (partition == null) {
+				Log.d(TAG, "creating partition: " + key);
+				partition = new ThreadPoolWorkerQueue(threadsPerPartition, threadsPerPartition, keepAliveTimeMs);
+				partitions.put(key, partition);
+			}
+			// submitting does not block, doing it while holding the lock makes
+			// sure that the partition is not dropped in the meantime
+			return partition.runCancelableTask(task);
+		}
+	}
+
+	/**
+	 * Drops all partitions that neither have queued nor running tasks. The
+	 * threads of a dropped partition terminate once the keep alive time has
+	 * passed, its statistics are kept. Must be called while holding
+	 * partitions.
+	 */
+	private void dropIdlePartitions() {
+		Iterator<Map.Entry<String, ThreadPoolWorkerQueue>> iterator = partitions.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, ThreadPoolWorkerQueue> entry = iterator.next();
+			ThreadPoolWorkerQueue partition = entry.getValue();
+			if (partition.getQueueDepth() == 0 && partition.getActiveCount() == 0) {
+				Log.d(TAG, "dropping idle partition: " + entry.getKey());
+				iterator.remove();
+				droppedRejectedCount += partition.getRejectedCount();
+				droppedStartedCount += partition.getStartedCount();
+				droppedWaitTime += partition.getAverageWaitTime() * partition.getStartedCount();
+				droppedMaxWaitTime = Math.max(droppedMaxWaitTime, partition.getMaxWaitTime());
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isShutDown() {
+		synchronized (partitions) {
+			return shutDown;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void shutDown() {
+		synchronized (partitions) {
+			shutDown = true;
+			for (WorkerQueue partition : partitions.values()) {
+				partition.shutDown();
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of all partitions
+	 *
+	 * @return a {@link Map} of partition keys and their {@link WorkerQueue}
+	 */
+	public Map<String, WorkerQueue> getPartitions() {
+		synchronized (partitions) {
+			return new HashMap<String, WorkerQueue>(partitions);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getQueueDepth() {
+		int ret = 0;
+		for (WorkerQueue partition : getPartitions().values()) {
+			ret += partition.getQueueDepth();
+		}
+		return ret;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getActiveCount() {
+		int ret = 0;
+		for (WorkerQueue partition : getPartitions().values()) {
+			ret += partition.getActiveCount();
+		}
+		return ret;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRejectedCount() {
+		long ret;
+		synchronized (partitions) {
+			ret = droppedRejectedCount;
+		}
+		for (WorkerQueue partition : getPartitions().values()) {
+			ret += partition.getRejectedCount();
+		}
+		return ret;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getStartedCount() {
+		long ret;
+		synchronized (partitions) {
+			ret = droppedStartedCount;
+		}
+		for (WorkerQueue partition : getPartitions().values()) {
+			ret += partition.getStartedCount();
+		}
+		return ret;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getAverageWaitTime() {
+		long started;
+		long waitTime;
+		synchronized (partitions) {
+			started = droppedStartedCount;
+			waitTime = droppedWaitTime;
+		}
+		for (WorkerQueue partition : getPartitions().values()) {
+			started += partition.getStartedCount();
+			waitTime += partition.getAverageWaitTime() * partition.getStartedCount();
+		}
+		return started == 0 ? 0 : waitTime / started;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMaxWaitTime() {
+		long ret;
+		synchronized (partitions) {
+			ret = droppedMaxWaitTime;
+		}
+		for (WorkerQueue partition : getPartitions().values()) {
+			ret = Math.max(ret, partition.getMaxWaitTime());
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return "HostPartitionedWorkerQueue " + getPartitions();
+	}
+
+	/**
+	 * Assigns tasks to partitions
+	 */
+	public interface PartitionKeyProvider {
+		/**
+		 * Returns the partition key of a task
+		 *
+		 * @param task
+		 *            the task to be executed
+		 * @return the partition key or <code>null</code> to use
+		 *         {@link HostPartitionedWorkerQueue#DEFAULT_PARTITION}
+		 */
+		String getPartitionKey(Callable<?> task);
+	}
+
+	/**
+	 * Partitions {@link WebClient}s by the host group of their
+	 * {@link WebRequest}, falls back to the host of the {@link WebRequest}'s
+	 * url if no host group has been set
+	 */
+	public static class HostPartitionKeyProvider implements PartitionKeyProvider {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String getPartitionKey(Callable<?> task) {
+			if (task instanceof WebClient) {
+				WebRequest webRequest = ((WebClient) task).getWebRequest();
+				if (webRequest != null) {
+					if (webRequest.getHostGroup() != null) {
+						return webRequest.getHostGroup();
+					}
+					if (webRequest.getUrl() != null) {
+						return webRequest.getUrl().getHost();
+					}
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.os.SystemClock;
+import at.diamonddogs.contentprovider.CacheContentProvider;
+import at.diamonddogs.data.dataobjects.CacheInformation;
+
+/**
+ * A {@link DiskCacheEngine} that does not use {@link CacheContentProvider}.
+ * The {@link CacheInformation} of all cache files is kept in memory and
+ * persisted to an append-only journal, which is replayed when the engine is
+ * first used. A file is committed by appending a line to the journal after it
+ * has been completely written, files without a journal entry are deleted on
+ * startup. Once the cache exceeds its maximum size, files are evicted lowest
+ * priority first and least recently used first within the same priority. The journal is compacted once it contains too many
+ * redundant lines.
+ *
+ * READ lines only preserve the access order, they are buffered and written
+ * together with the next PUT or REMOVE line, so that a cache hit does not
+ * cause disk I/O.
+ */
+public class JournaledDiskCacheEngine implements DiskCacheEngine {
+
+	private static final String TAG = JournaledDiskCacheEngine.class.getSimpleName();
+
+	/**
+	 * The default maximum size of the cache in bytes
+	 */
+	public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * The name of the cache directory, relative to
+	 * {@link Utils#getCacheDir(Context)}
+	 */
+	public static final String DIRECTORY = "journaled-cache";
+
+	private static final String JOURNAL_FILE = "journal";
+	private static final String JOURNAL_FILE_TMP = "journal.tmp";
+	private static final String MAGIC = "at.diamonddogs.JournaledDiskCacheEngine";
+	private static final String VERSION = "1";
+
+	private static final String PUT = "PUT";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+
+	/**
+	 * Number of redundant journal lines that triggers a compaction
+	 */
+	private static final int COMPACTION_THRESHOLD = 2000;
+
+	private static final Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry lhs, Entry rhs) {
+			int l = lhs.cacheInformation.getPriority();
+			int r = rhs.cacheInformation.getPriority();
+			return l < r ? -1 : (l == r ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Time in ms to wait before the journal is rebuilt after it could not be
+	 * written
+	 */
+	private static final long JOURNAL_RETRY_INTERVAL = 30 * 1000;
+
+	/**
+	 * Entries by file name in access order, the first entry is the least
+	 * recently used one
+	 */
+	private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(0, 0.75f, true);
+
+	private File directory;
+	private Writer journalWriter;
+	private long maxSize;
+	private long size = 0;
+	private int redundantOpCount = 0;
+	private long evictionCount = 0;
+	/**
+	 * {@link SystemClock#elapsedRealtime()} after which a missing journal
+	 * writer is recreated
+	 */
+	private long journalRetryTime = 0;
+
+	/**
+	 * Creates a {@link JournaledDiskCacheEngine} using
+	 * {@link JournaledDiskCacheEngine#DEFAULT_MAX_SIZE}
+	 */
+	public JournaledDiskCacheEngine() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a {@link JournaledDiskCacheEngine}
+	 *
+	 * @param maxSize
+	 *            the maximum size of the cache in bytes
+	 */
+	public JournaledDiskCacheEngine(long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be > 0");
+		}
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public synchronized File getDirectory(Context c) {
+		open(c);
+		return directory;
+	}
+
+	@Override
+	public synchronized CacheInformation get(Context c, String fileName) {
+		open(c);
+		Entry entry = index.get(fileName);
+		if (entry == null) {
+			return null;
+		}
+		appendToJournal(READ, fileName, false);
+		redundantOpCount++;
+		compactIfNeeded();
+		return copy(entry.cacheInformation);
+	}
+
+	@Override
+	public synchronized void put(Context c, CacheInformation cacheInformation) {
+		open(c);
+		String fileName = cacheInformation.getFileName();
+		File file = new File(cacheInformation.getFilePath(), fileName);
+		if (!directory.equals(file.getParentFile())) {
+			// the file has been written to another directory, move it to the cache
+			File target = new File(directory, fileName);
+			if (!file.renameTo(target)) {
+				Log.w(TAG, "could not move " + file + " to " + directory);
+				return;
+			}
+			file = target;
+		}
+		if (!file.exists()) {
+			Log.w(TAG, "not adding missing file " + file);
+			return;
+		}
+		CacheInformation ci = copy(cacheInformation);
+		ci.setFilePath(directory.getPath());
+		ci.setSize(file.length());
+		Entry old = index.put(fileName, new Entry(ci, file.length()));
+		if (old != null) {
+			size -= old.length;
+			redundantOpCount++;
+		}
+		size += file.length();
+		appendToJournal(PUT, serialize(ci, file.length()), true);
+		trimToSize(maxSize);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized void update(Context c, CacheInformation cacheInformation) {
+		put(c, cacheInformation);
+	}
+
+	@Override
+	public synchronized void remove(Context c, CacheInformation cacheInformation) {
+		open(c);
+		removeEntry(cacheInformation.getFileName(), true);
+		new File(directory, cacheInformation.getFileName()).delete();
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized List<CacheInformation> getAll(Context c) {
+		open(c);
+		List<CacheInformation> ret = new ArrayList<>(index.size());
+		for (Entry entry : index.values()) {
+			ret.add(copy(entry.cacheInformation));
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the number of bytes used by the cache
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum size of the cache, evicts files if the cache exceeds
+	 * the new maximum size
+	 *
+	 * @param maxSize
+	 *            the maximum size in bytes
+	 */
+	@Override
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		if (directory != null) {
+			trimToSize(maxSize);
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * Returns the number of cached files
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int getEntryCount() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the number of files evicted to stay within the maximum size
+	 *
+	 * @return the eviction count
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	private void open(Context c) {
+		if (directory != null) {
+			return;
+		}
+		directory = new File(Utils.getCacheDir(c), DIRECTORY);
+		if (!directory.exists() && !directory.mkdirs()) {
+			Log.w(TAG, "could not create " + directory);
+		}
+		boolean intact = readJournal();
+		removeStaleFiles();
+		if (!intact || redundantOpCount >= COMPACTION_THRESHOLD || !openJournalWriter()) {
+			rebuildJournal();
+		}
+		trimToSize(maxSize);
+		Log.d(TAG, "opened " + directory + ": " + index.size() + " entries, " + size + " bytes");
+	}
+
+	/**
+	 * Replays the journal
+	 *
+	 * @return <code>false</code> if the journal is missing or damaged and needs
+	 *         to be rebuilt
+	 */
+	private boolean readJournal() {
+		File journal = new File(directory, JOURNAL_FILE);
+		if (!journal.exists()) {
+			return false;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+			if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine()) || !"".equals(reader.readLine())) {
+				Log.w(TAG, "unknown journal format, discarding cache");
+				index.clear();
+				return false;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!readJournalLine(line)) {
+					// most likely an incomplete line written while being killed
+					Log.w(TAG, "damaged journal line: " + line);
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "could not read journal", e);
+			return false;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					reader = null;
+				}
+			}
+		}
+	}
+
+	private boolean readJournalLine(String line) {
+		String[] fields = line.split("\t", -1);
+		try {
+			// journals written before priorities were added lack the last field
+			if (PUT.equals(fields[0]) && (fields.length == 8 || fields.length == 9)) {
+				CacheInformation ci = new CacheInformation();
+				ci.setFileName(fields[1]);
+				ci.setFilePath(directory.getPath());
+				ci.setCreationTimeStamp(Long.parseLong(fields[2]));
+				ci.setCacheTime(Long.parseLong(fields[3]));
+				ci.setUseOfflineCache("1".equals(fields[4]));
+				ci.setETag(fields[6].length() == 0 ? null : fields[6]);
+				ci.setLastModified(fields[7].length() == 0 ? null : fields[7]);
+				if (fields.length == 9) {
+					ci.setPriority(Integer.parseInt(fields[8]));
+				} else if (ci.getCacheTime() == CacheInformation.CACHE_FOREVER || ci.isUseOfflineCache()) {
+					// these files used to be permanent
+					ci.setPriority(CacheInformation.PRIORITY_PINNED);
+				}
+				if (index.put(ci.getFileName(), new Entry(ci, Long.parseLong(fields[5]))) != null) {
+					redundantOpCount++;
+				}
+				return true;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (REMOVE.equals(fields[0]) && fields.length == 2) {
+			index.remove(fields[1]);
+			redundantOpCount++;
+			return true;
+		}
+		if (READ.equals(fields[0]) && fields.length == 2) {
+			index.get(fields[1]);
+			redundantOpCount++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drops entries whose file is gone and deletes files without an entry,
+	 * e.g. files whose write has not been committed
+	 */
+	private void removeStaleFiles() {
+		size = 0;
+		Iterator<Entry> i = index.values().iterator();
+		while (i.hasNext()) {
+			Entry entry = i.next();
+			File file = new File(directory, entry.cacheInformation.getFileName());
+			if (file.exists()) {
+				entry.length = file.length();
+				entry.cacheInformation.setSize(entry.length);
+				size += entry.length;
+			} else {
+				i.remove();
+				redundantOpCount++;
+			}
+		}
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!JOURNAL_FILE.equals(name) && !JOURNAL_FILE_TMP.equals(name) && !index.containsKey(name)) {
+				file.delete();
+			}
+		}
+	}
+
+	private boolean openJournalWriter() {
+		try {
+			journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, JOURNAL_FILE), true),
+					"UTF-8"));
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "could not open journal", e);
+			journalWriter = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a journal containing the current entries only and atomically
+	 * replaces the old journal. If this fails, the engine keeps working
+	 * without a journal until {@link #JOURNAL_RETRY_INTERVAL} has passed.
+	 */
+	private void rebuildJournal() {
+		closeJournalWriter();
+		File journal = new File(directory, JOURNAL_FILE);
+		File tmp = new File(directory, JOURNAL_FILE_TMP);
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			writer.write(MAGIC + "\n" + VERSION + "\n\n");
+			for (Entry entry : index.values()) {
+				writer.write(PUT + "\t" + serialize(entry.cacheInformation, entry.length) + "\n");
+			}
+			writer.close();
+			writer = null;
+			if (!tmp.renameTo(journal) && !(journal.delete() && tmp.renameTo(journal))) {
+				throw new IOException("could not rename " + tmp);
+			}
+			redundantOpCount = 0;
+			openJournalWriter();
+		} catch (IOException e) {
+			Log.w(TAG, "could not rebuild journal", e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					writer = null;
+				}
+			}
+			tmp.delete();
+		}
+		if (journalWriter == null) {
+			// appending to the old journal would skip the operations it is missing
+			journalRetryTime = SystemClock.elapsedRealtime() + JOURNAL_RETRY_INTERVAL;
+		}
+	}
+
+	private void compactIfNeeded() {
+		if (journalWriter == null && SystemClock.elapsedRealtime() < journalRetryTime) {
+			return;
+		}
+		if (redundantOpCount >= COMPACTION_THRESHOLD && redundantOpCount >= index.size()) {
+			rebuildJournal();
+		}
+	}
+
+	private void flushJournal() {
+		if (journalWriter != null) {
+			try {
+				journalWriter.flush();
+			} catch (IOException e) {
+				Log.w(TAG, "could not write journal", e);
+				closeJournalWriter();
+				journalRetryTime = SystemClock.elapsedRealtime() + JOURNAL_RETRY_INTERVAL;
+			}
+		}
+	}
+
+	private void closeJournalWriter() {
+		if (journalWriter != null) {
+			try {
+				journalWriter.close();
+			} catch (IOException e) {
+				Log.w(TAG, "could not close journal", e);
+			}
+			journalWriter = null;
+		}
+	}
+
+	/**
+	 * Appends a line to the journal
+	 *
+	 * @param flush
+	 *            <code>false</code> leaves the line in the writer's buffer
+	 */
+	private void appendToJournal(String op, String value, boolean flush) {
+		if (journalWriter == null) {
+			if (SystemClock.elapsedRealtime() < journalRetryTime) {
+				return;
+			}
+			// the rebuilt journal already reflects the operation
+			rebuildJournal();
+			return;
+		}
+		try {
+			journalWriter.write(op + "\t" + value + "\n");
+			if (flush) {
+				journalWriter.flush();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "could not write journal", e);
+			closeJournalWriter();
+			journalRetryTime = SystemClock.elapsedRealtime() + JOURNAL_RETRY_INTERVAL;
+		}
+	}
+
+	private void trimToSize(long targetSize) {
+		if (size <= targetSize) {
+			return;
+		}
+		// the index is in access order, the stable sort keeps the least
+		// recently used entries first within the same priority
+		List<Entry> candidates = new ArrayList<>();
+		for (Entry entry : index.values()) {
+			if (entry.cacheInformation.getPriority() < CacheInformation.PRIORITY_PINNED) {
+				candidates.add(entry);
+			}
+		}
+		Collections.sort(candidates, EVICTION_ORDER);
+		for (Entry victim : candidates) {
+			if (size <= targetSize) {
+				break;
+			}
+			String fileName = victim.cacheInformation.getFileName();
+			removeEntry(fileName, false);
+			new File(directory, fileName).delete();
+			evictionCount++;
+		}
+		flushJournal();
+		if (size > targetSize) {
+			Log.w(TAG, "pinned files exceed the maximum size: " + size + " > " + targetSize);
+		}
+	}
+
+	private void removeEntry(String fileName, boolean flush) {
+		Entry entry = index.remove(fileName);
+		if (entry != null) {
+			size -= entry.length;
+			redundantOpCount++;
+			appendToJournal(REMOVE, fileName, flush);
+		}
+	}
+
+	private static String serialize(CacheInformation ci, long length) {
+		return ci.getFileName() + "\t" + ci.getCreationTimeStamp() + "\t" + ci.getCacheTime() + "\t" + (ci.isUseOfflineCache() ? 1 : 0)
+				+ "\t" + length + "\t" + sanitize(ci.getETag()) + "\t" + sanitize(ci.getLastModified()) + "\t" + ci.getPriority();
+	}
+
+	private static String sanitize(String value) {
+		return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static CacheInformation copy(CacheInformation ci) {
+		CacheInformation copy = new CacheInformation(ci);
+		copy.set_id(-1);
+		return copy;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "JournaledDiskCacheEngine [directory=" + directory + ", entries=" + index.size() + ", size=" + size + ", maxSize="
+				+ maxSize + ", evictions=" + evictionCount + "]";
+	}
+
+	private static final class Entry {
+		private final CacheInformation cacheInformation;
+		private long length;
+
+		private Entry(CacheInformation cacheInformation, long length) {
+			this.cacheInformation = cacheInformation;
+			this.length = length;
+		}
+	}
+}
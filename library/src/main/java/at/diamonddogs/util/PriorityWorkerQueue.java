@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A {@link WorkerQueue} that executes waiting tasks in the order defined by a
+ * {@link Comparator}. Tasks that compare equal are executed in FIFO order. The
+ * queue is unbounded, therefore the pool grows to maxPoolSize and all threads
+ * time out after keepAliveTimeMs of inactivity.
+ */
+public class PriorityWorkerQueue extends ThreadPoolWorkerQueue {
+
+	/**
+	 * Creates a {@link PriorityWorkerQueue}
+	 *
+	 * @param maxPoolSize
+	 *            the max pool size
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 * @param comparator
+	 *            defines the order of waiting tasks, tasks that are "smaller"
+	 *            will be executed first
+	 */
+	public PriorityWorkerQueue(int maxPoolSize, long keepAliveTimeMs, Comparator<Callable<?>> comparator) {
+		super(maxPoolSize, maxPoolSize, keepAliveTimeMs, new PriorityBlockingQueue<Runnable>(11, new TaskComparator(comparator)),
+				new ThreadPoolExecutor.AbortPolicy());
+		threadPoolExecuter.allowCoreThreadTimeOut(true);
+	}
+
+	private static final class TaskComparator implements Comparator<Runnable> {
+		private final Comparator<Callable<?>> comparator;
+
+		private TaskComparator(Comparator<Callable<?>> comparator) {
+			this.comparator = comparator;
+		}
+
+		@Override
+		public int compare(Runnable lhs, Runnable rhs) {
+			TimedFutureTask<?> l = (TimedFutureTask<?>) lhs;
+			TimedFutureTask<?> r = (TimedFutureTask<?>) rhs;
+			// compare the original tasks, e.g. when fed by a HostAwareScheduler
+			int result = comparator.compare(Utils.unwrapCallable(l.getCallable()), Utils.unwrapCallable(r.getCallable()));
+			if (result != 0) {
+				return result;
+			}
+			return l.getSequence() < r.getSequence() ? -1 : (l.getSequence() == r.getSequence() ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable byte buffer made of fixed size segments taken from a
+ * {@link BufferPool}. Unlike a {@link java.io.ByteArrayOutputStream} it never
+ * copies data when it grows, its content can be read using
+ * {@link SegmentedBuffer#openStream()} without creating a contiguous copy.
+ */
+public class SegmentedBuffer {
+
+	private final BufferPool bufferPool;
+	private final List<byte[]> segments = new ArrayList<>();
+	private int size = 0;
+	private int lastSegmentLength = 0;
+	/**
+	 * Number of streams that have been opened and are neither closed nor
+	 * fully consumed
+	 */
+	private int openStreams = 0;
+	private boolean released = false;
+
+	/**
+	 * Creates a {@link SegmentedBuffer}
+	 *
+	 * @param bufferPool
+	 *            the {@link BufferPool} segments are taken from
+	 */
+	public SegmentedBuffer(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Reads from inputStream directly into the last segment of this buffer,
+	 * a new segment is added if the last segment is full
+	 *
+	 * @param inputStream
+	 *            the {@link InputStream} to read from
+	 * @return the number of bytes read or -1 if the end of the stream has
+	 *         been reached
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public synchronized int readFrom(InputStream inputStream) throws IOException {
+		if (released) {
+			throw new IllegalStateException("buffer has been released");
+		}
+		int segmentSize = bufferPool.getSegmentSize();
+		if (segments.isEmpty() || lastSegmentLength == segmentSize) {
+			segments.add(bufferPool.acquire());
+			lastSegmentLength = 0;
+		}
+		byte[] segment = segments.get(segments.size() - 1);
+		int read = inputStream.read(segment, lastSegmentLength, segmentSize - lastSegmentLength);
+		if (read > 0) {
+			lastSegmentLength += read;
+			size += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Returns the number of bytes in this buffer
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of segments used by this buffer
+	 *
+	 * @return the segment count
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Copies the content of this buffer into a new, exactly sized array
+	 *
+	 * @return the content of this buffer
+	 */
+	public synchronized byte[] toByteArray() {
+		if (released) {
+			throw new IllegalStateException("buffer has been released");
+		}
+		byte[] ret = new byte[size];
+		int offset = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			int length = i == segments.size() - 1 ? lastSegmentLength : segments.get(i).length;
+			System.arraycopy(segments.get(i), 0, ret, offset, length);
+			offset += length;
+		}
+		return ret;
+	}
+
+	/**
+	 * Opens an {@link InputStream} that reads the content of this buffer
+	 * without copying it. The stream keeps the segments from being returned
+	 * to the pool until it has been closed or read to its end.
+	 *
+	 * @return an {@link InputStream}
+	 */
+	public synchronized InputStream openStream() {
+		if (released) {
+			throw new IllegalStateException("buffer has been released");
+		}
+		openStreams++;
+		return new SegmentInputStream(new ArrayList<>(segments), size);
+	}
+
+	/**
+	 * Returns the segments of this buffer to the {@link BufferPool}, as soon
+	 * as all streams opened by {@link SegmentedBuffer#openStream()} have been
+	 * closed or read to their end. The buffer must not be used afterwards.
+	 */
+	public synchronized void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		if (openStreams == 0) {
+			returnSegments();
+		}
+	}
+
+	private synchronized void streamFinished() {
+		openStreams--;
+		if (released && openStreams == 0) {
+			returnSegments();
+		}
+	}
+
+	private void returnSegments() {
+		for (byte[] segment : segments) {
+			bufferPool.release(segment);
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Reads the segments of the buffer, informs the buffer once it has been
+	 * closed or read to its end. Reading a closed stream fails, since its
+	 * segments may have been reused.
+	 */
+	private final class SegmentInputStream extends InputStream {
+		private final List<byte[]> segments;
+		private final int size;
+		private int position = 0;
+		private int segmentIndex = 0;
+		private int segmentOffset = 0;
+		private boolean finished = false;
+		private boolean closed = false;
+
+		private SegmentInputStream(List<byte[]> segments, int size) {
+			this.segments = segments;
+			this.size = size;
+			if (size == 0) {
+				finish();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if (closed) {
+				throw new IOException("stream closed");
+			}
+			if (position >= size) {
+				return -1;
+			}
+			int read = 0;
+			while (read < count && position < size) {
+				byte[] segment = segments.get(segmentIndex);
+				int length = Math.min(Math.min(count - read, segment.length - segmentOffset), size - position);
+				System.arraycopy(segment, segmentOffset, buffer, offset + read, length);
+				read += length;
+				position += length;
+				segmentOffset += length;
+				if (segmentOffset == segment.length) {
+					segmentIndex++;
+					segmentOffset = 0;
+				}
+			}
+			if (position >= size) {
+				finish();
+			}
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return closed ? 0 : size - position;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				finish();
+			}
+		}
+
+		private void finish() {
+			if (!finished) {
+				finished = true;
+				streamFinished();
+			}
+		}
+	}
+}
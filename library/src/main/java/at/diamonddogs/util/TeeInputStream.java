@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link InputStream} that copies all bytes read to an
+ * {@link OutputStream}. Errors writing to the {@link OutputStream} do not
+ * affect the reader, use {@link TeeInputStream#isComplete()} to find out if
+ * the copy is complete.
+ */
+public class TeeInputStream extends FilterInputStream {
+
+	private static final String TAG = TeeInputStream.class.getSimpleName();
+
+	private final OutputStream sink;
+	private boolean endOfStream = false;
+	private boolean sinkFailed = false;
+
+	/**
+	 * Creates a {@link TeeInputStream}
+	 *
+	 * @param in
+	 *            the {@link InputStream} to read from
+	 * @param sink
+	 *            the {@link OutputStream} that receives a copy of all bytes
+	 *            read, will be closed when this stream is closed
+	 */
+	public TeeInputStream(InputStream in, OutputStream sink) {
+		super(in);
+		this.sink = sink;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b == -1) {
+			endOfStream = true;
+		} else if (!sinkFailed) {
+			try {
+				sink.write(b);
+			} catch (IOException e) {
+				onSinkFailed(e);
+			}
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int read = super.read(buffer, offset, count);
+		if (read == -1) {
+			endOfStream = true;
+		} else if (read > 0 && !sinkFailed) {
+			try {
+				sink.write(buffer, offset, read);
+			} catch (IOException e) {
+				onSinkFailed(e);
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * Skipped bytes are read, so that they are copied as well
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(4096, Math.max(n, 1))];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Reads the remainder of the stream, so that the copy is complete even if
+	 * the reader stopped early
+	 *
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public void drain() throws IOException {
+		byte[] buffer = new byte[4096];
+		while (read(buffer, 0, buffer.length) != -1) {
+		}
+	}
+
+	/**
+	 * Checks if the whole stream has been copied
+	 *
+	 * @return <code>true</code> if the end of the stream has been reached and
+	 *         all bytes have been copied, <code>false</code> otherwise
+	 */
+	public boolean isComplete() {
+		return endOfStream && !sinkFailed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			try {
+				sink.close();
+			} catch (IOException e) {
+				onSinkFailed(e);
+			}
+		}
+	}
+
+	private void onSinkFailed(IOException e) {
+		Log.w(TAG, "could not copy stream", e);
+		sinkFailed = true;
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link WorkerQueue} backed by an instrumented {@link ThreadPoolExecutor}.
+ * This implementation uses an unbounded queue, subclasses may provide other
+ * queues and {@link RejectedExecutionHandler}s.
+ */
+public class ThreadPoolWorkerQueue implements WorkerQueue {
+
+	private static final String TAG = ThreadPoolWorkerQueue.class.getSimpleName();
+
+	/**
+	 * The queue of tasks waiting for execution
+	 */
+	protected final BlockingQueue<Runnable> outstandingRequests;
+
+	/**
+	 * The instrumented executor
+	 */
+	protected final ThreadPoolExecutor threadPoolExecuter;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong startedCount = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * Creates a {@link ThreadPoolWorkerQueue} using an unbounded queue. Since a
+	 * {@link ThreadPoolExecutor} never grows beyond its core size while its
+	 * queue accepts tasks, the pool is allowed to grow to maxPoolSize and all
+	 * threads time out after keepAliveTimeMs of inactivity.
+	 *
+	 * @param corePoolSize
+	 *            the core pool size, values larger than maxPoolSize will be
+	 *            used as maxPoolSize
+	 * @param maxPoolSize
+	 *            the max pool size
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 */
+	public ThreadPoolWorkerQueue(int corePoolSize, int maxPoolSize, long keepAliveTimeMs) {
+		this(Math.max(corePoolSize, maxPoolSize), Math.max(corePoolSize, maxPoolSize), keepAliveTimeMs,
+				new LinkedBlockingQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+		threadPoolExecuter.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Creates a {@link ThreadPoolWorkerQueue}
+	 *
+	 * @param corePoolSize
+	 *            the core pool size
+	 * @param maxPoolSize
+	 *            the max pool size
+	 * @param keepAliveTimeMs
+	 *            the keep alive time in ms
+	 * @param queue
+	 *            the queue holding tasks before they are executed
+	 * @param rejectedExecutionHandler
+	 *            the handler to use when the queue and the pool are saturated
+	 */
+	protected ThreadPoolWorkerQueue(int corePoolSize, int maxPoolSize, long keepAliveTimeMs, BlockingQueue<Runnable> queue,
+			RejectedExecutionHandler rejectedExecutionHandler) {
+		outstandingRequests = queue;
+		threadPoolExecuter = new InstrumentedThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveTimeMs, queue,
+				new CountingRejectedExecutionHandler(rejectedExecutionHandler));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T> Future<T> runCancelableTask(Callable<T> task) {
+		if (!threadPoolExecuter.isShutdown()) {
+			try {
+				return threadPoolExecuter.submit(task);
+			} catch (RejectedExecutionException e) {
+				Log.w(TAG, "task rejected: " + task, e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isShutDown() {
+		return threadPoolExecuter.isShutdown();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void shutDown() {
+		Log.d(TAG, "shuting down NOW");
+		threadPoolExecuter.shutdownNow();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getQueueDepth() {
+		return outstandingRequests.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getActiveCount() {
+		return threadPoolExecuter.getActiveCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getStartedCount() {
+		return startedCount.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getAverageWaitTime() {
+		long started = startedCount.get();
+		return started == 0 ? 0 : totalWaitTime.get() / started;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	/**
+	 * Returns the current number of threads in the pool
+	 *
+	 * @return the pool size
+	 */
+	public int getPoolSize() {
+		return threadPoolExecuter.getPoolSize();
+	}
+
+	/**
+	 * Returns the largest number of threads that have ever simultaneously been
+	 * in the pool
+	 *
+	 * @return the largest pool size
+	 */
+	public int getLargestPoolSize() {
+		return threadPoolExecuter.getLargestPoolSize();
+	}
+
+	/**
+	 * Creates the {@link RunnableFuture} that wraps a submitted
+	 * {@link Callable}. Subclasses may override this method to attach
+	 * additional information to queued tasks.
+	 *
+	 * @param <T>
+	 *            the result type of the task
+	 * @param callable
+	 *            the submitted task
+	 * @return a {@link TimedFutureTask}
+	 */
+	protected <T> TimedFutureTask<T> createTask(Callable<T> callable) {
+		return new TimedFutureTask<>(callable);
+	}
+
+	private void recordWaitTime(long waitTimeMs) {
+		startedCount.incrementAndGet();
+		totalWaitTime.addAndGet(waitTimeMs);
+		long max;
+		do {
+			max = maxWaitTime.get();
+		} while (waitTimeMs > max && !maxWaitTime.compareAndSet(max, waitTimeMs));
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [queueDepth=" + getQueueDepth() + ", active=" + getActiveCount() + ", pool="
+				+ getPoolSize() + ", started=" + getStartedCount() + ", rejected=" + getRejectedCount() + ", avgWait="
+				+ getAverageWaitTime() + "ms, maxWait=" + getMaxWaitTime() + "ms]";
+	}
+
+	/**
+	 * A {@link FutureTask} that records the time it has been queued
+	 *
+	 * @param <T>
+	 *            the result type
+	 */
+	protected static class TimedFutureTask<T> extends FutureTask<T> {
+
+		private static final AtomicLong SEQUENCE = new AtomicLong();
+
+		private final Callable<T> callable;
+		private final long sequence;
+		private volatile long enqueueTime;
+
+		/**
+		 * Constructor
+		 *
+		 * @param callable
+		 *            the wrapped task
+		 */
+		public TimedFutureTask(Callable<T> callable) {
+			super(callable);
+			this.callable = callable;
+			this.sequence = SEQUENCE.getAndIncrement();
+			this.enqueueTime = System.currentTimeMillis();
+		}
+
+		@SuppressWarnings("javadoc")
+		public Callable<T> getCallable() {
+			return callable;
+		}
+
+		/**
+		 * Returns a monotonic sequence number that can be used to keep FIFO
+		 * order between tasks that are otherwise equal
+		 *
+		 * @return the sequence number
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		@SuppressWarnings("javadoc")
+		public long getEnqueueTime() {
+			return enqueueTime;
+		}
+	}
+
+	private final class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+
+		private InstrumentedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTimeMs,
+				BlockingQueue<Runnable> workQueue, RejectedExecutionHandler handler) {
+			super(corePoolSize, maximumPoolSize, keepAliveTimeMs, TimeUnit.MILLISECONDS, workQueue, handler);
+		}
+
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+			return createTask(callable);
+		}
+
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			if (r instanceof TimedFutureTask<?>) {
+				recordWaitTime(System.currentTimeMillis() - ((TimedFutureTask<?>) r).getEnqueueTime());
+			}
+		}
+	}
+
+	private final class CountingRejectedExecutionHandler implements RejectedExecutionHandler {
+		private final RejectedExecutionHandler delegate;
+
+		private CountingRejectedExecutionHandler(RejectedExecutionHandler delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			rejectedCount.incrementAndGet();
+			delegate.rejectedExecution(r, executor);
+		}
+	}
+}
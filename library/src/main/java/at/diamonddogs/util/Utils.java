@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.codec.binary.Hex;
@@ -209,6 +210,20 @@ public class Utils {
         return null;
     }
 
+    /**
+     * Returns the innermost {@link Callable} of a chain of
+     * {@link WrappedCallable}s
+     *
+     * @param task a task passed to a {@link WorkerQueue}
+     * @return the original task, task itself if it does not wrap another task
+     */
+    public static Callable<?> unwrapCallable(Callable<?> task) {
+        while (task instanceof WrappedCallable<?>) {
+            task = ((WrappedCallable<?>) task).getWrappedCallable();
+        }
+        return task;
+    }
+
     /**
      * Creates and fills an {@link Integer} array with integer values
      *
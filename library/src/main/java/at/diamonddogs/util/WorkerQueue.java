@@ -17,70 +17,87 @@ package at.diamonddogs.util;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 /**
- * A simple worker queue
+ * Execution strategy used to run tasks (usually {@link at.diamonddogs.net.WebClient}s)
+ * concurrently. Implementations expose basic metrics so that pool sizes can be
+ * tuned from measurements.
+ *
+ * @see ThreadPoolWorkerQueue
+ * @see BoundedWorkerQueue
+ * @see CallerRunsWorkerQueue
+ * @see HostPartitionedWorkerQueue
+ * @see PriorityWorkerQueue
  */
-public class WorkerQueue {
-
-	private static final String TAG = WorkerQueue.class.getSimpleName();
-	private LinkedBlockingQueue<Runnable> outstandingRequests;
-
-	private ThreadPoolExecutor threadPoolExecuter;
-
-	/**
-	 * Creates a {@link WorkerQueue}
-	 * 
-	 * @param corePoolSize
-	 *            the core pool size
-	 * @param maxPoolSize
-	 *            the max pool size
-	 * @param keepAliveTimeMs
-	 *            the keep alive time in ms
-	 */
-	public WorkerQueue(int corePoolSize, int maxPoolSize, long keepAliveTimeMs) {
-		outstandingRequests = new LinkedBlockingQueue<>();
-		threadPoolExecuter = new ThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveTimeMs, TimeUnit.MILLISECONDS, outstandingRequests);
-	}
+public interface WorkerQueue {
 
 	/**
-	 * 
-	 * Cancel a running task
-	 * 
+	 * Runs a task that can be cancelled using the returned {@link Future}
+	 *
 	 * @param <T>
 	 *            the type of object to be returned by the {@link Callable} /
 	 *            {@link Future}
 	 * @param task
-	 *            the task to cancel
-	 * @return returns the {@link Future} of the task that has been canceled or
-	 *         <code>null</code> if the executer was shutdown
-	 * 
-	 * @return
+	 *            the task to run
+	 * @return returns the {@link Future} of the task or <code>null</code> if
+	 *         the executer was shutdown or the task has been rejected
 	 */
-	public <T> Future<T> runCancelableTask(Callable<T> task) {
-		if (!threadPoolExecuter.isShutdown()) {
-			return threadPoolExecuter.submit(task);
-		}
-		return null;
-	}
+	<T> Future<T> runCancelableTask(Callable<T> task);
 
 	/**
 	 * Checks if the executer was shut down
-	 * 
+	 *
 	 * @return <code>true</code> if it was, <code>false</code> otherwise
 	 */
-	public boolean isShutDown() {
-		return threadPoolExecuter.isShutdown();
-	}
+	boolean isShutDown();
 
 	/**
 	 * Shuts down the executor
 	 */
-	public void shutDown() {
-		Log.d(TAG, "shuting down NOW");
-		threadPoolExecuter.shutdownNow();
-	}
+	void shutDown();
+
+	/**
+	 * Returns the number of tasks waiting for execution
+	 *
+	 * @return the queue depth
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Returns the approximate number of threads that are actively executing
+	 * tasks
+	 *
+	 * @return the active count
+	 */
+	int getActiveCount();
+
+	/**
+	 * Returns the number of tasks that could not be queued
+	 *
+	 * @return the rejected count
+	 */
+	long getRejectedCount();
+
+	/**
+	 * Returns the number of tasks that have been started
+	 *
+	 * @return the number of started tasks
+	 */
+	long getStartedCount();
+
+	/**
+	 * Returns the average time a task waited in the queue before it was
+	 * started
+	 *
+	 * @return the average wait time in ms
+	 */
+	long getAverageWaitTime();
+
+	/**
+	 * Returns the longest time a task waited in the queue before it was
+	 * started
+	 *
+	 * @return the maximum wait time in ms
+	 */
+	long getMaxWaitTime();
 }
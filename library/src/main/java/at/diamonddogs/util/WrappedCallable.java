@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A {@link Callable} that runs another {@link Callable}, e.g. the tasks
+ * {@link HostAwareScheduler} hands to its delegate. {@link WorkerQueue}s that
+ * partition or order tasks by their type look at the wrapped
+ * {@link Callable}, see {@link Utils#unwrapCallable(Callable)}.
+ *
+ * @param <V>
+ *            the result type of the {@link Callable}
+ */
+public interface WrappedCallable<V> extends Callable<V> {
+
+	/**
+	 * Returns the {@link Callable} run by this {@link Callable}
+	 *
+	 * @return the wrapped {@link Callable}
+	 */
+	Callable<?> getWrappedCallable();
+}
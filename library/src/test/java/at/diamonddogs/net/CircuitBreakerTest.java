@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.diamonddogs.net.CircuitBreaker.Clock;
+import at.diamonddogs.net.CircuitBreaker.State;
+import at.diamonddogs.net.CircuitBreaker.StateListener;
+
+public class CircuitBreakerTest {
+
+    private static final long OPEN_DURATION = 1000;
+
+    private long now;
+    private List<State> transitions;
+    private CircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp() {
+        now = 10000;
+        transitions = new ArrayList<>();
+        circuitBreaker = new CircuitBreaker("example.com", 3, OPEN_DURATION, 2, new StateListener() {
+            @Override
+            public void onStateChanged(String host, State oldState, State newState) {
+                transitions.add(newState);
+            }
+        }, new Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void consecutiveFailuresOpen() {
+        fail(2);
+        circuitBreaker.onSuccess();
+        fail(2);
+
+        assertEquals("a success resets the failure count", State.CLOSED, circuitBreaker.getState());
+
+        fail(1);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(1, circuitBreaker.getOpenCount());
+        assertEquals(Arrays.asList(State.OPEN), transitions);
+    }
+
+    @Test
+    public void openRejectsUntilOpenDurationElapsed() {
+        fail(3);
+
+        assertTrue(circuitBreaker.isRejecting());
+        assertFalse(circuitBreaker.tryAcquire());
+        now += OPEN_DURATION - 1;
+        assertFalse(circuitBreaker.tryAcquire());
+        assertEquals(2, circuitBreaker.getRejectedCount());
+
+        now += 1;
+
+        assertFalse(circuitBreaker.isRejecting());
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void halfOpenLimitsTrialRequests() {
+        openAndElapse();
+
+        assertTrue(circuitBreaker.tryAcquire());
+        assertTrue(circuitBreaker.tryAcquire());
+        assertFalse(circuitBreaker.tryAcquire());
+
+        circuitBreaker.onIgnored();
+
+        assertTrue("an ignored trial returns its permit", circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void successfulTrialsClose() {
+        openAndElapse();
+        circuitBreaker.tryAcquire();
+        circuitBreaker.tryAcquire();
+
+        circuitBreaker.onSuccess();
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onSuccess();
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(Arrays.asList(State.OPEN, State.HALF_OPEN, State.CLOSED), transitions);
+        assertTrue(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void failedTrialReopens() {
+        openAndElapse();
+        circuitBreaker.tryAcquire();
+
+        circuitBreaker.onFailure();
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getOpenCount());
+        assertEquals(Arrays.asList(State.OPEN, State.HALF_OPEN, State.OPEN), transitions);
+        assertFalse("the open duration starts again", circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void reset() {
+        fail(3);
+
+        circuitBreaker.reset();
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.tryAcquire());
+        fail(2);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+
+    private void openAndElapse() {
+        fail(3);
+        now += OPEN_DURATION;
+    }
+
+    private void fail(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.onFailure();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+
+public class RetryPolicyTest {
+
+    private RetryPolicy retryPolicy;
+    private WebRequest webRequest;
+
+    @Before
+    public void setUp() {
+        retryPolicy = new RetryPolicy();
+        retryPolicy.setRetryBudget(new RetryBudget(0.1, 100));
+        webRequest = new WebRequest();
+        webRequest.setUrl("http://example.com/data");
+        webRequest.setNumberOfRetries(3);
+        webRequest.setRetryInterval(100);
+    }
+
+    @Test
+    public void idempotentRequestsAreRetried() {
+        webRequest.setRequestType(WebRequest.Type.GET);
+        assertTrue(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+
+        webRequest.setRequestType(WebRequest.Type.HEAD);
+        assertTrue(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+    }
+
+    @Test
+    public void postIsOnlyRetriedIfAllowed() {
+        webRequest.setRequestType(WebRequest.Type.POST);
+        assertFalse(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+
+        webRequest.setRetryNonIdempotent(true);
+        assertTrue(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+    }
+
+    @Test
+    public void onlyTransientStatusCodesAreRetried() {
+        assertTrue(retryPolicy.shouldRetry(webRequest, 1, createReply(503, null), null));
+        assertTrue(retryPolicy.shouldRetry(webRequest, 1, createReply(429, null), null));
+        assertFalse(retryPolicy.shouldRetry(webRequest, 1, createReply(500, null), null));
+        assertFalse(retryPolicy.shouldRetry(webRequest, 1, createReply(404, null), null));
+        assertFalse(retryPolicy.shouldRetry(webRequest, 1, null, null));
+    }
+
+    @Test
+    public void attemptsAreLimited() {
+        assertTrue(retryPolicy.shouldRetry(webRequest, 3, null, new IOException()));
+        assertFalse(retryPolicy.shouldRetry(webRequest, 4, null, new IOException()));
+
+        webRequest.setCancelled(true);
+        assertFalse(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+    }
+
+    @Test
+    public void budgetLimitsRetries() {
+        retryPolicy.setRetryBudget(new RetryBudget(0.5, 1));
+
+        assertTrue(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+        assertFalse(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+
+        retryPolicy.onFirstAttempt(webRequest);
+        retryPolicy.onFirstAttempt(webRequest);
+        assertTrue(retryPolicy.shouldRetry(webRequest, 1, null, new IOException()));
+    }
+
+    @Test
+    public void retryAfterSeconds() {
+        assertEquals(5000, retryPolicy.getDelay(webRequest, 1, createReply(503, "5")));
+        assertEquals(0, retryPolicy.getDelay(webRequest, 1, createReply(503, "-1")));
+        assertEquals(RetryPolicy.DEFAULT_MAX_DELAY, retryPolicy.getDelay(webRequest, 1, createReply(503, "3600")));
+    }
+
+    @Test
+    public void retryAfterDate() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String inTwentySeconds = format.format(new Date(System.currentTimeMillis() + 20000));
+        String past = format.format(new Date(System.currentTimeMillis() - 60000));
+
+        long delay = retryPolicy.getDelay(webRequest, 1, createReply(503, inTwentySeconds));
+
+        // the header only has a precision of one second
+        assertTrue("delay: " + delay, delay > 18000 && delay <= 20000);
+        assertEquals(0, retryPolicy.getDelay(webRequest, 1, createReply(503, past)));
+    }
+
+    @Test
+    public void invalidRetryAfterFallsBackToBackoff() {
+        long delay = retryPolicy.getDelay(webRequest, 1, createReply(503, "soon"));
+
+        assertTrue("delay: " + delay, delay >= 0 && delay < 100);
+    }
+
+    @Test
+    public void backoffGrowsExponentially() {
+        for (int i = 0; i < 100; i++) {
+            long delay = retryPolicy.getDelay(webRequest, 4, null);
+            assertTrue("delay: " + delay, delay >= 0 && delay < 800);
+        }
+        retryPolicy.setMaxDelay(1000);
+        for (int i = 0; i < 100; i++) {
+            long delay = retryPolicy.getDelay(webRequest, 40, null);
+            assertTrue("delay: " + delay, delay >= 0 && delay < 1000);
+        }
+    }
+
+    private static WebReply createReply(int httpStatusCode, String retryAfter) {
+        WebReply reply = new WebReply();
+        reply.setHttpStatusCode(httpStatusCode);
+        Map<String, List<String>> header = new HashMap<>();
+        if (retryAfter != null) {
+            header.put("retry-after", Collections.singletonList(retryAfter));
+        }
+        reply.setReplyHeader(header);
+        return reply;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.service.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+
+public class RequestCoalescerTest {
+
+    private static final String URL = "http://example.com/data";
+
+    private RequestCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        coalescer = new RequestCoalescer();
+    }
+
+    @Test
+    public void firstRequestLeads() {
+        WebRequest leader = createWebRequest(URL);
+        WebRequest follower = createWebRequest(URL);
+
+        assertTrue(coalescer.join(leader));
+        assertFalse(coalescer.join(follower));
+        assertTrue(coalescer.contains(follower));
+        assertSame(leader, coalescer.getLeader(follower));
+    }
+
+    @Test
+    public void differentKeysDoNotCoalesce() {
+        assertTrue(coalescer.join(createWebRequest(URL)));
+        assertTrue(coalescer.join(createWebRequest(URL + "?page=2")));
+
+        WebRequest post = createWebRequest(URL);
+        post.setRequestType(WebRequest.Type.POST);
+        assertFalse(RequestCoalescer.isCoalescable(post));
+    }
+
+    @Test
+    public void varyHeadersArePartOfTheKey() {
+        WebRequest german = createWebRequest(URL);
+        german.addVaryHeader("Accept-Language");
+        german.addHeaderField("Accept-Language", "de");
+        WebRequest english = createWebRequest(URL);
+        english.addVaryHeader("Accept-Language");
+        english.addHeaderField("Accept-Language", "en");
+
+        assertNotEquals(RequestCoalescer.getKey(german), RequestCoalescer.getKey(english));
+        assertTrue(coalescer.join(german));
+        assertTrue(coalescer.join(english));
+    }
+
+    @Test
+    public void completeReturnsAllInterestedRequests() {
+        WebRequest leader = createWebRequest(URL);
+        WebRequest first = createWebRequest(URL);
+        WebRequest second = createWebRequest(URL);
+        coalescer.join(leader);
+        coalescer.join(first);
+        coalescer.join(second);
+
+        assertNull("only the leader completes a flight", coalescer.complete(first));
+        List<WebRequest> interested = coalescer.complete(leader);
+
+        assertEquals(Arrays.asList(leader, first, second), interested);
+        assertFalse(coalescer.contains(leader));
+        assertFalse(coalescer.contains(second));
+        assertTrue("the next request starts a new flight", coalescer.join(createWebRequest(URL)));
+    }
+
+    @Test
+    public void leavingFollowerKeepsTheFlight() {
+        WebRequest leader = createWebRequest(URL);
+        WebRequest follower = createWebRequest(URL);
+        coalescer.join(leader);
+        coalescer.join(follower);
+
+        assertNull(coalescer.leave(follower));
+        assertFalse(coalescer.contains(follower));
+        assertEquals(Arrays.asList(leader), coalescer.complete(leader));
+    }
+
+    @Test
+    public void leavingLeaderKeepsTheSharedCall() {
+        WebRequest leader = createWebRequest(URL);
+        WebRequest follower = createWebRequest(URL);
+        coalescer.join(leader);
+        coalescer.join(follower);
+
+        assertNull(coalescer.leave(leader));
+        assertTrue("the leader still executes the shared call", coalescer.contains(leader));
+        assertEquals(Arrays.asList(follower), coalescer.complete(leader));
+    }
+
+    @Test
+    public void lastLeaveCancelsTheLeader() {
+        WebRequest leader = createWebRequest(URL);
+        WebRequest follower = createWebRequest(URL);
+        coalescer.join(leader);
+        coalescer.join(follower);
+
+        assertNull(coalescer.leave(leader));
+        assertSame(leader, coalescer.leave(follower));
+        assertFalse(coalescer.contains(leader));
+        assertNull(coalescer.complete(leader));
+    }
+
+    @Test
+    public void leaveWithoutFlight() {
+        WebRequest webRequest = createWebRequest(URL);
+
+        assertSame(webRequest, coalescer.leave(webRequest));
+        assertSame(webRequest, coalescer.getLeader(webRequest));
+    }
+
+    private static WebRequest createWebRequest(String url) {
+        WebRequest webRequest = new WebRequest();
+        webRequest.setUrl(url);
+        webRequest.setCoalesce(true);
+        return webRequest;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.diamonddogs.util.HostAwareScheduler.PriorityProvider;
+import at.diamonddogs.util.HostAwareScheduler.RejectionListener;
+import at.diamonddogs.util.HostPartitionedWorkerQueue.PartitionKeyProvider;
+
+public class HostAwareSchedulerTest {
+
+	private static final long AGING_INTERVAL = 20;
+
+	private ManualWorkerQueue delegate;
+	private List<Callable<?>> rejected;
+
+	@Before
+	public void setUp() {
+		delegate = new ManualWorkerQueue();
+		rejected = new ArrayList<>();
+	}
+
+	@Test
+	public void rejectedBySubmittingReturnsNull() {
+		HostAwareScheduler scheduler = createScheduler(2, 2);
+		delegate.rejecting = true;
+
+		assertNull(scheduler.runCancelableTask(new HostTask("a", 0)));
+		assertTrue("a synchronous rejection must not be reported twice", rejected.isEmpty());
+		assertEquals(1, scheduler.getRejectedCount());
+		assertEquals(0, scheduler.getQueueDepth());
+	}
+
+	@Test
+	public void rejectedAfterQueueingIsReported() throws Exception {
+		HostAwareScheduler scheduler = createScheduler(1, 1);
+		HostTask first = new HostTask("a", 0);
+		HostTask second = new HostTask("a", 0);
+		Future<String> firstFuture = scheduler.runCancelableTask(first);
+		Future<String> secondFuture = scheduler.runCancelableTask(second);
+		assertNotNull(secondFuture);
+		assertEquals(1, delegate.submitted.size());
+
+		delegate.rejecting = true;
+		delegate.runNext();
+
+		assertEquals("a", firstFuture.get());
+		assertEquals(1, rejected.size());
+		assertSame(second, rejected.get(0));
+		assertRejected(secondFuture);
+		assertEquals(0, scheduler.getQueueDepth());
+	}
+
+	@Test
+	public void shutDownRejectsPendingTasks() throws Exception {
+		HostAwareScheduler scheduler = createScheduler(1, 1);
+		scheduler.runCancelableTask(new HostTask("a", 0));
+		HostTask pending = new HostTask("b", 0);
+		Future<String> pendingFuture = scheduler.runCancelableTask(pending);
+
+		scheduler.shutDown();
+
+		assertTrue(delegate.isShutDown());
+		assertEquals(1, rejected.size());
+		assertSame(pending, rejected.get(0));
+		assertRejected(pendingFuture);
+		assertNull(scheduler.runCancelableTask(new HostTask("c", 0)));
+	}
+
+	@Test
+	public void perHostLimit() throws Exception {
+		HostAwareScheduler scheduler = createScheduler(4, 1);
+		HostTask a1 = new HostTask("a", 0);
+		HostTask a2 = new HostTask("a", 0);
+		HostTask b1 = new HostTask("b", 0);
+		scheduler.runCancelableTask(a1);
+		scheduler.runCancelableTask(a2);
+		scheduler.runCancelableTask(b1);
+
+		assertEquals(2, delegate.submitted.size());
+		assertSame(a1, delegate.getTask(0));
+		assertSame(b1, delegate.getTask(1));
+		assertEquals(1, scheduler.getHostStatistics().get("a").getPending());
+
+		delegate.runNext();
+
+		assertEquals(2, delegate.submitted.size());
+		assertSame(b1, delegate.getTask(0));
+		assertSame(a2, delegate.getTask(1));
+	}
+
+	@Test
+	public void globalLimit() throws Exception {
+		HostAwareScheduler scheduler = createScheduler(2, 2);
+		scheduler.runCancelableTask(new HostTask("a", 0));
+		scheduler.runCancelableTask(new HostTask("b", 0));
+		scheduler.runCancelableTask(new HostTask("c", 0));
+
+		assertEquals(2, delegate.submitted.size());
+		assertEquals(1, scheduler.getQueueDepth());
+
+		delegate.runNext();
+
+		assertEquals(2, delegate.submitted.size());
+		assertEquals(0, scheduler.getQueueDepth());
+	}
+
+	@Test
+	public void higherPriorityIsStartedFirst() throws Exception {
+		HostAwareScheduler scheduler = createScheduler(1, 1);
+		scheduler.runCancelableTask(new HostTask("a", 0));
+		HostTask low = new HostTask("b", 5);
+		HostTask high = new HostTask("c", 0);
+		scheduler.runCancelableTask(low);
+		scheduler.runCancelableTask(high);
+
+		delegate.runNext();
+
+		assertSame(high, delegate.getTask(0));
+	}
+
+	@Test
+	public void waitingTasksAge() throws Exception {
+		HostAwareScheduler scheduler = createScheduler(1, 1);
+		scheduler.runCancelableTask(new HostTask("a", 0));
+		HostTask low = new HostTask("b", 2);
+		scheduler.runCancelableTask(low);
+		// low has waited for more than 2 aging intervals, it beats a fresh
+		// task of the highest priority
+		Thread.sleep(AGING_INTERVAL * 5);
+		HostTask high = new HostTask("c", 0);
+		scheduler.runCancelableTask(high);
+
+		delegate.runNext();
+
+		assertSame(low, delegate.getTask(0));
+	}
+
+	@Test
+	public void cancelledPendingTaskIsDropped() throws Exception {
+		HostAwareScheduler scheduler = createScheduler(1, 1);
+		scheduler.runCancelableTask(new HostTask("a", 0));
+		Future<String> pending = scheduler.runCancelableTask(new HostTask("a", 0));
+
+		assertTrue(pending.cancel(false));
+		assertEquals(0, scheduler.getQueueDepth());
+
+		delegate.runNext();
+
+		assertTrue(delegate.submitted.isEmpty());
+		assertTrue(scheduler.getHostStatistics().isEmpty());
+	}
+
+	private HostAwareScheduler createScheduler(int maxConcurrent, int maxConcurrentPerHost) {
+		HostAwareScheduler scheduler = new HostAwareScheduler(delegate, maxConcurrent, maxConcurrentPerHost,
+				new PartitionKeyProvider() {
+					@Override
+					public String getPartitionKey(Callable<?> task) {
+						return ((HostTask) task).host;
+					}
+				}, new PriorityProvider() {
+					@Override
+					public int getPriorityLevel(Callable<?> task) {
+						return ((HostTask) task).level;
+					}
+				}, AGING_INTERVAL);
+		scheduler.setRejectionListener(new RejectionListener() {
+			@Override
+			public void onRejected(Callable<?> task) {
+				rejected.add(task);
+			}
+		});
+		return scheduler;
+	}
+
+	private static void assertRejected(Future<?> future) throws InterruptedException {
+		try {
+			future.get();
+			fail("expected a RejectedExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	private static final class HostTask implements Callable<String> {
+		private final String host;
+		private final int level;
+
+		private HostTask(String host, int level) {
+			this.host = host;
+			this.level = level;
+		}
+
+		@Override
+		public String call() {
+			return host;
+		}
+	}
+
+	/**
+	 * Collects the tasks handed to it, they are run by the test on the test
+	 * thread
+	 */
+	private static final class ManualWorkerQueue implements WorkerQueue {
+		private final List<Callable<?>> submitted = new ArrayList<>();
+		private boolean rejecting;
+		private boolean shutDown;
+
+		@Override
+		public <T> Future<T> runCancelableTask(Callable<T> task) {
+			if (rejecting || shutDown) {
+				return null;
+			}
+			submitted.add(task);
+			// the scheduler only checks the result for null
+			return new java.util.concurrent.FutureTask<>(task);
+		}
+
+		private Callable<?> getTask(int index) {
+			return Utils.unwrapCallable(submitted.get(index));
+		}
+
+		private void runNext() throws Exception {
+			submitted.remove(0).call();
+		}
+
+		@Override
+		public boolean isShutDown() {
+			return shutDown;
+		}
+
+		@Override
+		public void shutDown() {
+			shutDown = true;
+		}
+
+		@Override
+		public int getQueueDepth() {
+			return 0;
+		}
+
+		@Override
+		public int getActiveCount() {
+			return submitted.size();
+		}
+
+		@Override
+		public long getRejectedCount() {
+			return 0;
+		}
+
+		@Override
+		public long getStartedCount() {
+			return 0;
+		}
+
+		@Override
+		public long getAverageWaitTime() {
+			return 0;
+		}
+
+		@Override
+		public long getMaxWaitTime() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedBufferTest {
+
+	private static final int SEGMENT_SIZE = 4;
+
+	private BufferPool bufferPool;
+	private SegmentedBuffer buffer;
+	private byte[] content;
+
+	@Before
+	public void setUp() throws IOException {
+		bufferPool = new BufferPool(SEGMENT_SIZE, 16);
+		buffer = new SegmentedBuffer(bufferPool);
+		content = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+		InputStream inputStream = new ByteArrayInputStream(content);
+		while (buffer.readFrom(inputStream) != -1) {
+			// fill the buffer
+		}
+	}
+
+	@Test
+	public void content() throws IOException {
+		assertEquals(content.length, buffer.size());
+		assertEquals(3, buffer.getSegmentCount());
+		assertArrayEquals(content, buffer.toByteArray());
+		assertArrayEquals(content, readFully(buffer.openStream()));
+	}
+
+	@Test
+	public void releaseReturnsSegments() {
+		buffer.release();
+
+		assertEquals(3, bufferPool.getPooledSegmentCount());
+	}
+
+	@Test
+	public void closedStreamReturnsSegments() throws IOException {
+		InputStream stream = buffer.openStream();
+		stream.read();
+		buffer.release();
+
+		assertEquals("the stream is still reading the segments", 0, bufferPool.getPooledSegmentCount());
+
+		stream.close();
+
+		assertEquals(3, bufferPool.getPooledSegmentCount());
+		try {
+			stream.read();
+			fail("expected an IOException");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void consumedStreamReturnsSegments() throws IOException {
+		InputStream stream = buffer.openStream();
+		assertArrayEquals(content, readFully(stream));
+		buffer.release();
+
+		assertEquals(3, bufferPool.getPooledSegmentCount());
+		assertEquals(-1, stream.read());
+	}
+
+	@Test
+	public void segmentsAreReturnedOnce() throws IOException {
+		InputStream first = buffer.openStream();
+		InputStream second = buffer.openStream();
+		buffer.release();
+		first.close();
+
+		assertEquals(0, bufferPool.getPooledSegmentCount());
+
+		readFully(second);
+		second.close();
+		first.close();
+		buffer.release();
+
+		assertEquals(3, bufferPool.getPooledSegmentCount());
+	}
+
+	private static byte[] readFully(InputStream stream) throws IOException {
+		byte[] ret = new byte[0];
+		byte[] chunk = new byte[3];
+		int read;
+		while ((read = stream.read(chunk, 0, chunk.length)) != -1) {
+			byte[] tmp = new byte[ret.length + read];
+			System.arraycopy(ret, 0, tmp, 0, ret.length);
+			System.arraycopy(chunk, 0, tmp, ret.length, read);
+			ret = tmp;
+		}
+		return ret;
+	}
+}